@@ -0,0 +1,73 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Measures what handling an ACK costs the sent packet handler as more packets are in flight: finding the
+ * acknowledged packet and removing it. A new packet replaces each acknowledged one, so the volume stays
+ * the same. Runs 1000 to 1000000 packets in flight spread over ENDPOINTS endpoints and prints ns per ACK,
+ * which should stay flat until the packets outgrow the CPU caches.
+ */
+public class AckCostBenchmark {
+    final private static int ENDPOINTS = 100;
+    final private static int ACKS = 2000000;
+    final private static int BATCH = 1000;
+    final private static int []IN_FLIGHT = {1000, 10000, 100000, 1000000};
+
+    public static void main(String []args) {
+        //  The first run warms up
+        run(IN_FLIGHT[0]);
+        for(int inFlight : IN_FLIGHT)
+            System.out.println(String.format("%8d in flight: %6.1f ns per ACK", inFlight, run(inFlight)));
+        System.exit(0);
+    }
+
+    private static double run(int inFlight) {
+        PacketHandler packetHandler = new PacketHandler(new TimerWheel(System.currentTimeMillis()), new PacketHandler.RetryListener() {
+            @Override
+            public void retry(PacketHandler.HandledPacket packet, long timeNow) {
+            }
+        });
+        EndPoint []endPoints = new EndPoint[ENDPOINTS];
+        for(int i = 0; i < endPoints.length; ++i)
+            endPoints[i] = new EndPoint();
+
+        //  Packet i goes to endpoint i % ENDPOINTS, acknowledged in the order they were sent
+        for(int i = 0; i < inFlight; ++i)
+            packetHandler.addPacket(newPacket(endPoints[i % ENDPOINTS], i));
+        //  Acknowledged in batches, each refilled after it was timed, so only finding and removing is measured
+        long missing = 0;
+        long elapsed = 0;
+        for(int batch = 0; batch < ACKS; batch += BATCH) {
+            long startTime = System.nanoTime();
+            for(int i = batch; i < batch + BATCH; ++i) {
+                EndPoint endPoint = endPoints[i % ENDPOINTS];
+                if(packetHandler.findPacket(endPoint, i) == null)
+                    ++missing;
+                packetHandler.removePacket(endPoint, i);
+            }
+            elapsed += System.nanoTime() - startTime;
+            for(int i = batch; i < batch + BATCH; ++i)
+                packetHandler.addPacket(newPacket(endPoints[(i + inFlight) % ENDPOINTS], i + inFlight));
+        }
+        if(missing > 0 || packetHandler.getPacketCount() != inFlight)
+            throw new IllegalStateException(String.format("%d ACKs found no packet, %d in flight", missing, packetHandler.getPacketCount()));
+        return elapsed / (double)ACKS;
+    }
+
+    private static PacketHandler.HandledPacket newPacket(EndPoint endPoint, int messageId) {
+        return new PacketHandler.HandledPacket(endPoint, new PacketData(PacketEncoder.FLAGS_GUARANTEED, messageId, PacketEncoder.COMMAND_NOP, null));
+    }
+}
@@ -0,0 +1,208 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Measures goodput and the retransmission ratio of sendPacketDelayed bursts over a simulated constrained
+ * uplink, with and without congestion control. The sender's datagrams go through a link of LINK_BYTES_PER_MS
+ * with a drop-tail queue of QUEUE_BYTES, random loss and PROPAGATION_MILLIS of delay before they reach the
+ * receiver on loopback; acknowledgements come back directly. Every BURST_INTERVAL_MILLIS the sender queues a
+ * burst of guaranteed parts the size TestPacketReceiver.sendImage sends. Takes the loss rates to run as
+ * optional arguments, 0, 0.01 and 0.05 by default. Parts still unacknowledged after TIMEOUT_MILLIS, which
+ * the sender gave up on, count as lost.
+ */
+public class CongestionBenchmark {
+    final private static int BASE_PORT = 48200;
+    final private static double LINK_BYTES_PER_MS = 250;
+    final private static int QUEUE_BYTES = 16000;
+    final private static long PROPAGATION_MILLIS = 20;
+    final private static int BURSTS = 6;
+    final private static int PARTS_PER_BURST = 100;
+    final private static int PART_SIZE = 1000;
+    final private static long BURST_INTERVAL_MILLIS = 500;
+    final private static long TIMEOUT_MILLIS = 15000;
+
+    /**
+     * Delays what is sent through it like a link of bytesPerMs with a queue of queueBytes, dropping what doesn't
+     * fit the queue and a random share loss of the rest.
+     */
+    private static class LossyLink implements NetworkLayer {
+        private final NetworkLayer networkLayer;
+        private final double bytesPerMs;
+        private final int queueBytes;
+        private final double loss;
+        private final Random random = new Random(42);
+        private final ScheduledExecutorService delivery = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //  When the datagrams queued so far have been put on the link, in ms of System.nanoTime()
+        private double linkFreeTime = 0;
+        private long queueDrops = 0, lossDrops = 0, sent = 0;
+
+        LossyLink(NetworkLayer networkLayer, double bytesPerMs, int queueBytes, double loss) {
+            this.networkLayer = networkLayer;
+            this.bytesPerMs = bytesPerMs;
+            this.queueBytes = queueBytes;
+            this.loss = loss;
+        }
+
+        public InetAddress getLocalAddress() {
+            return networkLayer.getLocalAddress();
+        }
+
+        public int getLocalPort() {
+            return networkLayer.getLocalPort();
+        }
+
+        public synchronized int send(final InetAddress addr, final int port, final byte []data) {
+            ++sent;
+            double timeNow = System.nanoTime() / 1e6;
+            double start = Math.max(timeNow, linkFreeTime);
+            if((start - timeNow) * bytesPerMs + data.length > queueBytes) {
+                ++queueDrops;
+                return data.length;
+            }
+            if(random.nextDouble() < loss) {
+                ++lossDrops;
+                return data.length;
+            }
+            //  The IP and UDP headers take the link too
+            linkFreeTime = start + (data.length + 28) / bytesPerMs;
+            delivery.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    networkLayer.send(addr, port, data);
+                }
+            }, (long)((linkFreeTime - timeNow + PROPAGATION_MILLIS) * 1000), TimeUnit.MICROSECONDS);
+            return data.length;
+        }
+
+        public int send(InetSocketAddress addr, ByteBuffer data) {
+            byte []copy = new byte[data.remaining()];
+            data.get(copy);
+            return send(addr.getAddress(), addr.getPort(), copy);
+        }
+
+        public int receive(AtomicReference<InetSocketAddress> addr, byte []buffer, int bufferLength) {
+            return networkLayer.receive(addr, buffer, bufferLength);
+        }
+
+        public void waitForReceive(long timeout) {
+            networkLayer.waitForReceive(timeout);
+        }
+
+        public void wakeup() {
+            networkLayer.wakeup();
+        }
+
+        public boolean setDontFragment(boolean dontFragment) {
+            return networkLayer.setDontFragment(dontFragment);
+        }
+
+        synchronized String describe() {
+            return String.format("link sent %d, queue drops %d, loss drops %d", sent - queueDrops - lossDrops, queueDrops, lossDrops);
+        }
+    }
+
+    public static void main(String []args) throws Exception {
+        double []losses = {0, 0.01, 0.05};
+        if(args.length > 0) {
+            losses = new double[args.length];
+            for(int i = 0; i < args.length; ++i)
+                losses[i] = Double.parseDouble(args[i]);
+        }
+
+        System.out.println(String.format("%d bursts of %d x %d bytes every %d ms over %.0f kbit/s, %d byte queue, %d ms delay",
+                BURSTS, PARTS_PER_BURST, PART_SIZE, BURST_INTERVAL_MILLIS, LINK_BYTES_PER_MS * 8, QUEUE_BYTES, PROPAGATION_MILLIS));
+        int port = BASE_PORT;
+        for(double loss : losses) {
+            run(false, loss, port);
+            port += 2;
+            run(true, loss, port);
+            port += 2;
+        }
+        System.exit(0);
+    }
+
+    private static void run(boolean congestionControl, double loss, int port) throws IOException, InterruptedException {
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong lastDelivered = new AtomicLong();
+        NatPunch receiver = new NatPunch();
+        receiver.setNetworkLayer(new NIONetworkLayer(InetAddress.getLoopbackAddress(), port));
+        receiver.setPacketEncoder(new CompactPacketEncoder());
+        BasePacketReceiver receiverPackets = new BasePacketReceiver(receiver);
+        receiverPackets.setCommandHandler(PacketEncoder.COMMAND_CUSTOM, new CommandHandler() {
+            @Override
+            public void handleCommand(EndPoint endPoint, PacketData packet) {
+                delivered.incrementAndGet();
+                lastDelivered.set(System.currentTimeMillis());
+            }
+        });
+        receiver.setPacketReceiver(receiverPackets);
+        receiver.startWorkerThread();
+
+        NatPunch sender = new NatPunch();
+        LossyLink link = new LossyLink(new NIONetworkLayer(InetAddress.getLoopbackAddress(), port + 1), LINK_BYTES_PER_MS, QUEUE_BYTES, loss);
+        sender.setNetworkLayer(link);
+        sender.setPacketEncoder(new CompactPacketEncoder());
+        BasePacketReceiver senderPackets = new BasePacketReceiver(sender);
+        senderPackets.setCongestionControl(congestionControl);
+        sender.setPacketReceiver(senderPackets);
+        sender.startWorkerThread();
+
+        EndPoint endPoint = sender.getEndPointHandler().findOrAddEndPoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        byte []part = new byte[PART_SIZE];
+        int total = BURSTS * PARTS_PER_BURST;
+        long startTime = System.currentTimeMillis();
+        for(int burst = 0; burst < BURSTS; ++burst) {
+            for(int i = 0; i < PARTS_PER_BURST; ++i) {
+                senderPackets.sendPacketDelayed(endPoint, new PacketData(PacketEncoder.FLAGS_GUARANTEED,
+                        senderPackets.getAndIncrementNextMessageId(), PacketEncoder.COMMAND_CUSTOM, new byte[][] {part}));
+            }
+            Thread.sleep(BURST_INTERVAL_MILLIS);
+        }
+        while(delivered.get() < total && System.currentTimeMillis() - startTime < TIMEOUT_MILLIS)
+            Thread.sleep(20);
+
+        long elapsed = Math.max(1, lastDelivered.get() - startTime);
+        long sent = senderPackets.getSentCount();
+        long retransmitted = senderPackets.getRetransmitCount();
+        System.out.println(String.format("loss %.0f%%, congestion control %s: delivered %d/%d in %d ms, goodput %.0f kbit/s, "
+                        + "%d retransmissions on %d first sends (%.1f%%), %s",
+                loss * 100, congestionControl ? "on " : "off", delivered.get(), total, elapsed,
+                delivered.get() * PART_SIZE * 8.0 / elapsed, retransmitted, sent, sent > 0 ? retransmitted * 100.0 / sent : 0,
+                link.describe()));
+
+        sender.stopWorkerThread();
+        receiver.stopWorkerThread();
+    }
+}
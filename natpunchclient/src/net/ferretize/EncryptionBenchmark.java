@@ -0,0 +1,150 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Measures what PacketCipher costs. First the ns to encrypt and decrypt one datagram of a few sizes, then the
+ * throughput of sendMessage between two NatPunch on loopback, once in plaintext and once with sessions set up
+ * the way the REGISTER and HELLO handshakes do, after a path MTU probe. Congestion control paces the transfer
+ * on loopback as well, so besides MB/s it prints the CPU time all threads spent per MB. Takes the message size
+ * and the number of messages as optional arguments.
+ */
+public class EncryptionBenchmark {
+    final private static int BASE_PORT = 48300;
+    final private static int []DATAGRAM_SIZES = {64, 512, 1200};
+    final private static int CIPHER_ITERATIONS = 200000;
+    final private static int DEFAULT_MESSAGE_SIZE = 256 * 1024;
+    final private static int DEFAULT_MESSAGES = 40;
+
+    public static void main(String []args) throws Exception {
+        int messageSize = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGE_SIZE;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MESSAGES;
+
+        //  The first runs warm up
+        for(int size : DATAGRAM_SIZES)
+            measureCipher(size);
+        for(int size : DATAGRAM_SIZES) {
+            double nanos = measureCipher(size);
+            System.out.println(String.format("%5d byte datagram: %6.0f ns to encrypt and decrypt, %6.1f MB/s",
+                    size, nanos, size * 1000 / nanos));
+        }
+
+        //  Warmed up the same way
+        transfer(false, messageSize, messages / 4 + 1, BASE_PORT);
+        double []plaintext = transfer(false, messageSize, messages, BASE_PORT + 2);
+        transfer(true, messageSize, messages / 4 + 1, BASE_PORT + 4);
+        double []encrypted = transfer(true, messageSize, messages, BASE_PORT + 6);
+        System.out.println(String.format("%d messages of %d bytes: plaintext %.1f MB/s, %.1f ms CPU per MB; "
+                        + "encrypted %.1f MB/s, %.1f ms CPU per MB",
+                messages, messageSize, plaintext[0], plaintext[1], encrypted[0], encrypted[1]));
+        System.exit(0);
+    }
+
+    //  Returns the ns to encrypt and decrypt a datagram of size bytes
+    private static double measureCipher(int size) {
+        PacketCipher senderCipher = new PacketCipher();
+        PacketCipher receiverCipher = new PacketCipher();
+        byte []senderIncarnation = {1};
+        byte []receiverIncarnation = {2};
+        EndPoint endPoint = new EndPoint();
+        endPoint.session = receiverCipher.createSession(senderCipher.getPublicKey(), receiverIncarnation, senderIncarnation);
+        PacketCipher.Session session = senderCipher.createSession(receiverCipher.getPublicKey(), senderIncarnation, receiverIncarnation);
+
+        ByteBuffer datagram = ByteBuffer.allocate(size);
+        byte []sealed = new byte[size + PacketCipher.OVERHEAD];
+        ByteBuffer out = ByteBuffer.wrap(sealed);
+        long startTime = System.nanoTime();
+        for(int i = 0; i < CIPHER_ITERATIONS; ++i) {
+            datagram.clear();
+            out.clear();
+            senderCipher.encrypt(session, datagram, out);
+            if(receiverCipher.decrypt(endPoint, sealed, 0, out.position()) != size)
+                throw new IllegalStateException("Datagram didn't decrypt");
+        }
+        return (System.nanoTime() - startTime) / (double)CIPHER_ITERATIONS;
+    }
+
+    //  Sums the CPU time of the threads alive now, which include both worker threads
+    private static long getCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuTime = 0;
+        for(long id : threads.getAllThreadIds())
+            cpuTime += Math.max(0, threads.getThreadCpuTime(id));
+        return cpuTime;
+    }
+
+    //  Returns the MB/s and the ms of CPU per MB of messages messages of messageSize bytes sent one after the other
+    private static double[] transfer(boolean encrypt, final int messageSize, int messages, int port) throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        NatPunch receiver = new NatPunch();
+        receiver.setNetworkLayer(new NIONetworkLayer(InetAddress.getLoopbackAddress(), port));
+        receiver.setPacketEncoder(new CompactPacketEncoder());
+        receiver.setPacketReceiver(new BasePacketReceiver(receiver) {
+            @Override
+            public void messageReceived(EndPoint endPoint, ByteBuffer data) {
+                if(data.remaining() == messageSize)
+                    received.incrementAndGet();
+            }
+        });
+
+        NatPunch sender = new NatPunch();
+        sender.setNetworkLayer(new NIONetworkLayer(InetAddress.getLoopbackAddress(), port + 1));
+        sender.setPacketEncoder(new CompactPacketEncoder());
+        BasePacketReceiver packetReceiver = new BasePacketReceiver(sender);
+        sender.setPacketReceiver(packetReceiver);
+
+        EndPoint endPoint = sender.getEndPointHandler().findOrAddEndPoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        EndPoint back = receiver.getEndPointHandler().findOrAddEndPoint(new InetSocketAddress(InetAddress.getLoopbackAddress(), port + 1));
+        endPoint.protocolVersion = CompactPacketEncoder.VERSION;
+        back.protocolVersion = CompactPacketEncoder.VERSION;
+        if(encrypt) {
+            PacketCipher senderCipher = new PacketCipher();
+            PacketCipher receiverCipher = new PacketCipher();
+            sender.setPacketCipher(senderCipher);
+            receiver.setPacketCipher(receiverCipher);
+            endPoint.session = senderCipher.createSession(receiverCipher.getPublicKey(), sender.getIncarnation(), receiver.getIncarnation());
+            back.session = receiverCipher.createSession(senderCipher.getPublicKey(), receiver.getIncarnation(), sender.getIncarnation());
+        }
+        receiver.startWorkerThread();
+        sender.startWorkerThread();
+        packetReceiver.probePathMtu(endPoint);
+        Thread.sleep(300);
+
+        byte []message = new byte[messageSize];
+        new Random(1).nextBytes(message);
+        long startCpuTime = getCpuTime();
+        long startTime = System.nanoTime();
+        for(int i = 0; i < messages; ++i) {
+            packetReceiver.sendMessage(endPoint, ByteBuffer.wrap(message));
+            while(received.get() <= i)
+                Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double megabytes = (double)messageSize * messages / 1e6;
+        double cpuMillis = (getCpuTime() - startCpuTime) / 1e6;
+
+        sender.stopWorkerThread();
+        receiver.stopWorkerThread();
+        return new double[] {megabytes / seconds, cpuMillis / megabytes};
+    }
+}
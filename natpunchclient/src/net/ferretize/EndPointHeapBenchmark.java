@@ -0,0 +1,70 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.net.InetAddress;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Measures the heap an endpoint takes: first a bare EndPoint, then one EndPointHandler.findOrAddEndPoint adds
+ * for an unknown source address the way NatPunch does for every datagram from one, with its index entries.
+ * Creates ENDPOINTS of each and divides the growth of the used heap after a full GC. Takes the number of
+ * endpoints as an optional argument.
+ */
+public class EndPointHeapBenchmark {
+    final private static int ENDPOINTS = 100000;
+
+    //  Keeps what is measured reachable, a local the JIT sees no more use of can be collected early
+    private static Object retained;
+
+    //  Used heap after the collector has had a few chances to run
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 4; ++i) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String []args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : ENDPOINTS;
+
+        long before = usedHeap();
+        EndPoint []endPoints = new EndPoint[count];
+        retained = endPoints;
+        long arrayHeap = usedHeap() - before;
+        for(int i = 0; i < count; ++i)
+            endPoints[i] = new EndPoint();
+        double bare = (usedHeap() - before - arrayHeap) / (double)count;
+        System.out.println(String.format("new EndPoint(): %.0f bytes each", bare));
+        endPoints = null;
+        retained = null;
+
+        EndPointHandler endPointHandler = new EndPointHandler();
+        retained = endPointHandler;
+        endPointHandler.setMaxEndPoints(count * 2);
+        byte []address = {10, 0, 0, 0};
+        before = usedHeap();
+        for(int i = 0; i < count; ++i) {
+            address[1] = (byte)(i >>> 16);
+            address[2] = (byte)(i >>> 8);
+            address[3] = (byte)i;
+            endPointHandler.findOrAddEndPoint(InetAddress.getByAddress(address), 40000);
+        }
+        double added = (usedHeap() - before) / (double)count;
+        System.out.println(String.format("findOrAddEndPoint: %.0f bytes each, %d endpoints", added, endPointHandler.getEndPoints().size()));
+        System.exit(0);
+    }
+}
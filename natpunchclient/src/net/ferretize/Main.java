@@ -14,15 +14,14 @@ package net.ferretize;
 import net.ferretize.libnatpunch.*;
 
 import java.io.Console;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Random;
 
 public class Main {
-    public static void main(String[] args) throws UnknownHostException, SocketException, InterruptedException {
+    public static void main(String[] args) throws IOException, InterruptedException {
         String remoteHost = "localhost";
         int remotePort = 0;
         int localPort = 30000;
@@ -40,8 +39,9 @@ public class Main {
         NatPunch natPunch = new NatPunch();
         if(remotePort > 0)
             natPunch.setIntroducer(InetAddress.getByName(remoteHost), remotePort, id.getBytes(StandardCharsets.ISO_8859_1));
-        natPunch.setNetworkLayer(new UDPNetworkLayer(localPort));
-        natPunch.setPacketEncoder(new BinaryPacketEncoder());
+        natPunch.setNetworkLayer(new NIONetworkLayer(localPort));
+        natPunch.setPacketEncoder(new CompactPacketEncoder());
+        natPunch.setPacketCipher(new PacketCipher());
         natPunch.setPacketReceiver(new TestPacketReceiver(natPunch));
         natPunch.startWorkerThread();
 
@@ -78,13 +78,15 @@ public class Main {
                     rand.nextBytes(data);
                     int messageId = natPunch.getPacketReceiver().getAndIncrementNextMessageId();
                     natPunch.getLogHandler().info(String.format("\t\tSending %d bytes / 50 parts, MD5 %s", data.length, MD5.hash(data)));
+                    natPunch.getPacketReceiver().sendPacketDelayed(natPunch.getIntroducerEndPoint(),
+                            PacketData.multipart(PacketEncoder.FLAGS_GUARANTEED, messageId, 50, 30, null));
                     for(int i = 0; i < 50; ++i) {
                         byte []dataPart = Arrays.copyOfRange(data, i * 1000, i * 1000 + 1000);
                //         natPunch.getLogHandler().info(String.format("\t\tPart %d, MD5 %s", i, MD5.hash(dataPart)));
                         natPunch.getPacketReceiver().sendPacketDelayed(natPunch.getIntroducerEndPoint(),
-                                new PacketData(
-                                        PacketEncoder.FLAGS_GUARANTEED | PacketEncoder.FLAGS_MULTIPART,
-                                        messageId, 0, i, 50, 30,
+                                PacketData.part(PacketEncoder.FLAGS_GUARANTEED,
+                                        natPunch.getPacketReceiver().getAndIncrementNextMessageId(),
+                                        messageId, i,
                                         new byte[][] {
                                                 dataPart
                                         }
@@ -0,0 +1,325 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Fuzzes the frame readers of both wire formats. Encodes a corpus of random datagrams, then runs millions of
+ * mutated copies (bit flips, truncation, appended garbage, spliced frames, oversized length fields) through
+ * readPacket the way NatPunch reads a datagram, counting rejections in DropCounters. Then hands the frames of a
+ * fifth as many through BasePacketReceiver.handlePacket on the worker thread of a NatPunch whose network layer
+ * discards what it sends. Exits with status 1 if anything throws, a frame or argument reaches outside the data,
+ * or an unmutated datagram doesn't read back. Takes the number of datagrams and the random seed as optional arguments.
+ */
+public class PacketFuzzTest {
+    final private static long DEFAULT_ITERATIONS = 5000000;
+    final private static int CORPUS_SIZE = 4000;
+    final private static int DATAGRAM_SIZE = 2048;
+    final private static int HANDLER_BATCH = 1000;
+
+    private static Random random;
+    private static byte [][]corpus;
+    private static int failures = 0;
+
+    private static void fail(String description) {
+        if(failures++ < 10)
+            System.out.println("FAILED: " + description);
+    }
+
+    private static PacketData randomPacket() {
+        int argumentCount = random.nextInt(8);
+        byte [][]arguments = new byte[argumentCount][];
+        for(int i = 0; i < argumentCount; ++i) {
+            arguments[i] = new byte[random.nextInt(4) == 0 ? random.nextInt(300) : random.nextInt(8)];
+            random.nextBytes(arguments[i]);
+        }
+        //  Sub-commands and statuses the handlers know, so mutations reach past the first switch
+        if(argumentCount > 1 && random.nextBoolean()) {
+            arguments[0] = new byte[] {(byte)random.nextInt(14)};
+            arguments[1] = new byte[] {(byte)random.nextInt(2)};
+        }
+        PacketData packet = new PacketData(random.nextInt(8), random.nextInt(1 << (1 + random.nextInt(30))),
+                random.nextInt(5), random.nextInt(3), random.nextInt(4), random.nextInt(14), argumentCount == 0 ? null : arguments);
+        packet.parentMessageId = packet.messageId - random.nextInt(1000);
+        return packet;
+    }
+
+    //  Copies source to target with one mutation and returns the new length
+    private static int mutate(byte []source, byte []target) {
+        int length = source.length;
+        System.arraycopy(source, 0, target, 0, length);
+        switch(random.nextInt(8)) {
+            case 0:
+            case 1:
+            {
+                int flips = 1 + random.nextInt(3);
+                for(int i = 0; i < flips; ++i) {
+                    int bit = random.nextInt(length * 8);
+                    target[bit >>> 3] ^= 1 << (bit & 7);
+                }
+            }
+            break;
+            case 2:
+                length = random.nextInt(length + 1);
+                break;
+            case 3:
+            {
+                int extra = 1 + random.nextInt(64);
+                for(int i = 0; i < extra && length < target.length; ++i)
+                    target[length++] = (byte)random.nextInt();
+            }
+            break;
+            case 4:
+                target[random.nextInt(length)] = (byte)random.nextInt();
+                break;
+            case 5:
+            {
+                //  Length fields and varints claiming far more than there is
+                int position = random.nextInt(length);
+                target[position] = (byte)(random.nextBoolean() ? 0xFF : 0x7F);
+                if(position + 1 < length)
+                    target[position + 1] = (byte)0xFF;
+            }
+            break;
+            case 6:
+            {
+                byte []other = corpus[random.nextInt(corpus.length)];
+                int spliced = Math.min(other.length, target.length - length);
+                System.arraycopy(other, 0, target, length, spliced);
+                length += spliced;
+            }
+            break;
+            case 7:
+                length = 1 + random.nextInt(length + 16);
+                for(int i = 0; i < length; ++i)
+                    target[i] = (byte)random.nextInt();
+                break;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the frames of the length byte datagram in data like NatPunch does. Returns what the last readPacket
+     * returned, after checking every frame and argument lies within the datagram.
+     */
+    private static int readDatagram(PacketEncoder packetEncoder, ByteBuffer data, int length, PacketView view) {
+        int offset = 0;
+        int packetLength;
+        while((packetLength = packetEncoder.readPacket(data, offset, view)) > 0) {
+            if(offset + packetLength > length) {
+                fail(String.format("v%d frame of %d bytes at %d past the datagram of %d", packetEncoder.getVersion(), packetLength, offset, length));
+                return packetLength;
+            }
+            for(int i = 0; i < view.getArgumentCount(); ++i) {
+                if(view.getArgumentOffset(i) < offset || view.getArgumentOffset(i) + view.getArgumentLength(i) > offset + packetLength) {
+                    fail(String.format("v%d argument %d outside its frame at %d", packetEncoder.getVersion(), i, offset));
+                    return packetLength;
+                }
+            }
+            view.toPacketData();
+            offset += packetLength;
+        }
+        return offset == length && packetLength == 0 ? length : packetLength;
+    }
+
+    //  Sends nowhere and never receives, so the handlers can answer whatever they are fed
+    private static class DiscardingNetworkLayer implements NetworkLayer {
+        private final InetAddress localAddress = InetAddress.getLoopbackAddress();
+        private boolean woken = false;
+
+        public InetAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        public int getLocalPort() {
+            return 1;
+        }
+
+        public int send(InetAddress addr, int port, byte []data) {
+            return data.length;
+        }
+
+        public int send(InetSocketAddress addr, ByteBuffer data) {
+            int length = data.remaining();
+            data.position(data.limit());
+            return length;
+        }
+
+        public int receive(AtomicReference<InetSocketAddress> addr, byte []buffer, int bufferLength) {
+            return 0;
+        }
+
+        public synchronized void waitForReceive(long timeout) {
+            try {
+                if(!woken)
+                    wait(Math.max(1, timeout));
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            woken = false;
+        }
+
+        public synchronized void wakeup() {
+            woken = true;
+            notifyAll();
+        }
+
+        public boolean setDontFragment(boolean dontFragment) {
+            return false;
+        }
+    }
+
+    private static class SilentLogHandler implements LogHandler {
+        public void info(String text) {
+        }
+
+        public void error(String text) {
+        }
+
+        public void warning(String text) {
+        }
+
+        public void debug(String text) {
+        }
+    }
+
+    /**
+     * Hands every frame of count mutated datagrams to the packet receiver of natPunch on its worker thread, where
+     * NatPunch calls it, as if they came from one peer, half of them as if they arrived encrypted.
+     */
+    private static void fuzzHandler(final NatPunch natPunch, long count) throws InterruptedException {
+        final PacketEncoder packetEncoder = natPunch.getPacketEncoder();
+        final PacketReceiver packetReceiver = natPunch.getPacketReceiver();
+        final EndPointHandler endPointHandler = natPunch.getEndPointHandler();
+        final InetSocketAddress peerAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000);
+        final PacketView view = new PacketView();
+        final byte []buffer = new byte[DATAGRAM_SIZE * 2];
+
+        for(long done = 0; done < count; done += HANDLER_BATCH) {
+            final int batch = (int)Math.min(HANDLER_BATCH, count - done);
+            final CountDownLatch handled = new CountDownLatch(1);
+            natPunch.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    EndPoint peer = endPointHandler.findOrAddEndPoint(peerAddress);
+                    for(int i = 0; i < batch; ++i) {
+                        int length = mutate(corpus[random.nextInt(corpus.length)], buffer);
+                        ByteBuffer data = ByteBuffer.wrap(buffer);
+                        data.position(length);
+                        view.setEncrypted(random.nextBoolean());
+                        int offset = 0;
+                        int packetLength;
+                        try {
+                            while((packetLength = packetEncoder.readPacket(data, offset, view)) > 0) {
+                                packetReceiver.handlePacket(endPointHandler, peer, view);
+                                offset += packetLength;
+                            }
+                        } catch (RuntimeException e) {
+                            fail(String.format("handlePacket threw %s on %s", e.toString(), view.toString()));
+                        }
+                    }
+                    handled.countDown();
+                }
+            });
+            handled.await();
+        }
+    }
+
+    public static void main(String []args) throws InterruptedException {
+        long iterations = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_ITERATIONS;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        random = new Random(seed);
+
+        PacketEncoder []packetEncoders = {new BinaryPacketEncoder(), new CompactPacketEncoder()};
+        PacketView view = new PacketView();
+
+        corpus = new byte[CORPUS_SIZE][];
+        for(int i = 0; i < corpus.length; ++i) {
+            PacketEncoder packetEncoder = packetEncoders[i & 1];
+            ByteBuffer datagram = ByteBuffer.allocate(DATAGRAM_SIZE);
+            int frames = 1 + random.nextInt(3);
+            for(int j = 0; j < frames; ++j) {
+                PacketData packet = randomPacket();
+                if(packetEncoder.getPacketSize(packet) <= datagram.remaining())
+                    packetEncoder.encode(packet, datagram);
+            }
+            corpus[i] = Arrays.copyOf(datagram.array(), datagram.position());
+
+            //  The compact reader takes v1 frames as well
+            ByteBuffer data = ByteBuffer.wrap(corpus[i]);
+            data.position(corpus[i].length);
+            if(readDatagram(packetEncoders[1], data, corpus[i].length, view) != corpus[i].length)
+                fail(String.format("unmutated v%d datagram %d doesn't read back", packetEncoder.getVersion(), i));
+        }
+
+        DropCounters dropCounters = new DropCounters();
+        byte []buffer = new byte[DATAGRAM_SIZE * 2];
+        long rejected = 0;
+        long startTime = System.nanoTime();
+        for(long iteration = 0; iteration < iterations; ++iteration) {
+            int length = mutate(corpus[random.nextInt(corpus.length)], buffer);
+            PacketEncoder packetEncoder = packetEncoders[(int)(iteration & 1)];
+            try {
+                ByteBuffer data = ByteBuffer.wrap(buffer);
+                data.position(length);
+                int result = readDatagram(packetEncoder, data, length, view);
+                if(result < 0) {
+                    dropCounters.reject(result);
+                    ++rejected;
+                }
+                if(packetEncoder.getFrameLength(data, 0) < 0)
+                    fail(String.format("v%d negative frame length", packetEncoder.getVersion()));
+                if((iteration & 3) == 0) {
+                    //  The copying paths take the same input
+                    packetEncoder.decode(Arrays.copyOf(buffer, length));
+                    ByteBuffer stream = ByteBuffer.allocate(buffer.length);
+                    stream.put(buffer, 0, length);
+                    packetEncoder.hasPacket(stream);
+                }
+            } catch (RuntimeException e) {
+                fail(String.format("v%d threw %s on a %d byte datagram", packetEncoder.getVersion(), e.toString(), length));
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        if(dropCounters.getTotal() != rejected)
+            fail(String.format("DropCounters counted %d of %d rejected datagrams", dropCounters.getTotal(), rejected));
+        System.out.println(String.format("%d mutated datagrams in %.1f s, %.0f ns each, %d rejected: %s",
+                iterations, elapsed / 1e9, elapsed / (double)iterations, rejected, dropCounters.toString()));
+
+        NatPunch natPunch = new NatPunch();
+        natPunch.setLogHandler(new SilentLogHandler());
+        natPunch.setNetworkLayer(new DiscardingNetworkLayer());
+        natPunch.setPacketEncoder(packetEncoders[1]);
+        natPunch.setPacketReceiver(new BasePacketReceiver(natPunch));
+        natPunch.startWorkerThread();
+        long handled = iterations / 5;
+        startTime = System.nanoTime();
+        fuzzHandler(natPunch, handled);
+        elapsed = System.nanoTime() - startTime;
+        natPunch.stopWorkerThread();
+        System.out.println(String.format("%d mutated datagrams handled in %.1f s, %.0f ns each, dropped: %s",
+                handled, elapsed / 1e9, elapsed / (double)Math.max(1, handled), natPunch.getDropCounters().toString()));
+        System.out.println(failures == 0 ? "PacketFuzzTest: passed" : String.format("PacketFuzzTest: %d failed", failures));
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,96 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.ReceiveWindow;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Checks duplicate detection of ReceiveWindow with the id patterns a sender numbering its guaranteed packets per
+ * endpoint produces: loss, reordering, wrap-around and new numberings. Exits with status 1 on the first failed check.
+ */
+public class ReceiveWindowTest {
+    private static int checks = 0;
+
+    private static void check(boolean condition, String description) {
+        ++checks;
+        if(!condition) {
+            System.out.println("FAILED: " + description);
+            System.exit(1);
+        }
+    }
+
+    public static void main(String []args) {
+        int size = ReceiveWindow.SIZE;
+
+        //  Packet 5 is lost and retransmitted after newer packets, up to the oldest id a sender still retransmits
+        ReceiveWindow window = new ReceiveWindow();
+        for(int id = 0; id < 10; ++id) {
+            if(id != 5)
+                check(window.receive(id), "first transmission of " + id + " is new");
+        }
+        for(int id = 10; id < 5 + size / 2; ++id)
+            check(window.receive(id), "id " + id + " is new");
+        check(!window.contains(5), "lost packet 5 wasn't received");
+        check(window.receive(5), "late retransmission of lost packet 5 is handled");
+        check(!window.receive(5), "second retransmission of packet 5 is a duplicate");
+        check(!window.receive(3), "retransmission of packet 3 is a duplicate");
+        check(!window.receive(5 + size / 2 - 1), "retransmission of the highest id is a duplicate");
+
+        //  Reordered packets ahead of the highest id are new, and duplicates once received
+        window = new ReceiveWindow();
+        check(window.receive(100), "id 100 is new");
+        check(window.receive(103), "id 103 ahead of the highest is new");
+        check(window.receive(101), "reordered id 101 is new");
+        check(!window.receive(103), "id 103 is a duplicate");
+        check(window.receive(102), "reordered id 102 is new");
+        check(!window.receive(101), "id 101 is a duplicate");
+
+        //  Sliding clears the bits the window moves over, ids a whole window apart share a bit
+        window = new ReceiveWindow();
+        check(window.receive(0), "id 0 is new");
+        check(window.receive(size - 1), "id " + (size - 1) + " is new");
+        check(window.receive(size + 1), "id " + (size + 1) + " is new");
+        check(!window.contains(1), "id 1 left the window");
+        check(window.receive(size), "id " + size + " sharing the bit of 0 is new");
+        check(!window.receive(size - 1), "id " + (size - 1) + " is still a duplicate after the slide");
+        check(window.receive(3 * size), "id " + 3 * size + " after a jump of more than the window is new");
+        check(window.receive(3 * size - 1), "id " + (3 * size - 1) + " behind the jump is new");
+        check(!window.contains(size + 1), "the jump cleared the window");
+
+        //  Ids wrap around
+        window = new ReceiveWindow();
+        for(int id = Integer.MAX_VALUE - 10; id != Integer.MIN_VALUE + 10; ++id) {
+            if(id != Integer.MAX_VALUE)
+                check(window.receive(id), "id " + id + " around the wrap is new");
+        }
+        check(window.getHighest() == Integer.MIN_VALUE + 9, "the highest id wrapped");
+        check(window.receive(Integer.MAX_VALUE), "lost id " + Integer.MAX_VALUE + " before the wrap is new");
+        check(!window.receive(Integer.MAX_VALUE - 1), "id " + (Integer.MAX_VALUE - 1) + " before the wrap is a duplicate");
+
+        //  A peer that recreated our endpoint numbers from a random id, further behind than the window is new
+        window = new ReceiveWindow();
+        for(int id = 1000000; id < 1000010; ++id)
+            window.receive(id);
+        check(window.receive(1000009 - size), "id a whole window behind the highest starts a new numbering");
+        check(window.getHighest() == 1000009 - size, "the new numbering moved the window");
+        check(window.receive(1000010 - size), "the new numbering goes on");
+        check(!window.receive(1000009 - size), "the new numbering detects duplicates");
+
+        //  A new incarnation of the peer starts over
+        window.reset();
+        check(!window.contains(1000010 - size), "reset forgets every id");
+        check(window.receive(1000010 - size), "an id is new after a reset");
+        check(window.receive(0), "id 0 is new after a reset");
+
+        System.out.println(String.format("ReceiveWindowTest: %d checks passed", checks));
+    }
+}
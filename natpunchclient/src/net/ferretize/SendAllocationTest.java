@@ -0,0 +1,94 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Checks that sending a packet that isn't kept for retransmission, from the worker thread, encodes into a
+ * pooled buffer without allocating. Counts the bytes the worker thread allocates over a warmed up send
+ * loop with com.sun.management.ThreadMXBean and exits with status 1 if any send allocated.
+ */
+public class SendAllocationTest {
+    final private static int WARMUP_SENDS = 200000;
+    final private static int SENDS = 200000;
+    final private static int BASE_PORT = 48000;
+
+    private static final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static int failures = 0;
+
+    public static void main(String []args) throws Exception {
+        if(!threadMXBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("SendAllocationTest: thread allocation counting is not supported by this JVM");
+            System.exit(1);
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : BASE_PORT;
+        check("v1 ACK", new BinaryPacketEncoder(), port, PacketData.acknowledge(1, 2, 0));
+        check("v1 1 KB", new BinaryPacketEncoder(), port + 1, new PacketData(0, 3, PacketEncoder.COMMAND_CUSTOM, new byte[][] {new byte[1000]}));
+        check("v2 1 KB", new CompactPacketEncoder(), port + 2, new PacketData(0, 4, PacketEncoder.COMMAND_CUSTOM, new byte[][] {new byte[1000]}));
+
+        System.out.println(failures == 0 ? "SendAllocationTest: passed" : String.format("SendAllocationTest: %d failed", failures));
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String description, PacketEncoder packetEncoder, int port, final PacketData packet) throws Exception {
+        final NatPunch natPunch = new NatPunch();
+        natPunch.setNetworkLayer(new NIONetworkLayer(InetAddress.getLoopbackAddress(), port));
+        natPunch.setPacketEncoder(packetEncoder);
+        final BasePacketReceiver packetReceiver = new BasePacketReceiver(natPunch);
+        //  Only encoding and sending are measured, not pacing
+        packetReceiver.setCongestionControl(false);
+        natPunch.setPacketReceiver(packetReceiver);
+        //  Nobody listens there, the datagrams are simply lost
+        final EndPoint endPoint = natPunch.getEndPointHandler().findOrAddEndPoint(InetAddress.getLoopbackAddress(), port + 100);
+        endPoint.protocolVersion = packetEncoder.getVersion();
+        natPunch.startWorkerThread();
+
+        final long []allocated = new long[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        //  Off the worker, sendPacket hands the packet over to it, so the loop runs on the worker
+        natPunch.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                long threadId = Thread.currentThread().getId();
+                for(int i = 0; i < WARMUP_SENDS; ++i) {
+                    packetReceiver.sendPacket(endPoint, packet);
+                    packetReceiver.flush();
+                }
+                long before = threadMXBean.getThreadAllocatedBytes(threadId);
+                for(int i = 0; i < SENDS; ++i) {
+                    packetReceiver.sendPacket(endPoint, packet);
+                    packetReceiver.flush();
+                }
+                allocated[0] = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+                done.countDown();
+            }
+        });
+        done.await();
+        natPunch.stopWorkerThread();
+
+        //  Any allocation is at least an object header, so less than a byte per send means none of them allocated
+        double perSend = allocated[0] / (double)SENDS;
+        boolean passed = allocated[0] < SENDS;
+        if(!passed)
+            ++failures;
+        System.out.println(String.format("%s %s: %d bytes over %d sends, %.2f per send", passed ? "ok" : "FAILED", description, allocated[0], SENDS, perSend));
+    }
+}
@@ -0,0 +1,126 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Measures how the throughput of a ShardedNatPunch scales with its worker threads. Clients on many source
+ * ports send guaranteed NOPs to a sharded introducer on loopback, one each per round, and count the
+ * acknowledgements that come back after a warmup. Runs 1, 2, 4 and 8 workers, or the counts given as
+ * arguments, and prints acknowledged NOPs per second and the speedup over the first count. The load comes
+ * from the same machine, so the numbers only mean something with more cores than workers plus LOADERS.
+ */
+public class ShardScalingBenchmark {
+    final private static int BASE_PORT = 48100;
+    final private static int CLIENTS = 256;
+    final private static int LOADERS = 2;
+    final private static long WARMUP_MILLIS = 500;
+    final private static long MEASURE_MILLIS = 3000;
+
+    public static void main(String []args) throws Exception {
+        int []workerCounts = {1, 2, 4, 8};
+        if(args.length > 0) {
+            workerCounts = new int[args.length];
+            for(int i = 0; i < args.length; ++i)
+                workerCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println(String.format("%d clients on %d loader threads, %d available processors",
+                CLIENTS, LOADERS, Runtime.getRuntime().availableProcessors()));
+        double baseline = 0;
+        for(int i = 0; i < workerCounts.length; ++i) {
+            double rate = run(workerCounts[i], BASE_PORT + i);
+            if(i == 0)
+                baseline = rate;
+            System.out.println(String.format("workers %d: %.0f acknowledged NOPs/s, %.2fx", workerCounts[i], rate, rate / baseline));
+        }
+        System.exit(0);
+    }
+
+    private static double run(int workerCount, int port) throws Exception {
+        final ShardedNatPunch introducer = new ShardedNatPunch(InetAddress.getLoopbackAddress(), port, workerCount);
+        for(NatPunch shard : introducer.getShards()) {
+            shard.setPacketEncoder(new CompactPacketEncoder());
+            shard.setPacketReceiver(new BasePacketReceiver(shard));
+        }
+        introducer.startWorkerThreads();
+
+        final InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        final AtomicLong acknowledged = new AtomicLong();
+        final long measureStart = System.currentTimeMillis() + WARMUP_MILLIS;
+        final long end = measureStart + MEASURE_MILLIS;
+        Thread []loaders = new Thread[LOADERS];
+        for(int i = 0; i < loaders.length; ++i) {
+            loaders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(target, CLIENTS / LOADERS, measureStart, end, acknowledged);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            loaders[i].start();
+        }
+        for(Thread loader : loaders)
+            loader.join();
+        introducer.stopWorkerThreads();
+        return acknowledged.get() * 1000.0 / MEASURE_MILLIS;
+    }
+
+    //  Each round sends one NOP from every client, then collects what came back within 2 ms
+    private static void load(InetSocketAddress target, int clientCount, long measureStart, long end, AtomicLong acknowledged) throws Exception {
+        CompactPacketEncoder packetEncoder = new CompactPacketEncoder();
+        DatagramChannel []clients = new DatagramChannel[clientCount];
+        Selector selector = Selector.open();
+        for(int i = 0; i < clients.length; ++i) {
+            clients[i] = DatagramChannel.open();
+            clients[i].bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            clients[i].configureBlocking(false);
+            clients[i].register(selector, SelectionKey.OP_READ);
+        }
+        int messageId = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        long timeNow;
+        while((timeNow = System.currentTimeMillis()) < end) {
+            byte []nop = packetEncoder.encode(new PacketData(PacketEncoder.FLAGS_GUARANTEED, messageId++, PacketEncoder.COMMAND_NOP, null));
+            for(DatagramChannel client : clients)
+                client.send(ByteBuffer.wrap(nop), target);
+            selector.select(2);
+            for(SelectionKey key : selector.selectedKeys()) {
+                DatagramChannel client = (DatagramChannel)key.channel();
+                buffer.clear();
+                while(client.receive(buffer) != null) {
+                    if(timeNow >= measureStart)
+                        acknowledged.incrementAndGet();
+                    buffer.clear();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        for(DatagramChannel client : clients)
+            client.close();
+        selector.close();
+    }
+}
@@ -5,8 +5,9 @@ import net.ferretize.libnatpunch.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The MIT License (MIT)
@@ -24,93 +25,91 @@ public class TestPacketReceiver extends BasePacketReceiver {
 
     private Runtime runtime = Runtime.getRuntime();
 
-    public TestPacketReceiver(NatPunch natPunch) {
-        super(natPunch);
-    }
+    //  Taking a picture forks processes and waits for the file, so it runs off the worker thread, one at a time
+    private final Executor imageExecutor = CommandExecutors.newBoundedPool("image", 1, 4);
 
-    @Override
-    public boolean handlePacket(EndPointHandler endPointHandler, EndPoint endPoint, PacketData packet) {
-        if(super.handlePacket(endPointHandler, endPoint, packet))
-            return true;
-
-        if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART)) {
-            PacketHandler.HandledPacket parentPacket = acknowledgedPacketHandler.findPacket(endPoint, packet.parentMessageId);
-         //   natPunch.getLogHandler().info(String.format("Looking for parent %d", packet.parentMessageId));
-            if (parentPacket != null) {
-                switch (parentPacket.packet.command) {
-                    case PacketEncoder.COMMAND_RESPONSE: {
-                        if (parentPacket.packet.getArgumentCount() == 0)
-                            break;
-
-                        byte responseCommand = ByteBuffer.wrap(parentPacket.packet.getArgument(0)).get();
-
-                        switch (responseCommand) {
-                            case COMMAND_IMAGE: {
-                       //         long t1 = new Date().getTime();
-                                PacketData[] packetParts = acknowledgedPacketHandler.findPacketParts(endPoint, parentPacket.packet.messageId);
-                     //           long t2 = new Date().getTime();
-
-                                if (packetParts != null) {
-                                    //packetParts = PacketData.sortParts(packetParts);
-
-                                    int bufferLength = 0;
-                                    for (PacketData part : packetParts) {
-                                        bufferLength += part.getArgument(0).length;
-                                    }
-
-                                    ByteBuffer buf = ByteBuffer.allocate(bufferLength);
-                                    int bufferPosition = 0;
-                                    for (PacketData part : packetParts) {
-                                        buf.position(bufferPosition);
-                                        buf.put(part.getArgument(0));
-                                        bufferPosition += part.getArgument(0).length;
-                                  //      natPunch.getLogHandler().info(String.format("\t\t%d %d bytes, %s MD5 %s", part.partIndex, part.getArgument(0).length, MD5.hex(part.getArgument(0), 0, 1), MD5.hash(part.getArgument(0))));
-                                  //      natPunch.getLogHandler().info(String.format("\t\t%d %s", part.partIndex, MD5.hex(part.getArgument(0), 0, 20)));
-                                    }
-
-//                                    long t3 = new Date().getTime();
-                               //     natPunch.getLogHandler().info(String.format("Find %d ms\nMemory %d ms", t2 - t1, t3 - t2));
-//                                    natPunch.getLogHandler().info(String.format("\t\t%d bytes, MD5 %s", bufferLength, MD5.hash(buf.array())));
-                                }
-                                //natPunch.getLogHandler().info(String.format("Received %d/%d parts", packetParts.length, packet.partCount));
-                            }
-                        }
+    //  Sends an image every 100 ms until continuousImagesUntil
+    private class ImageTimer extends TimerWheel.Timer {
+        final EndPoint endPoint;
+        long continuousImagesUntil;
+
+        ImageTimer(EndPoint endPoint) {
+            this.endPoint = endPoint;
+        }
+
+        @Override
+        protected void expired(long timeNow) {
+            if(timeNow >= continuousImagesUntil)
+                return;
+            try {
+                imageExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendImage(endPoint);
                     }
-                    break;
-                }
+                });
+            }
+            catch(RejectedExecutionException e) {
+                //  The camera is behind, skip this image
             }
-            return true;
+            natPunch.getTimerWheel().schedule(this, timeNow + 100);
         }
+    }
 
-        switch (packet.command) {
-            case COMMAND_IMAGE_CONTINUOUS:
-            {
-                endPoint.setAttribute(0, new Date().getTime() + 10000);
-                endPoint.setAttribute(1, (long)0);
-            }
-            break;
-            case COMMAND_IMAGE:
-            {
+    public TestPacketReceiver(NatPunch natPunch) {
+        super(natPunch);
+
+        //  A subscriber that falls behind gets the newest images, older ones are dropped instead of piling up
+        setSendBudget(DEFAULT_MAX_QUEUED_BYTES, 512 * 1024);
+        setBackpressure(BACKPRESSURE_DROP_OLDEST);
+
+        setCommandHandler(COMMAND_IMAGE, new CommandHandler() {
+            @Override
+            public void handleCommand(EndPoint endPoint, PacketData packet) {
                 sendImage(endPoint);
             }
+        }, imageExecutor);
+
+        setCommandHandler(COMMAND_IMAGE_CONTINUOUS, new CommandHandler() {
+            @Override
+            public void handleCommand(EndPoint endPoint, PacketData packet) {
+                ImageTimer timer = (ImageTimer)endPoint.getAttribute(0);
+                if(timer == null) {
+                    timer = new ImageTimer(endPoint);
+                    endPoint.setAttribute(0, timer);
+                }
+                long timeNow = new Date().getTime();
+                timer.continuousImagesUntil = timeNow + 10000;
+                natPunch.getTimerWheel().schedule(timer, timeNow);
+            }
+        });
+    }
+
+    @Override
+    public void multipartReceived(EndPoint endPoint, PacketData parent, ByteBuffer data) {
+        if(parent.command != PacketEncoder.COMMAND_RESPONSE || parent.getArgumentCount() == 0)
+            return;
+
+        byte responseCommand = ByteBuffer.wrap(parent.getArgument(0)).get();
+
+        switch (responseCommand) {
+            case COMMAND_IMAGE: {
+//                natPunch.getLogHandler().info(String.format("\t\t%d bytes", data.remaining()));
+            }
             break;
         }
-        return false;
     }
 
     @Override
-    public void update(long timeNow) {
-        super.update(timeNow);
-
-        for(EndPoint endPoint : natPunch.getEndPointHandler().getEndPoints()) {
-            long continuousImagesUntil = (long)endPoint.getAttribute(0, (long)0);
-            if(continuousImagesUntil > timeNow) {
-                long lastImage = (long)endPoint.getAttribute(1, (long)0);
-                if((timeNow - lastImage) > 100) {
-                    endPoint.setAttribute(1, timeNow);
-                    sendImage(endPoint);
-                }
+    public void messageReceived(EndPoint endPoint, ByteBuffer data) {
+        if(!data.hasRemaining())
+            return;
+
+        switch (data.get(data.position())) {
+            case COMMAND_IMAGE: {
+//                natPunch.getLogHandler().info(String.format("\t\t%d bytes", data.remaining() - 1));
             }
+            break;
         }
     }
 
@@ -187,32 +186,12 @@ public class TestPacketReceiver extends BasePacketReceiver {
         long t3 = new Date().getTime();
 
         if(data != null) {
-            final int partSize = 1000;
-            int partCount = (int) Math.ceil(1.0 * dataLength / partSize);
-            int partIndex = 0;
-            int messageId = getAndIncrementNextMessageId();
-
-            PacketData parentPacket = PacketData.multipart(PacketEncoder.FLAGS_GUARANTEED, messageId, partCount, PacketEncoder.COMMAND_RESPONSE,
-                    new byte[][] {
-                            new byte[]{COMMAND_IMAGE}
-                    });
-
-            natPunch.getPacketReceiver().sendPacketDelayed(endPoint, parentPacket);
-
-            for(int p = 0; partIndex < partCount; ++partIndex) {
-                int partLength = Math.min(partSize, dataLength - p);
-                byte []partData = Arrays.copyOfRange(data, p, p + partLength);
-                p += partLength;
-                //natPunch.getLogHandler().info(String.format("\t\t%d %s", partIndex, MD5.hex(partData, 0, 20)));
-                //             natPunch.getLogHandler().info(String.format("\t\t%d %d bytes, %s MD5 %s", partIndex, partData.length, MD5.hex(partData, 0, 1), MD5.hash(partData)));
-
-                natPunch.getPacketReceiver().sendPacketDelayed(endPoint,
-                        PacketData.part(0, natPunch.getPacketReceiver().getAndIncrementNextMessageId(),
-                                messageId, partIndex,
-                                new byte[][] {
-                                        partData
-                                }));
-            }
+            ByteBuffer message = ByteBuffer.allocate(dataLength + 1);
+            message.put(COMMAND_IMAGE);
+            message.put(data, 0, dataLength);
+            message.flip();
+            //  Called on the image executor, sendMessage hands the message over to the worker thread
+            natPunch.getPacketReceiver().sendMessage(endPoint, message);
 
             long t4 = new Date().getTime();
       //      natPunch.getLogHandler().info(String.format("Camera %d ms\tIO %d ms\tMemory %d ms", t2 - t1, t3 - t2, t4 - t3));
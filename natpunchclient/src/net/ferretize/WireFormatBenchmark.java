@@ -0,0 +1,130 @@
+package net.ferretize;
+
+import net.ferretize.libnatpunch.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Compares the v1 (BinaryPacketEncoder) and v2 (CompactPacketEncoder) wire formats on the packets that make up
+ * most of the traffic. Prints the bytes each takes and the ns per encode into a buffer, per readPacket into a
+ * PacketView, which is how NatPunch reads them, and per copying decode, each the best of REPEATS runs.
+ */
+public class WireFormatBenchmark {
+    final private static int ITERATIONS = 1000000;
+    //  Each timing is the best of this many runs, so a GC or a recompile in one of them doesn't count
+    final private static int REPEATS = 5;
+    //  Message ids of a session that has been up for a while
+    final private static int MESSAGE_ID = 1234567;
+
+    //  Keeps the JIT from dropping the loops
+    private static long sink = 0;
+
+    private static PacketData[] packets() {
+        byte []id = new byte[16];
+        byte []ipv4 = {(byte)192, (byte)168, 1, 20};
+        EndPoint endPoint = new EndPoint();
+        endPoint.id = id;
+        endPoint.externalPort = 51234;
+        endPoint.localPort = 51234;
+        return new PacketData[] {
+                new PacketData(0, MESSAGE_ID, PacketEncoder.COMMAND_NOP, null),
+                PacketData.acknowledge(MESSAGE_ID, MESSAGE_ID - 3, 0),
+                PacketData.acknowledgeBatch(MESSAGE_ID, MESSAGE_ID - 40, new byte[4], MESSAGE_ID - 2, 0, 5),
+                PacketData.part(PacketEncoder.FLAGS_GUARANTEED, MESSAGE_ID, MESSAGE_ID - 12, 11, new byte[][] {new byte[64]}),
+                PacketData.part(PacketEncoder.FLAGS_GUARANTEED, MESSAGE_ID, MESSAGE_ID - 12, 11, new byte[][] {new byte[1000]}),
+                PacketData.messageFragment(MESSAGE_ID, 77, 20000, 1000, 12, new byte[1000]),
+                PacketData.register(MESSAGE_ID, id, ipv4, 51234, CompactPacketEncoder.VERSION, PacketEncoder.CAPABILITIES),
+                PacketData.hello(MESSAGE_ID, endPoint, CompactPacketEncoder.VERSION, PacketEncoder.CAPABILITIES)
+        };
+    }
+
+    private static String describe(PacketData packet) {
+        if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART))
+            return String.format("part of %d bytes", packet.getArgument(0).length);
+        switch(packet.command) {
+            case PacketEncoder.COMMAND_NOP: return "NOP";
+            case PacketEncoder.COMMAND_ACKNOWLEDGE: return "ACK";
+            case PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH: return "ACK batch";
+            case PacketEncoder.COMMAND_MESSAGE: return "message fragment";
+            case PacketEncoder.COMMAND_REGISTER: return "REGISTER";
+            case PacketEncoder.COMMAND_HELLO: return "HELLO";
+        }
+        return String.valueOf(packet.command);
+    }
+
+    public static void main(String []args) {
+        PacketEncoder []packetEncoders = {new BinaryPacketEncoder(), new CompactPacketEncoder()};
+        PacketData []packets = packets();
+
+        //  The first rounds warm up, until the loops of every packet and encoder are compiled
+        for(int round = 0; round < 3; ++round) {
+            for(PacketData packet : packets) {
+                for(PacketEncoder packetEncoder : packetEncoders)
+                    measure(packetEncoder, packet, ITERATIONS / 4);
+            }
+        }
+
+        System.out.println(String.format("%-20s %12s %12s %12s %12s %12s %12s %12s %12s",
+                "", "v1 bytes", "v2 bytes", "v1 encode", "v2 encode", "v1 read", "v2 read", "v1 decode", "v2 decode"));
+        for(PacketData packet : packets) {
+            double [][]results = new double[packetEncoders.length][];
+            for(int repeat = 0; repeat < REPEATS; ++repeat) {
+                for(int i = 0; i < packetEncoders.length; ++i) {
+                    double []result = measure(packetEncoders[i], packet, ITERATIONS);
+                    if(results[i] == null)
+                        results[i] = result;
+                    for(int j = 0; j < result.length; ++j)
+                        results[i][j] = Math.min(results[i][j], result[j]);
+                }
+            }
+            System.out.println(String.format("%-20s %12.0f %12.0f %9.1f ns %9.1f ns %9.1f ns %9.1f ns %9.1f ns %9.1f ns",
+                    describe(packet), results[0][0], results[1][0], results[0][1], results[1][1],
+                    results[0][2], results[1][2], results[0][3], results[1][3]));
+        }
+        if(sink == 42)
+            System.out.println();
+        System.exit(0);
+    }
+
+    //  Returns the encoded size of packet and the ns per encode, readPacket and decode
+    private static double[] measure(PacketEncoder packetEncoder, PacketData packet, int iterations) {
+        byte []encoded = packetEncoder.encode(packet);
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length);
+        PacketView view = new PacketView();
+
+        long startTime = System.nanoTime();
+        for(int i = 0; i < iterations; ++i) {
+            buffer.clear();
+            sink += packetEncoder.encode(packet, buffer);
+        }
+        long encodeTime = System.nanoTime() - startTime;
+
+        ByteBuffer data = ByteBuffer.wrap(encoded);
+        data.position(encoded.length);
+        startTime = System.nanoTime();
+        for(int i = 0; i < iterations; ++i) {
+            sink += packetEncoder.readPacket(data, 0, view);
+            sink += view.getMessageId();
+        }
+        long readTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for(int i = 0; i < iterations; ++i)
+            sink += packetEncoder.decode(encoded).messageId;
+        long decodeTime = System.nanoTime() - startTime;
+
+        return new double[] {encoded.length, encodeTime / (double)iterations, readTime / (double)iterations, decodeTime / (double)iterations};
+    }
+}
@@ -0,0 +1,127 @@
+package net.ferretize.libnatpunch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Collects the messageIds to acknowledge per endpoint and turns them into ACKNOWLEDGE_BATCH packets,
+ * each holding a base messageId and a bitmap of the ids following it.
+ */
+public class AckAggregator {
+    final public static int MAX_BITMAP_BYTES = 64;
+    final public static int MAX_PENDING = MAX_BITMAP_BYTES * 8;
+
+    public interface FlushListener {
+        /**
+         * Called on the worker thread when the oldest acknowledgement pending for endPoint has waited the delay.
+         */
+        void acknowledgementsDue(EndPoint endPoint);
+    }
+
+    //  Also the timer that flushes them once the first has waited the delay
+    private class PendingAcks extends TimerWheel.Timer {
+        final EndPoint endPoint;
+        int []messageIds = new int[16];
+        int count;
+        int latestMessageId, latestRetryCount;
+        long timeLatestNanos;
+
+        PendingAcks(EndPoint endPoint) {
+            this.endPoint = endPoint;
+        }
+
+        @Override
+        protected void expired(long timeNow) {
+            flushListener.acknowledgementsDue(endPoint);
+        }
+    }
+
+    private final HashMap<EndPoint, PendingAcks> pending;
+    private final TimerWheel timerWheel;
+    private final FlushListener flushListener;
+
+    public AckAggregator(TimerWheel timerWheel, FlushListener flushListener) {
+        this.pending = new HashMap<>();
+        this.timerWheel = timerWheel;
+        this.flushListener = flushListener;
+    }
+
+    /**
+     * Queues an acknowledgement, to be flushed delay ms after the first one pending for the endpoint at the latest.
+     * Returns true if the endpoint has so many pending that it should be flushed now.
+     */
+    public synchronized boolean add(EndPoint endPoint, int messageId, int retryCount, long timeNow, long delay) {
+        PendingAcks acks = pending.get(endPoint);
+        if(acks == null) {
+            acks = new PendingAcks(endPoint);
+            pending.put(endPoint, acks);
+            timerWheel.schedule(acks, timeNow + delay);
+        }
+        if(acks.count == acks.messageIds.length)
+            acks.messageIds = Arrays.copyOf(acks.messageIds, acks.count * 2);
+        acks.messageIds[acks.count++] = messageId;
+        acks.latestMessageId = messageId;
+        acks.latestRetryCount = retryCount;
+        acks.timeLatestNanos = System.nanoTime();
+        return acks.count >= MAX_PENDING;
+    }
+
+    public synchronized boolean hasPending(EndPoint endPoint) {
+        return pending.containsKey(endPoint);
+    }
+
+    public synchronized void remove(EndPoint endPoint) {
+        PendingAcks acks = pending.remove(endPoint);
+        if(acks != null)
+            timerWheel.cancel(acks);
+    }
+
+    /**
+     * Takes everything pending for the endpoint and builds the batch packets acknowledging it, or returns null.
+     */
+    public PacketData[] flush(EndPoint endPoint, PacketReceiver packetReceiver) {
+        PendingAcks acks;
+        synchronized (this) {
+            acks = pending.remove(endPoint);
+        }
+        if(acks == null)
+            return null;
+        timerWheel.cancel(acks);
+
+        int []messageIds = Arrays.copyOf(acks.messageIds, acks.count);
+        Arrays.sort(messageIds);
+        int delay = (int)Math.min(0xFFFF, (System.nanoTime() - acks.timeLatestNanos) / 1000000);
+
+        ArrayList<PacketData> packets = new ArrayList<>();
+        int i = 0;
+        while(i < messageIds.length) {
+            int baseId = messageIds[i];
+            byte []bitmap = new byte[MAX_BITMAP_BYTES];
+            int highestBit = 0;
+            for(; i < messageIds.length; ++i) {
+                int bit = messageIds[i] - baseId;
+                if(bit >= MAX_BITMAP_BYTES * 8)
+                    break;
+                bitmap[bit >>> 3] |= 1 << (bit & 7);
+                highestBit = bit;
+            }
+            packets.add(PacketData.acknowledgeBatch(packetReceiver.getAndIncrementNextMessageId(),
+                    baseId, Arrays.copyOf(bitmap, (highestBit >>> 3) + 1),
+                    acks.latestMessageId, acks.latestRetryCount, delay));
+        }
+        return packets.toArray(new PacketData[0]);
+    }
+}
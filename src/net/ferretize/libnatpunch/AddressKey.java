@@ -0,0 +1,55 @@
+package net.ferretize.libnatpunch;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class AddressKey {
+    //  IPv4 address and port packed as (address << 16) | port
+    private final long packed;
+    //  Only set for IPv6 addresses, which don't fit in packed
+    private final byte []address6;
+    private final int hash;
+
+    private AddressKey(long packed, byte []address6) {
+        this.packed = packed;
+        this.address6 = address6;
+        this.hash = address6 == null ? Long.hashCode(packed) : 31 * Arrays.hashCode(address6) + (int)packed;
+    }
+
+    public static AddressKey of(InetAddress address, int port) {
+        if(address == null)
+            return null;
+        if(address instanceof Inet4Address) {
+            byte []a = address.getAddress();
+            long ip = ((a[0] & 0xFFL) << 24) | ((a[1] & 0xFFL) << 16) | ((a[2] & 0xFFL) << 8) | (a[3] & 0xFFL);
+            return new AddressKey((ip << 16) | (port & 0xFFFF), null);
+        }
+        return new AddressKey(port & 0xFFFF, address.getAddress());
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof AddressKey))
+            return false;
+        AddressKey other = (AddressKey)o;
+        return packed == other.packed && Arrays.equals(address6, other.address6);
+    }
+}
@@ -1,10 +1,26 @@
 package net.ferretize.libnatpunch;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * The MIT License (MIT)
@@ -16,76 +32,531 @@ import java.util.ArrayList;
  * <p>
  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
-public class BasePacketReceiver implements PacketReceiver {
+public class BasePacketReceiver implements PacketReceiver, MultipartListener, PacketHandler.RetryListener, AckAggregator.FlushListener {
     protected NatPunch natPunch;
-    private int nextMessageId = 0;
+    //  Taken by the worker and application threads alike
+    private final AtomicInteger nextMessageId = new AtomicInteger();
 
-    protected final PacketHandler sentPacketHandler, acknowledgedPacketHandler;
+    protected final PacketHandler sentPacketHandler;
+    protected final MultipartReassembler multipartReassembler;
+    protected final AckAggregator ackAggregator;
+    //  Direct buffers that packets which aren't kept for retransmission are encoded into
+    protected final BufferPool sendBufferPool;
+    final public static int SEND_BUFFER_SIZE = 2048;
+    //  Endpoints the worker thread collected frames for in EndPoint.pendingDatagram, sent together by flush().
+    //  A list rather than a map, so coalescing allocates nothing once it has grown
+    private final ArrayList<EndPoint> pendingDatagramEndPoints = new ArrayList<>();
+    final public static int DEFAULT_MAX_DATAGRAM_SIZE = 1400;
+
+    //  Datagrams the network layer didn't take because the socket's send buffer was full, sent again in order by
+    //  flush(). At most MAX_BLOCKED_DATAGRAMS are kept, none longer than MAX_BLOCKED_TIME ms. Worker thread only
+    private final ArrayDeque<BlockedDatagram> blockedDatagrams = new ArrayDeque<>();
+    final public static int MAX_BLOCKED_DATAGRAMS = 256;
+    final public static long MAX_BLOCKED_TIME = 200;
+
+    private static class BlockedDatagram {
+        final InetSocketAddress address;
+        final ByteBuffer data;
+        final long time;
+
+        BlockedDatagram(InetSocketAddress address, ByteBuffer data, long time) {
+            this.address = address;
+            this.data = data;
+            this.time = time;
+        }
+    }
+
+    private volatile boolean coalescing = true;
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+    public boolean getCoalescing() {
+        return coalescing;
+    }
+
+    private volatile int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        this.maxDatagramSize = Math.min(maxDatagramSize, SEND_BUFFER_SIZE);
+    }
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    //  Arguments of packets to endpoints that can decompress them are compressed from this many bytes on, 0 turns it off
+    private volatile int compressionThreshold = PacketCompressor.DEFAULT_THRESHOLD;
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    //  When set, endpoints without an encrypted session are only heard for the handshake
+    private volatile boolean requireEncryption = false;
+    public void setRequireEncryption(boolean requireEncryption) {
+        this.requireEncryption = requireEncryption;
+    }
+    public boolean getRequireEncryption() {
+        return requireEncryption;
+    }
+
+    //  For endpoints that haven't announced the version of natPunch's encoder
+    protected final PacketEncoder versionOneEncoder = new BinaryPacketEncoder();
+    //  Packets from sendPacketDelayed, released by update() as each endpoint's congestion window and pacer allow
+    protected final HashMap<EndPoint, ArrayDeque<PacketData>> sendQueues;
+
+    private volatile boolean congestionControl = true;
+    public void setCongestionControl(boolean congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+    public boolean getCongestionControl() {
+        return congestionControl;
+    }
+
+    //  Endpoints whose path MTU is being probed. Guarded by sentPacketHandler
+    private final HashSet<EndPoint> probingEndPoints = new HashSet<>();
+
+    //  What sendPacketDelayed and sendMessage do when a packet doesn't fit the send budget
+    final public static int BACKPRESSURE_BLOCK = 0;
+    final public static int BACKPRESSURE_FAIL = 1;
+    final public static int BACKPRESSURE_DROP_OLDEST = 2;
+
+    final public static long DEFAULT_MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+    final public static long DEFAULT_MAX_QUEUED_BYTES_PER_END_POINT = 8 * 1024 * 1024;
+    //  Counted for every queued packet on top of its arguments, roughly what the objects around them take
+    final public static int QUEUED_PACKET_OVERHEAD = 64;
+    final public static long DEFAULT_BLOCK_TIMEOUT = 10000;
+    //  How often a sender blocked on the budget checks that the worker thread still runs, in ms
+    final private static long BLOCK_CHECK_INTERVAL = 100;
+    //  Minimum lengths of the arguments the handlers read as numbers, by command, 0 for ones read as bytes
+    final private static int []ACKNOWLEDGE_SIZES = {4, 4};
+    final private static int []ACKNOWLEDGE_BATCH_SIZES = {4, 0, 4, 1, 2};
+    final private static int []MESSAGE_SIZES = {4, 4, 2, 4, 0};
+    final private static int []MTU_PROBE_SIZES = {2};
+    final private static int []SUBCOMMAND_SIZES = {1};
+
+    //  Bytes waiting in send queues, or on their way there through the submission ring
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong(), droppedCount = new AtomicLong();
+    private final Object budgetLock = new Object();
+    private volatile int budgetWaiters = 0;
+
+    private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private volatile long maxQueuedBytesPerEndPoint = DEFAULT_MAX_QUEUED_BYTES_PER_END_POINT;
+    /**
+     * Limits the bytes queued by sendPacketDelayed and sendMessage and not sent yet, in total and per endpoint.
+     * 0 disables a limit. Packets already sent are bounded by congestion control, so they don't count.
+     */
+    public void setSendBudget(long maxQueuedBytes, long maxQueuedBytesPerEndPoint) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxQueuedBytesPerEndPoint = maxQueuedBytesPerEndPoint;
+    }
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+    public long getMaxQueuedBytesPerEndPoint() {
+        return maxQueuedBytesPerEndPoint;
+    }
+
+    /**
+     * One of BACKPRESSURE_. BLOCK waits for room up to the block timeout and while the worker thread runs, on the
+     * worker thread it can't wait and fails instead. FAIL returns false. DROP_OLDEST queues anyway, then drops the
+     * oldest application messages queued for the endpoint until it is within its budget, and those of the fullest
+     * queues while the total is over. When that isn't enough the new packets are dropped too. Protocol packets
+     * are never dropped.
+     */
+    private volatile int backpressure = BACKPRESSURE_BLOCK;
+    public void setBackpressure(int backpressure) {
+        this.backpressure = backpressure;
+    }
+    public int getBackpressure() {
+        return backpressure;
+    }
+
+    //  Longest BACKPRESSURE_BLOCK waits for room before failing, in ms. 0 waits as long as the worker thread runs
+    private volatile long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    //  Guaranteed packets sent for the first time, sent again, and acknowledged. Guarded by sentPacketHandler
+    private long sentCount, retransmitCount, acknowledgedCount;
+
+    //  Application commands by command byte, see setCommandHandler
+    private final AtomicReferenceArray<CommandRegistration> commandHandlers = new AtomicReferenceArray<>(256);
+
+    private static class CommandRegistration {
+        final CommandHandler handler;
+        final Executor executor;
+
+        CommandRegistration(CommandHandler handler, Executor executor) {
+            this.handler = handler;
+            this.executor = executor;
+        }
+    }
+
+    //  When above 0, acknowledgements are held back up to this many ms and sent as ACKNOWLEDGE_BATCH
+    private volatile long ackDelay = 0;
+    public void setAckDelay(long ackDelay) {
+        this.ackDelay = ackDelay;
+    }
+    public long getAckDelay() {
+        return ackDelay;
+    }
 
     public BasePacketReceiver(NatPunch natPunch) {
         this.natPunch = natPunch;
-        sentPacketHandler = new PacketHandler();
-        acknowledgedPacketHandler = new PacketHandler();
+        sentPacketHandler = new PacketHandler(natPunch.getTimerWheel(), this);
+        multipartReassembler = new MultipartReassembler(this, natPunch.getTimerWheel());
+        sendBufferPool = new BufferPool(SEND_BUFFER_SIZE, 16, true);
+        ackAggregator = new AckAggregator(natPunch.getTimerWheel(), this);
+        sendQueues = new HashMap<>();
+
+        natPunch.getEndPointHandler().addEvictionListener(new EndPointEvictionListener() {
+            @Override
+            public void endPointEvicted(EndPoint endPoint) {
+                synchronized (sentPacketHandler) {
+                    sentPacketHandler.removePackets(endPoint);
+                    ArrayDeque<PacketData> queue = sendQueues.remove(endPoint);
+                    if(queue != null) {
+                        for(PacketData packet : queue)
+                            releaseQueued(endPoint, packet);
+                    }
+                    probingEndPoints.remove(endPoint);
+                }
+                multipartReassembler.removeTransfers(endPoint);
+                ackAggregator.remove(endPoint);
+            }
+        });
     }
 
     @Override
     public int getAndIncrementNextMessageId() {
-        return nextMessageId++;
+        return nextMessageId.getAndIncrement();
     }
 
+    /**
+     * Entry point for received packets. Acknowledgements, NOPs, multipart parts and message fragments, which
+     * make up most of the traffic, are handled straight from the receive buffer. Every other packet is copied out and
+     * passed to handlePacket(EndPointHandler, EndPoint, PacketData).
+     */
     @Override
-    public boolean handlePacket(EndPointHandler endPointHandler, EndPoint endPoint, PacketData packet) {
-    //    natPunch.getLogHandler().info(String.format("Received %s from %s", packet.toString(), endPoint.toString()));
+    public boolean handlePacket(EndPointHandler endPointHandler, EndPoint endPoint, PacketView packet) {
+        if(!packet.isEncrypted() && !acceptPlaintext(endPoint, packet)) {
+            natPunch.getDropCounters().drop(DropCounters.PLAINTEXT);
+            return true;
+        }
+
+        byte command = packet.getCommand();
+        boolean isPart = packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART);
+        if((!isPart && command != PacketEncoder.COMMAND_NOP && command != PacketEncoder.COMMAND_ACKNOWLEDGE
+                && command != PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH && command != PacketEncoder.COMMAND_MESSAGE)
+                || packet.hasFlag(PacketEncoder.FLAGS_COMPRESSED))
+            return handlePacket(endPointHandler, endPoint, packet.toPacketData());
+
+        if(!isPart && !hasValidArguments(packet)) {
+            natPunch.getDropCounters().drop(DropCounters.MALFORMED);
+            return true;
+        }
 
-        if (packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED)) {
-            PacketHandler.HandledPacket handledPacket = acknowledgedPacketHandler.findPacket(endPoint, packet.messageId);
-            PacketData ackPacket = PacketData.acknowledge(getAndIncrementNextMessageId(), packet.messageId, packet.retryCount);
-            boolean shouldHandlePacket = false;
-            if(handledPacket == null) {
-              //  natPunch.getLogHandler().info(String.format("%s not found", packet.toString()));
-                shouldHandlePacket = true;
-                handledPacket = new PacketHandler.HandledPacket(endPoint, packet);
-                acknowledgedPacketHandler.addPacket(handledPacket);
-            }
-            else if(packet.retryCount == 0) {
-                //  The packet has been sent again. Could be because the endpoint has restarted.
-                shouldHandlePacket = true;
-                handledPacket.packet = packet;
+        if(packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED) && !receiveGuaranteed(endPoint, command, packet.getMessageId(), packet.getRetryCount(), null))
+            return true;
+
+        if(isPart) {
+            multipartReassembler.handlePart(endPoint, packet, new Date().getTime());
+            return true;
+        }
+        if(command == PacketEncoder.COMMAND_MESSAGE) {
+            multipartReassembler.handleFragment(endPoint, packet, new Date().getTime());
+            return true;
+        }
+
+        switch(command) {
+            case PacketEncoder.COMMAND_ACKNOWLEDGE:
+            {
+                if(packet.getArgumentCount() < 2)
+                    break;
+
+                synchronized (sentPacketHandler) {
+                    acknowledged(endPoint, packet.getArgumentInt(0), packet.getArgumentInt(1), 0);
+                }
             }
-            sendPacket(endPoint, ackPacket);
+            break;
+            case PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH:
+            {
+                if(packet.getArgumentCount() < 5)
+                    break;
 
-            if(!shouldHandlePacket) {
-      //          natPunch.getLogHandler().info(String.format("Already handled %s", packet.toString()));
-                return true;
+                acknowledgedBatch(endPoint, packet.getArgumentInt(0),
+                        packet.getBuffer(), packet.getArgumentOffset(1), packet.getArgumentLength(1),
+                        packet.getArgumentInt(2),
+                        packet.getArgumentByte(3),
+                        packet.getArgumentShort(4) & 0xFFFF);
             }
+            break;
         }
-        else if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART) || packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART)) {
-            acknowledgedPacketHandler.addPacket(new PacketHandler.HandledPacket(endPoint, packet));
+        return false;
+    }
+
+    /**
+     * Returns true if a frame that arrived in plaintext may be handled. Once an endpoint has shown it holds
+     * our key it has to encrypt everything but the handshake, which carries the keys.
+     */
+    protected boolean acceptPlaintext(EndPoint endPoint, PacketView packet) {
+        if(isHandshake(packet.getCommand(), packet.getArgumentCount() > 0 ? packet.getArgumentByte(0) : -1))
+            return true;
+        PacketCipher.Session session = endPoint.session;
+        if(session != null && session.isEstablished())
+            return false;
+        if(!requireEncryption)
+            return true;
+        //  The endpoint acknowledges our handshake before it has the keys to encrypt
+        return packet.getCommand() == PacketEncoder.COMMAND_ACKNOWLEDGE || packet.getCommand() == PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH;
+    }
+
+    /**
+     * Reads the address in argument index of packet, null if it is empty, missing or neither IPv4 nor IPv6.
+     * hasValidArguments drops packets with malformed addresses before they get here.
+     */
+    protected static InetAddress getAddressArgument(PacketData packet, int index) {
+        byte []argument = packet.getArgument(index);
+        if(argument == null || argument.length == 0)
+            return null;
+        try {
+            return InetAddress.getByAddress(argument);
+        } catch (UnknownHostException e) {
+            return null;
         }
+    }
 
-    /*    if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART)) {
+    //  Reads the port in argument index of packet, -1 if it is missing or malformed like getAddressArgument
+    protected static int getPortArgument(PacketData packet, int index) {
+        return isPortArgument(packet, index) ? ByteBuffer.wrap(packet.getArgument(index)).getInt() : -1;
+    }
 
-            PacketData []packetParts = acknowledgedPacketHandler.findPacketParts(endPoint, packet.messageId);
-            if(packetParts.length == packet.partCount) {
-                packetParts = PacketData.sortParts(packetParts);
+    //  An address argument has to be empty, IPv4 or IPv6, a port argument 4 bytes from 0 to 0xFFFF
+    private static boolean isAddressArgument(PacketData packet, int index) {
+        byte []argument = packet.getArgument(index);
+        return argument == null || argument.length == 0 || argument.length == 4 || argument.length == 16;
+    }
 
-                int bufferLength = 0;
-                for(PacketData part : packetParts) {
-                    bufferLength += part.getArgument(0).length;
-                }
+    private static boolean isPortArgument(PacketData packet, int index) {
+        byte []argument = packet.getArgument(index);
+        return argument != null && argument.length == 4 && (ByteBuffer.wrap(argument).getInt() & ~0xFFFF) == 0;
+    }
 
-                ByteBuffer buf = ByteBuffer.allocate(bufferLength);
-                int bufferPosition = 0;
-                for(PacketData part : packetParts) {
-                    buf.position(bufferPosition);
-                    buf.put(part.getArgument(0));
-                    bufferPosition += part.getArgument(0).length;
-                    natPunch.getLogHandler().info(String.format("\t\t%d %d bytes, MD5 %s", part.partIndex, part.getArgument(0).length, MD5.hash(part.getArgument(0))));
+    private static boolean isEndPointArguments(PacketData packet, int index) {
+        return isAddressArgument(packet, index) && isPortArgument(packet, index + 1);
+    }
+
+    //  Returns the minimum argument lengths of command, null for the commands without a fixed layout
+    private static int[] getArgumentSizes(byte command) {
+        switch(command) {
+            case PacketEncoder.COMMAND_ACKNOWLEDGE: return ACKNOWLEDGE_SIZES;
+            case PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH: return ACKNOWLEDGE_BATCH_SIZES;
+            case PacketEncoder.COMMAND_MESSAGE: return MESSAGE_SIZES;
+            case PacketEncoder.COMMAND_MTU_PROBE:
+            case PacketEncoder.COMMAND_MTU_PROBE_ACK: return MTU_PROBE_SIZES;
+            case PacketEncoder.COMMAND_SHOW:
+            case PacketEncoder.COMMAND_RESPONSE: return SUBCOMMAND_SIZES;
+        }
+        return null;
+    }
+
+    /**
+     * Returns false if the handler of packet's command can't read the arguments it reads: a number too short, an
+     * address neither empty, IPv4 nor IPv6, or a port not 4 bytes up to 0xFFFF. Those are dropped and counted as
+     * DropCounters.MALFORMED, so nothing a peer sends makes handling throw. Handlers skip packets with fewer
+     * arguments than they need, so only the arguments of packets they handle are checked.
+     */
+    protected static boolean hasValidArguments(PacketView packet) {
+        int []sizes = getArgumentSizes(packet.getCommand());
+        if(sizes == null || packet.getArgumentCount() < sizes.length)
+            return true;
+        for(int i = 0; i < sizes.length; ++i) {
+            if(packet.getArgumentLength(i) < sizes[i])
+                return false;
+        }
+        return true;
+    }
+
+    protected static boolean hasValidArguments(PacketData packet) {
+        int count = packet.getArgumentCount();
+        int []sizes = getArgumentSizes(packet.command);
+        if(sizes != null && count >= sizes.length) {
+            for(int i = 0; i < sizes.length; ++i) {
+                if(packet.getArgument(i).length < sizes[i])
+                    return false;
+            }
+        }
+
+        switch(packet.command) {
+            case PacketEncoder.COMMAND_REGISTER:
+                return count < 3 || isEndPointArguments(packet, 1);
+            case PacketEncoder.COMMAND_GREET:
+            case PacketEncoder.COMMAND_HELLO:
+                return count < 5 || (isEndPointArguments(packet, 1) && isEndPointArguments(packet, 3));
+            case PacketEncoder.COMMAND_RESPONSE:
+            {
+                if(count < 1)
+                    return true;
+                byte []status = packet.getArgument(1);
+                switch(packet.getArgument(0)[0]) {
+                    case PacketEncoder.COMMAND_REGISTER:
+                        return status != null && status.length > 0 && (status[0] != 1 || isEndPointArguments(packet, 2));
+                    case PacketEncoder.COMMAND_PUNCH:
+                        return count < 2 || (status.length > 0
+                                && (status[0] != 1 || count < 7 || (isEndPointArguments(packet, 3) && isEndPointArguments(packet, 5))));
+                    case PacketEncoder.COMMAND_SHOW:
+                    {
+                        if(status == null || status.length == 0)
+                            return false;
+                        for(int i = 2; i <= count - 5; i += 5) {
+                            if(!isEndPointArguments(packet, i + 1) || !isEndPointArguments(packet, i + 3))
+                                return false;
+                        }
+                    }
+                    break;
                 }
-                natPunch.getLogHandler().info(String.format("\t\t%d bytes, MD5 %s", bufferLength, MD5.hash(buf.array())));
             }
-            //natPunch.getLogHandler().info(String.format("Received %d/%d parts", packetParts.length, packet.partCount));
-        }*/
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * REGISTER, its response, HELLO and REREGISTER are sent in plaintext, the others to endpoints we share a session with encrypted.
+     */
+    protected static boolean isHandshake(byte command, byte firstArgument) {
+        switch(command) {
+            case PacketEncoder.COMMAND_REGISTER:
+            case PacketEncoder.COMMAND_REREGISTER:
+            case PacketEncoder.COMMAND_HELLO:
+                return true;
+            case PacketEncoder.COMMAND_RESPONSE:
+                return firstArgument == PacketEncoder.COMMAND_REGISTER;
+        }
+        return false;
+    }
+
+    protected static boolean isHandshake(PacketData packet) {
+        byte []firstArgument = packet.getArgument(0);
+        return isHandshake(packet.command, firstArgument != null && firstArgument.length > 0 ? firstArgument[0] : -1);
+    }
+
+    /**
+     * Sets up the session with endPoint for the public key it sent with its incarnation, or the introducer vouched
+     * for without one. Returns false if the key is refused: invalid, or different from one the introducer vouched for.
+     */
+    protected boolean acceptPublicKey(EndPoint endPoint, byte []publicKey, byte []incarnation, boolean vouched) {
+        PacketCipher packetCipher = natPunch.getPacketCipher();
+        if(packetCipher == null || publicKey == null || publicKey.length == 0)
+            return true;
+        PacketCipher.Session session = endPoint.session;
+        boolean sameKey = session != null && Arrays.equals(session.getPeerPublicKey(), publicKey);
+        if(sameKey) {
+            if(vouched)
+                session.vouched = true;
+            if(incarnation == null || Arrays.equals(session.getPeerIncarnation(), incarnation))
+                return true;
+        }
+        else if(session != null && session.isVouched() && !vouched)
+            return false;
+
+        //  Established again only once a datagram from the endpoint decrypts under the new keys
+        PacketCipher.Session newSession = packetCipher.createSession(publicKey, natPunch.getIncarnation(), incarnation);
+        if(newSession == null)
+            return false;
+        newSession.vouched = vouched || sameKey && session.isVouched();
+        endPoint.session = newSession;
+        return true;
+    }
+
+    /**
+     * Returns true if the introducer endPoint shares an established session with us, so the keys it passes on can be trusted.
+     */
+    protected boolean isTrusted(EndPoint endPoint) {
+        PacketCipher.Session session = endPoint.session;
+        return session != null && session.isEstablished();
+    }
+
+    /**
+     * Returns the incarnation a handshake announces, null for other packets and peers that don't send one.
+     */
+    protected static byte[] getIncarnation(PacketData packet) {
+        byte []incarnation = null;
+        switch(packet.command) {
+            case PacketEncoder.COMMAND_REGISTER:
+                incarnation = packet.getArgument(6);
+                break;
+            case PacketEncoder.COMMAND_REREGISTER:
+                incarnation = packet.getArgument(0);
+                break;
+            case PacketEncoder.COMMAND_HELLO:
+                incarnation = packet.getArgument(8);
+                break;
+            case PacketEncoder.COMMAND_RESPONSE:
+                if(isHandshake(packet))
+                    incarnation = packet.getArgument(7);
+                break;
+        }
+        return incarnation != null && incarnation.length > 0 ? incarnation : null;
+    }
+
+    /**
+     * Runs duplicate detection for a guaranteed packet and acknowledges it. Returns false if it was handled before.
+     * incarnation is what the packet announces if it is a handshake, see getIncarnation.
+     */
+    protected boolean receiveGuaranteed(EndPoint endPoint, byte command, int messageId, byte retryCount, byte []incarnation) {
+        boolean shouldHandlePacket;
+        synchronized (endPoint.receiveWindow) {
+            if(incarnation != null) {
+                //  A new incarnation counts its message ids from 0 again, a retransmission of the same one changes nothing
+                if(endPoint.peerIncarnation != null && !Arrays.equals(incarnation, endPoint.peerIncarnation))
+                    endPoint.receiveWindow.reset();
+                endPoint.peerIncarnation = incarnation;
+            }
+            else if(endPoint.peerIncarnation == null && retryCount == 0 && (command == PacketEncoder.COMMAND_REGISTER
+                    || command == PacketEncoder.COMMAND_REREGISTER || command == PacketEncoder.COMMAND_HELLO)) {
+                //  Peers that don't announce incarnations may have restarted whenever they send a new handshake
+                endPoint.receiveWindow.reset();
+            }
+            shouldHandlePacket = endPoint.receiveWindow.receive(messageId);
+        }
+        acknowledge(endPoint, messageId, retryCount);
+        return shouldHandlePacket;
+    }
+
+    @Override
+    public boolean handlePacket(EndPointHandler endPointHandler, EndPoint endPoint, PacketData packet) {
+    //    natPunch.getLogHandler().info(String.format("Received %s from %s", packet.toString(), endPoint.toString()));
+
+        if(packet.hasFlag(PacketEncoder.FLAGS_COMPRESSED) && !PacketCompressor.decompress(packet)) {
+            natPunch.getDropCounters().drop(DropCounters.COMPRESSED);
+            return true;
+        }
+
+        if(!packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART) && !hasValidArguments(packet)) {
+            natPunch.getDropCounters().drop(DropCounters.MALFORMED);
+            return true;
+        }
+
+        if(packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED)
+                && !receiveGuaranteed(endPoint, packet.command, packet.messageId, packet.retryCount, getIncarnation(packet)))
+            return true;
+
+        if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART)) {
+            multipartReassembler.handlePart(endPoint, packet, new Date().getTime());
+            return true;
+        }
+        if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART))
+            multipartReassembler.handleParent(endPoint, packet, new Date().getTime());
+
+        if((packet.command & 0xFF) >= PacketEncoder.COMMAND_CUSTOM && dispatchCommand(endPoint, packet))
+            return true;
 
         switch(packet.command) {
             case PacketEncoder.COMMAND_REGISTER:
@@ -93,32 +564,14 @@ public class BasePacketReceiver implements PacketReceiver {
                 if(packet.getArgumentCount() < 3)
                     break;
 
-                byte []id = packet.getArgument(0);
-
-                EndPoint otherEp = endPointHandler.findEndPoint(id);
-                if(otherEp != null && !otherEp.equals(endPoint))
-                    endPointHandler.removeEndPoint(otherEp);
-                endPoint.id = id;
-                try {
-                    endPoint.localAddress = InetAddress.getByAddress(packet.getArgument(1));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-                endPoint.localPort = ByteBuffer.wrap(packet.getArgument(2)).getInt();
-                endPoint.keepAlive = true;
-
-                sendPacket(endPoint, PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(),
-                            PacketEncoder.COMMAND_REGISTER,
-                            new byte[][] {
-                                new byte[]{1},
-                                endPoint.externalAddress.getAddress(),
-                                ByteBuffer.allocate(4).putInt(endPoint.externalPort).array()
-                            }
-                        ));
+                checkRegister(findShard(endPointHandler, packet.getArgument(0)), endPointHandler, endPoint, packet, endPoint.toString());
             }
             break;
             case PacketEncoder.COMMAND_REREGISTER:
             {
+                //  Only a node with an introducer registers, the introducer itself has nowhere to
+                if(endPointHandler.getIntroducerEndPoint() == null)
+                    break;
                 if(natPunch.getId() != null)
                     natPunch.getLogHandler().info(String.format("Registering again"));
                     sendPacket(
@@ -126,7 +579,9 @@ public class BasePacketReceiver implements PacketReceiver {
                             PacketData.register(getAndIncrementNextMessageId(),
                                     natPunch.getId(),
                                     natPunch.getNetworkLayer().getLocalAddress().getAddress(),
-                                    natPunch.getNetworkLayer().getLocalPort())
+                                    natPunch.getNetworkLayer().getLocalPort(),
+                                    natPunch.getPacketEncoder().getVersion(),
+                                    PacketEncoder.CAPABILITIES).appendHandshake(natPunch.getPublicKey(), natPunch.getIncarnation())
                     );
             }
             break;
@@ -134,36 +589,16 @@ public class BasePacketReceiver implements PacketReceiver {
             {
                 if(endPoint.id == null) {
                     natPunch.getLogHandler().info(String.format("Sending re-register"));
-                    sendPacket(endPoint, PacketData.reRegister(getAndIncrementNextMessageId()));
+                    sendPacket(endPoint, PacketData.reRegister(getAndIncrementNextMessageId()).appendArgument(natPunch.getIncarnation()));
                     return true;
                 }
 
                 if(packet.getArgumentCount() == 0)
                     break;
 
-                EndPoint otherEndPoint = endPointHandler.findEndPoint(packet.getArgument(0));
-                if(otherEndPoint != null) {
-                    natPunch.getLogHandler().info(String.format("Punching %s for %s", otherEndPoint.toString(), endPoint.toString()));
-                    //  Found endpoint for punch target
-                    //  Send greet message to target and return target information
-                    sendPacket(otherEndPoint, PacketData.greet(getAndIncrementNextMessageId(), endPoint));
-                    sendPacket(endPoint, PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(), PacketEncoder.COMMAND_PUNCH, new byte[][] {
-                            new byte[] {1},
-                            otherEndPoint.id,
-                            otherEndPoint.externalAddress.getAddress(),
-                            ByteBuffer.allocate(4).putInt(otherEndPoint.externalPort).array(),
-                            otherEndPoint.localAddress.getAddress(),
-                            ByteBuffer.allocate(4).putInt(otherEndPoint.localPort).array()
-                    }));
-                }
-                else {
-                    natPunch.getLogHandler().info(String.format("Punch target %s not found", MD5.hex(packet.getArgument(0))));
-                    //  Punch target not found
-                    sendPacket(endPoint, PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(), PacketEncoder.COMMAND_PUNCH, new byte[][] {
-                            new byte[] {0},
-                            packet.getArgument(0)
-                    }));
-                }
+                //  The greet is built here, from our endpoint, and the answer where the target is
+                punch(findShard(endPointHandler, packet.getArgument(0)), endPoint, packet.getArgument(0), PacketData.greet(0, endPoint)
+                        .appendArgument(endPoint.session != null ? endPoint.session.getPeerPublicKey() : null));
             }
             break;
             case PacketEncoder.COMMAND_GREET:
@@ -172,36 +607,20 @@ public class BasePacketReceiver implements PacketReceiver {
                     break;
 
                 byte []id = packet.getArgument(0);
-                InetAddress externalAddress = null;
-                try {
-                    externalAddress = InetAddress.getByAddress(packet.getArgument(1));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-                int externalPort = ByteBuffer.wrap(packet.getArgument(2)).getInt();
+                InetAddress externalAddress = getAddressArgument(packet, 1);
+                int externalPort = getPortArgument(packet, 2);
 
-                InetAddress localAddress = null;
-                try {
-                    localAddress = InetAddress.getByAddress(packet.getArgument(3));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-                int localPort = ByteBuffer.wrap(packet.getArgument(4)).getInt();
+                InetAddress localAddress = getAddressArgument(packet, 3);
+                int localPort = getPortArgument(packet, 4);
 
-                EndPoint newEndPoint = endPointHandler.findEndPoint(id);
-                if(newEndPoint == null) {
-                    newEndPoint = new EndPoint();
-                    newEndPoint.id = id;
-                    endPointHandler.addEndPoint(newEndPoint);
-                }
-                newEndPoint.externalAddress = externalAddress;
-                newEndPoint.externalPort = externalPort;
-                newEndPoint.localAddress = localAddress;
-                newEndPoint.localPort = localPort;
+                EndPoint newEndPoint = endPointHandler.updateEndPoint(id, externalAddress, externalPort, localAddress, localPort);
+                if(isTrusted(endPoint))
+                    acceptPublicKey(newEndPoint, packet.getArgument(5), null, true);
 
                 natPunch.getLogHandler().info(String.format("Sending hello to %s", newEndPoint.toString()));
 
-                sendPacket(newEndPoint, PacketData.hello(getAndIncrementNextMessageId(), natPunch.getLocalEndPoint()));
+                sendPacket(newEndPoint, PacketData.hello(getAndIncrementNextMessageId(), natPunch.getLocalEndPoint(),
+                        natPunch.getPacketEncoder().getVersion(), PacketEncoder.CAPABILITIES).appendHandshake(natPunch.getPublicKey(), natPunch.getIncarnation()));
             }
             break;
             case PacketEncoder.COMMAND_HELLO:
@@ -211,33 +630,28 @@ public class BasePacketReceiver implements PacketReceiver {
                     break;
 
                 byte []id = packet.getArgument(0);
-                InetAddress externalAddress = null;
-                try {
-                    externalAddress = InetAddress.getByAddress(packet.getArgument(1));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-                int externalPort = ByteBuffer.wrap(packet.getArgument(2)).getInt();
+                InetAddress externalAddress = getAddressArgument(packet, 1);
+                int externalPort = getPortArgument(packet, 2);
 
-                InetAddress localAddress = null;
-                try {
-                    localAddress = InetAddress.getByAddress(packet.getArgument(3));
-                } catch (UnknownHostException e) {
-                    e.printStackTrace();
-                }
-                int localPort = ByteBuffer.wrap(packet.getArgument(4)).getInt();
+                InetAddress localAddress = getAddressArgument(packet, 3);
+                int localPort = getPortArgument(packet, 4);
 
-                EndPoint newEndPoint = endPointHandler.findEndPoint(id);
-                if(newEndPoint == null) {
-                    newEndPoint = new EndPoint();
-                    newEndPoint.id = id;
-                    endPointHandler.addEndPoint(newEndPoint);
+                //  Don't let a HELLO with another key move an endpoint whose key the introducer vouched for
+                EndPoint knownEndPoint = endPointHandler.findEndPoint(id);
+                PacketCipher.Session knownSession = knownEndPoint != null ? knownEndPoint.session : null;
+                byte []publicKey = packet.getArgument(7);
+                if(knownSession != null && knownSession.isVouched()
+                        && (publicKey == null || !Arrays.equals(publicKey, knownSession.getPeerPublicKey()))) {
+                    natPunch.getLogHandler().info(String.format("Ignoring HELLO from %s with another key", endPoint.toString()));
+                    break;
                 }
-                newEndPoint.externalAddress = externalAddress;
-                newEndPoint.externalPort = externalPort;
-                newEndPoint.localAddress = localAddress;
-                newEndPoint.localPort = localPort;
-                newEndPoint.keepAlive = true;
+
+                EndPoint newEndPoint = endPointHandler.updateEndPoint(id, externalAddress, externalPort, localAddress, localPort);
+                if(!acceptPublicKey(newEndPoint, publicKey, getIncarnation(packet), false))
+                    break;
+                natPunch.keepAlive(newEndPoint);
+                negotiateVersion(newEndPoint, packet.getArgument(5));
+                negotiateCapabilities(newEndPoint, packet.getArgument(6));
             }
             break;
             case PacketEncoder.COMMAND_ACKNOWLEDGE:
@@ -246,20 +660,46 @@ public class BasePacketReceiver implements PacketReceiver {
                     break;
 
                 int acknowledgedMessageId = ByteBuffer.wrap(packet.getArgument(0)).getInt();
-                byte retryCount = ByteBuffer.wrap(packet.getArgument(1)).get();
+                int retryCount = ByteBuffer.wrap(packet.getArgument(1)).getInt();
 
                 synchronized (sentPacketHandler) {
-                    PacketHandler.HandledPacket ackHandledPacket = sentPacketHandler.findPacket(endPoint, acknowledgedMessageId);
-                    if (ackHandledPacket != null) {
-               //         natPunch.getLogHandler().info(String.format("%s acknowledged #%d after %d tries (we sent %d)", endPoint.toString(), ackHandledPacket.packet.messageId, retryCount + 1, ackHandledPacket.retryCount + 1));
-                        if (!ackHandledPacket.packet.hasFlag(PacketEncoder.FLAGS_MULTIPART))
-                            sentPacketHandler.removePacket(endPoint, acknowledgedMessageId);
-                    }
-                //    else
-                    //      natPunch.getLogHandler().info(String.format("#%d not found in sent", acknowledgedMessageId));
+                    acknowledged(endPoint, acknowledgedMessageId, retryCount, 0);
                 }
             }
             break;
+            case PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH:
+            {
+                if(packet.getArgumentCount() < 5)
+                    break;
+
+                byte []bitmap = packet.getArgument(1);
+                acknowledgedBatch(endPoint, ByteBuffer.wrap(packet.getArgument(0)).getInt(),
+                        ByteBuffer.wrap(bitmap), 0, bitmap.length,
+                        ByteBuffer.wrap(packet.getArgument(2)).getInt(),
+                        packet.getArgument(3)[0],
+                        ByteBuffer.wrap(packet.getArgument(4)).getShort() & 0xFFFF);
+            }
+            break;
+            case PacketEncoder.COMMAND_MESSAGE:
+                multipartReassembler.handleFragment(endPoint, packet, new Date().getTime());
+                return true;
+            case PacketEncoder.COMMAND_MTU_PROBE:
+            {
+                if(packet.getArgumentCount() < 1)
+                    break;
+
+                sendPacket(endPoint, PacketData.mtuProbeAcknowledge(getAndIncrementNextMessageId(),
+                        ByteBuffer.wrap(packet.getArgument(0)).getShort() & 0xFFFF));
+            }
+            break;
+            case PacketEncoder.COMMAND_MTU_PROBE_ACK:
+            {
+                if(packet.getArgumentCount() < 1)
+                    break;
+
+                endPoint.pathMtu.probeAcknowledged(ByteBuffer.wrap(packet.getArgument(0)).getShort() & 0xFFFF);
+            }
+            break;
             case PacketEncoder.COMMAND_SHOW:
             {
                 if(packet.getArgumentCount() == 0)
@@ -272,12 +712,15 @@ public class BasePacketReceiver implements PacketReceiver {
                     {
                         ArrayList<byte[]> args = new ArrayList<>();
                         args.add(new byte[]{PacketEncoder.COMMAND_SHOW_ENDPOINTS});
-                        for(EndPoint ep : endPointHandler.getEndPoints()) {
+                        for(EndPoint ep : getAllEndPoints(endPointHandler)) {
+                            //  Endpoints we only know the address of aren't registered
+                            if(ep.id == null)
+                                continue;
                             args.add(ep.id);
-                            args.add(ep.externalAddress.getAddress());
-                            args.add(ByteBuffer.allocate(4).putInt(ep.externalPort).array());
-                            args.add(ep.localAddress.getAddress());
-                            args.add(ByteBuffer.allocate(4).putInt(ep.localPort).array());
+                            args.add(PacketData.addressArgument(ep.externalAddress));
+                            args.add(PacketData.intArgument(ep.externalPort));
+                            args.add(PacketData.addressArgument(ep.localAddress));
+                            args.add(PacketData.intArgument(ep.localPort));
                         }
                         sendPacket(endPoint, PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(), PacketEncoder.COMMAND_SHOW, args.toArray(new byte[0][])));
                     }
@@ -297,15 +740,13 @@ public class BasePacketReceiver implements PacketReceiver {
                     {
                         byte responseStatus = ByteBuffer.wrap(packet.getArgument(1)).get();
                         if(responseStatus == 1) {
-                            InetAddress externalAddress = null;
-                            try {
-                                externalAddress = InetAddress.getByAddress(ByteBuffer.wrap(packet.getArgument(2)).array());
-                            } catch (UnknownHostException e) {
-                                e.printStackTrace();
-                            }
-                            int externalPort = ByteBuffer.wrap(packet.getArgument(3)).getInt();
+                            InetAddress externalAddress = getAddressArgument(packet, 2);
+                            int externalPort = getPortArgument(packet, 3);
 
                             natPunch.setExternalAddress(externalAddress, externalPort);
+                            negotiateVersion(endPoint, packet.getArgument(4));
+                            negotiateCapabilities(endPoint, packet.getArgument(5));
+                            acceptPublicKey(endPoint, packet.getArgument(6), getIncarnation(packet), false);
                             natPunch.getLogHandler().info(String.format("Registered successfully. External address %s:%d", externalAddress != null ? externalAddress.getHostAddress() : "null", externalPort));
                         }
                     }
@@ -317,39 +758,23 @@ public class BasePacketReceiver implements PacketReceiver {
 
                         byte responseStatus = ByteBuffer.wrap(packet.getArgument(1)).get();
                         if(responseStatus == 1) {
-                            if(packet.getArgumentCount() >= 6) {
+                            if(packet.getArgumentCount() >= 7) {
                                 byte []id = packet.getArgument(2);
-                                InetAddress externalAddress = null;
-                                try {
-                                    externalAddress = InetAddress.getByAddress(packet.getArgument(3));
-                                } catch (UnknownHostException e) {
-                                    e.printStackTrace();
-                                }
-                                int externalPort = ByteBuffer.wrap(packet.getArgument(4)).getInt();
+                                InetAddress externalAddress = getAddressArgument(packet, 3);
+                                int externalPort = getPortArgument(packet, 4);
 
-                                InetAddress localAddress = null;
-                                try {
-                                    localAddress = InetAddress.getByAddress(packet.getArgument(5));
-                                } catch (UnknownHostException e) {
-                                    e.printStackTrace();
-                                }
-                                int localPort = ByteBuffer.wrap(packet.getArgument(6)).getInt();
+                                InetAddress localAddress = getAddressArgument(packet, 5);
+                                int localPort = getPortArgument(packet, 6);
 
-                                EndPoint newEndPoint = endPointHandler.findEndPoint(id);
-                                if(newEndPoint == null) {
-                                    newEndPoint = new EndPoint();
-                                    newEndPoint.id = id;
-                                    endPointHandler.addEndPoint(newEndPoint);
-                                }
-                                newEndPoint.externalAddress = externalAddress;
-                                newEndPoint.externalPort = externalPort;
-                                newEndPoint.localAddress = localAddress;
-                                newEndPoint.localPort = localPort;
+                                EndPoint newEndPoint = endPointHandler.updateEndPoint(id, externalAddress, externalPort, localAddress, localPort);
+                                if(isTrusted(endPoint))
+                                    acceptPublicKey(newEndPoint, packet.getArgument(7), null, true);
 
                                 //natPunch.getLogHandler().info(String.format("Punch ok %s", newEndPoint.toString()));
 
                                 sendPacket(newEndPoint,
-                                        PacketData.hello(getAndIncrementNextMessageId(), natPunch.getLocalEndPoint()));
+                                        PacketData.hello(getAndIncrementNextMessageId(), natPunch.getLocalEndPoint(),
+                                                natPunch.getPacketEncoder().getVersion(), PacketEncoder.CAPABILITIES).appendHandshake(natPunch.getPublicKey(), natPunch.getIncarnation()));
                             }
                         }
                         else {
@@ -367,21 +792,11 @@ public class BasePacketReceiver implements PacketReceiver {
                               //  int endPointCount = (int) Math.floor((packet.getArgumentCount() - 2) / 5);
                                 for(int i = 2; i <= packet.getArgumentCount() - 5; i += 5) {
                                     byte []id = packet.getArgument(i);
-                                    InetAddress externalAddress = null;
-                                    try {
-                                        externalAddress = InetAddress.getByAddress(packet.getArgument(i + 1));
-                                    } catch (UnknownHostException e) {
-                                        e.printStackTrace();
-                                    }
-                                    int externalPort = ByteBuffer.wrap(packet.getArgument(i + 2)).getInt();
-
-                                    InetAddress localAddress = null;
-                                    try {
-                                        localAddress = InetAddress.getByAddress(packet.getArgument(i + 3));
-                                    } catch (UnknownHostException e) {
-                                        e.printStackTrace();
-                                    }
-                                    int localPort = ByteBuffer.wrap(packet.getArgument(i + 4)).getInt();
+                                    InetAddress externalAddress = getAddressArgument(packet, i + 1);
+                                    int externalPort = getPortArgument(packet, i + 2);
+
+                                    InetAddress localAddress = getAddressArgument(packet, i + 3);
+                                    int localPort = getPortArgument(packet, i + 4);
 
                                     natPunch.getLogHandler().info(String.format("Endpoint %s %s:%d %s:%d",
                                             new String(id, StandardCharsets.ISO_8859_1),
@@ -402,57 +817,1039 @@ public class BasePacketReceiver implements PacketReceiver {
         return false;
     }
 
+    /**
+     * Handles command, which has to be PacketEncoder.COMMAND_CUSTOM or above, with handler on executor, or on the
+     * worker thread when executor is null. Core protocol commands are always handled inline. Guaranteed packets
+     * are acknowledged when they arrive, so a command dropped because executor was full is not sent again.
+     */
+    public void setCommandHandler(int command, CommandHandler handler, Executor executor) {
+        if(command < PacketEncoder.COMMAND_CUSTOM || command > 0xFF)
+            throw new IllegalArgumentException("Only commands from COMMAND_CUSTOM to 255 can have handlers");
+        commandHandlers.set(command, handler != null ? new CommandRegistration(handler, executor) : null);
+    }
+
+    public void setCommandHandler(int command, CommandHandler handler) {
+        setCommandHandler(command, handler, null);
+    }
+
+    /**
+     * Passes packet to the handler registered for its command. Returns false when there is none.
+     */
+    protected boolean dispatchCommand(final EndPoint endPoint, final PacketData packet) {
+        final CommandRegistration registration = commandHandlers.get(packet.command & 0xFF);
+        if(registration == null)
+            return false;
+        if(registration.executor == null) {
+            registration.handler.handleCommand(endPoint, packet);
+            return true;
+        }
+        try {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        registration.handler.handleCommand(endPoint, packet);
+                    }
+                    catch(RuntimeException e) {
+                        long count = natPunch.getDropCounters().drop(DropCounters.HANDLER);
+                        if(Long.bitCount(count) == 1)
+                            natPunch.getLogHandler().warning(String.format("Command handler failed on %s from %s: %s (%d so far)", packet, endPoint, e, count));
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            natPunch.getDropCounters().drop(DropCounters.BUSY);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the NatPunch the endpoint with id is registered on: ours, or another shard when we are one.
+     * Falls back to ours when nobody has the id.
+     */
+    protected NatPunch findShard(EndPointHandler endPointHandler, byte []id) {
+        ShardedNatPunch shards = natPunch.getShards();
+        if(shards == null || endPointHandler.findEndPoint(id) != null)
+            return natPunch;
+        NatPunch owner = shards.findShard(id);
+        return owner != null ? owner : natPunch;
+    }
+
+    /**
+     * Returns the endpoints of all shards when we are one, only ours otherwise.
+     */
+    protected Collection<EndPoint> getAllEndPoints(EndPointHandler endPointHandler) {
+        ShardedNatPunch shards = natPunch.getShards();
+        if(shards == null)
+            return endPointHandler.getEndPoints();
+        ArrayList<EndPoint> endPoints = new ArrayList<>();
+        for(NatPunch shard : shards.getShards())
+            endPoints.addAll(shard.getEndPointHandler().getEndPoints());
+        return endPoints;
+    }
+
+    /**
+     * First half of a REGISTER from endPoint, run on the worker thread of owner, the shard holding the endpoint
+     * registered with the id, which owns its fields: checks the key of that endpoint, then hands over to
+     * register on our worker thread. from describes endPoint for the log.
+     */
+    protected void checkRegister(final NatPunch owner, final EndPointHandler endPointHandler, final EndPoint endPoint,
+                                 final PacketData packet, final String from) {
+        if(!owner.isWorkerThread()) {
+            owner.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    checkRegister(owner, endPointHandler, endPoint, packet, from);
+                }
+            });
+            return;
+        }
+
+        final EndPoint otherEp = owner.getEndPointHandler().findEndPoint(packet.getArgument(0));
+        if(otherEp != null && !otherEp.equals(endPoint)) {
+            //  While registered, an id belongs to the key it registered with
+            byte []publicKey = packet.getArgument(5);
+            if(otherEp.session != null && (publicKey == null || !Arrays.equals(publicKey, otherEp.session.getPeerPublicKey()))) {
+                natPunch.getLogHandler().info(String.format("Ignoring REGISTER from %s for the id of %s with another key", from, otherEp.toString()));
+                return;
+            }
+        }
+        if(owner == natPunch) {
+            register(owner, endPointHandler, endPoint, packet, otherEp);
+            return;
+        }
+        natPunch.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                register(owner, endPointHandler, endPoint, packet, otherEp);
+            }
+        });
+    }
+
+    /**
+     * Registers endPoint with the id of packet on our worker thread, evicting otherEp of owner that held the id.
+     */
+    protected void register(NatPunch owner, EndPointHandler endPointHandler, EndPoint endPoint, PacketData packet, EndPoint otherEp) {
+        if(!acceptPublicKey(endPoint, packet.getArgument(5), getIncarnation(packet), false))
+            return;
+        if(otherEp != null && !otherEp.equals(endPoint))
+            evict(owner, otherEp);
+        endPoint.id = packet.getArgument(0);
+        endPoint.localAddress = getAddressArgument(packet, 1);
+        endPoint.localPort = getPortArgument(packet, 2);
+        natPunch.keepAlive(endPoint);
+        endPointHandler.reindexEndPoint(endPoint);
+        negotiateVersion(endPoint, packet.getArgument(3));
+        negotiateCapabilities(endPoint, packet.getArgument(4));
+
+        sendPacket(endPoint, PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(),
+                    PacketEncoder.COMMAND_REGISTER,
+                    new byte[][] {
+                        new byte[]{1},
+                        endPoint.externalAddress.getAddress(),
+                        PacketData.intArgument(endPoint.externalPort),
+                        new byte[]{(byte)natPunch.getPacketEncoder().getVersion()},
+                        new byte[]{PacketEncoder.CAPABILITIES}
+                    }
+                ).appendHandshake(natPunch.getPublicKey(), natPunch.getIncarnation()));
+    }
+
+    /**
+     * Answers a PUNCH from endPoint for the endpoint with targetId on the worker thread of owner, the shard holding
+     * it, which owns its fields, message ids and keys: sends it greet, built from endPoint on our worker thread, and
+     * returns its addresses and key to endPoint, which our worker thread sends.
+     */
+    protected void punch(final NatPunch owner, final EndPoint endPoint, final byte []targetId, final PacketData greet) {
+        if(!owner.isWorkerThread()) {
+            owner.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    punch(owner, endPoint, targetId, greet);
+                }
+            });
+            return;
+        }
+
+        PacketData response;
+        EndPoint otherEndPoint = owner.getEndPointHandler().findEndPoint(targetId);
+        if(otherEndPoint != null) {
+            natPunch.getLogHandler().info(String.format("Punching %s for %s", otherEndPoint.toString(), MD5.hex(greet.getArgument(0))));
+            //  Found endpoint for punch target
+            //  Send greet message to target and return target information
+            PacketReceiver packetReceiver = owner.getPacketReceiver();
+            greet.messageId = packetReceiver.getAndIncrementNextMessageId();
+            packetReceiver.sendPacket(otherEndPoint, greet);
+            response = PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(), PacketEncoder.COMMAND_PUNCH, new byte[][] {
+                    new byte[] {1},
+                    otherEndPoint.id,
+                    PacketData.addressArgument(otherEndPoint.externalAddress),
+                    PacketData.intArgument(otherEndPoint.externalPort),
+                    PacketData.addressArgument(otherEndPoint.localAddress),
+                    PacketData.intArgument(otherEndPoint.localPort)
+            }).appendArgument(otherEndPoint.session != null ? otherEndPoint.session.getPeerPublicKey() : null);
+        }
+        else {
+            natPunch.getLogHandler().info(String.format("Punch target %s not found", MD5.hex(targetId)));
+            //  Punch target not found
+            response = PacketData.response(PacketEncoder.FLAGS_GUARANTEED, getAndIncrementNextMessageId(), PacketEncoder.COMMAND_PUNCH, new byte[][] {
+                    new byte[] {0},
+                    targetId
+            });
+        }
+        //  Handed to our worker thread when owner is another shard
+        sendPacket(endPoint, response);
+    }
+
+    /**
+     * Evicts target, which may belong to another shard, on the worker thread of owner so its eviction listeners
+     * release what that shard holds for it.
+     */
+    protected void evict(final NatPunch owner, final EndPoint target) {
+        if(owner == natPunch) {
+            owner.getEndPointHandler().evictEndPoint(target);
+            return;
+        }
+        owner.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                owner.getEndPointHandler().evictEndPoint(target);
+            }
+        });
+    }
+
+    /**
+     * Handles an ACKNOWLEDGE_BATCH: the latest packet and the bitmap of bitmapLength bytes at bitmapOffset of buffer.
+     */
+    protected void acknowledgedBatch(EndPoint endPoint, int baseId, ByteBuffer buffer, int bitmapOffset, int bitmapLength,
+                                     int latestMessageId, int latestRetryCount, int delay) {
+        synchronized (sentPacketHandler) {
+            //  Sample RTT first, before the packet is removed
+            acknowledged(endPoint, latestMessageId, latestRetryCount, delay);
+            for(int i = 0; i < bitmapLength * 8; ++i) {
+                if((buffer.get(bitmapOffset + (i >>> 3)) & (1 << (i & 7))) != 0)
+                    acknowledged(endPoint, baseId + i, -1, 0);
+            }
+        }
+    }
+
+    /**
+     * Handles the acknowledgement of one of our packets. retryCount is the echoed retry count, -1 if
+     * unknown, and delay how long the peer held the ACK back before sending it.
+     */
+    protected void acknowledged(EndPoint endPoint, int acknowledgedMessageId, int retryCount, int delay) {
+        PacketHandler.HandledPacket ackHandledPacket = sentPacketHandler.findPacket(endPoint, acknowledgedMessageId);
+        if (ackHandledPacket != null) {
+            //  Only the last transmission has a known send time, earlier ones are ambiguous (Karn)
+            if(retryCount == ackHandledPacket.packet.retryCount)
+                endPoint.rtt.addSample((System.nanoTime() - ackHandledPacket.timeLastSentNanos) / 1000000.0 - delay);
+   //         natPunch.getLogHandler().info(String.format("%s acknowledged #%d after %d tries (we sent %d)", endPoint.toString(), ackHandledPacket.packet.messageId, retryCount + 1, ackHandledPacket.retryCount + 1));
+            sentPacketHandler.removePacket(ackHandledPacket);
+            endPoint.congestion.acknowledged();
+            ++acknowledgedCount;
+        }
+    //    else
+        //      natPunch.getLogHandler().info(String.format("#%d not found in sent", acknowledgedMessageId));
+    }
+
+    protected void acknowledge(EndPoint endPoint, PacketData packet) {
+        acknowledge(endPoint, packet.messageId, packet.retryCount);
+    }
+
+    protected void acknowledge(EndPoint endPoint, int messageId, byte retryCount) {
+        if(ackDelay <= 0) {
+            sendPacket(endPoint, PacketData.acknowledge(getAndIncrementNextMessageId(), messageId, retryCount));
+            return;
+        }
+        if(ackAggregator.add(endPoint, messageId, retryCount, new Date().getTime(), ackDelay))
+            flushAcknowledgements(endPoint);
+    }
+
+    protected void flushAcknowledgements(EndPoint endPoint) {
+        PacketData []ackPackets = ackAggregator.flush(endPoint, this);
+        if(ackPackets == null)
+            return;
+        for(PacketData ackPacket : ackPackets)
+            sendPacket(endPoint, ackPacket);
+    }
+
+    /**
+     * Settles on the highest protocol version both we and the endpoint speak, given the one it announced.
+     */
+    protected void negotiateVersion(EndPoint endPoint, byte []announcedVersion) {
+        if(announcedVersion == null || announcedVersion.length < 1)
+            return;
+        endPoint.protocolVersion = Math.max(BinaryPacketEncoder.VERSION,
+                Math.min(announcedVersion[0] & 0xFF, natPunch.getPacketEncoder().getVersion()));
+    }
+
+    protected void negotiateCapabilities(EndPoint endPoint, byte []announcedCapabilities) {
+        if(announcedCapabilities == null || announcedCapabilities.length < 1)
+            return;
+        endPoint.capabilities = announcedCapabilities[0] & PacketEncoder.CAPABILITIES;
+    }
+
+    /**
+     * Returns packet with its arguments compressed if endPoint can decompress them and it pays off.
+     */
+    protected PacketData compress(EndPoint endPoint, PacketData packet) {
+        if(compressionThreshold <= 0 || (endPoint.capabilities & PacketEncoder.CAPABILITY_COMPRESSION) == 0 || isHandshake(packet))
+            return packet;
+        return PacketCompressor.compress(packet, compressionThreshold);
+    }
+
+    /**
+     * Returns the encoder for packets to endPoint: ours once it has announced our version, else version 1.
+     */
+    protected PacketEncoder getPacketEncoder(EndPoint endPoint) {
+        PacketEncoder packetEncoder = natPunch.getPacketEncoder();
+        if(endPoint.protocolVersion >= packetEncoder.getVersion())
+            return packetEncoder;
+        return versionOneEncoder;
+    }
+
+    /**
+     * Sends packet right away, bypassing congestion control. Called on another thread it is handed to the worker
+     * thread, which owns the send state.
+     */
     @Override
-    public void sendPacket(EndPoint endPoint, PacketData packet) {
-        byte []data = natPunch.getPacketEncoder().encode(packet);
-        InetAddress address = endPoint.externalAddress;
-        int port = endPoint.externalPort;
-        if(endPoint.localAddress != null && endPoint.isLocal(natPunch.getNetworkLayer().getLocalAddress())) {
-            address = endPoint.localAddress;
-            port = endPoint.localPort;
+    public void sendPacket(final EndPoint endPoint, PacketData packet) {
+        if(!natPunch.isWorkerThread()) {
+            final PacketData submitted = packet;
+            natPunch.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    sendPacket(endPoint, submitted);
+                }
+            });
+            return;
         }
 
+        PacketEncoder packetEncoder = getPacketEncoder(endPoint);
+        if(packet.retryCount == 0 && packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED))
+            packet = numberGuaranteed(endPoint, packet);
+        packet = compress(endPoint, packet);
+
         if(packet.retryCount == 0 && packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED)) {
+            //  Kept for retransmissions, so it gets a buffer of its own
+            ByteBuffer data = ByteBuffer.wrap(packetEncoder.encode(packet));
             synchronized (sentPacketHandler) {
-                sentPacketHandler.addPacket(new PacketHandler.HandledPacket(endPoint, packet));
+                PacketHandler.HandledPacket handledPacket = new PacketHandler.HandledPacket(endPoint, packet);
+                handledPacket.encoded = data;
+                handledPacket.retryCountOffset = packetEncoder.getRetryCountOffset(packet);
+                handledPacket.sent(handledPacket.timeLastSent, sentPacketHandler.getRtoLimits());
+                sentPacketHandler.addPacket(handledPacket);
+                ++sentCount;
+            }
+            //  Retransmissions move the position of data under the sentPacketHandler lock
+            sendEncoded(endPoint, packet, data.duplicate());
+            return;
+        }
+
+        if(packetEncoder.getPacketSize(packet) > sendBufferPool.getBufferSize()) {
+            sendEncoded(endPoint, packet, ByteBuffer.wrap(packetEncoder.encode(packet)));
+            return;
+        }
+        ByteBuffer buffer = sendBufferPool.acquire();
+        try {
+            packetEncoder.encode(packet, buffer);
+            buffer.flip();
+            sendEncoded(endPoint, packet, buffer);
+        }
+        finally {
+            sendBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Returns a copy of packet numbered in the sequence of guaranteed packets to endPoint, which the peer's
+     * ReceiveWindow expects. The ids a packet is created with are shared by all endpoints, the parts of a multipart
+     * transfer sent guaranteed get the new id of their parent.
+     */
+    protected PacketData numberGuaranteed(EndPoint endPoint, PacketData packet) {
+        PacketData numbered = new PacketData(packet.flags, 0, packet.retryCount, packet.partIndex, packet.partCount,
+                packet.command, packet.arguments);
+        boolean isParent = packet.hasFlag(PacketEncoder.FLAGS_MULTIPART);
+        boolean isPart = packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART);
+        if(!isParent && !isPart) {
+            numbered.messageId = endPoint.nextMessageId++;
+            return numbered;
+        }
+
+        if(endPoint.multipartMessageIds == null)
+            endPoint.multipartMessageIds = new IntMap<>();
+        int key = isPart ? packet.parentMessageId : packet.messageId;
+        //  The new parent id, how many packets of the transfer were numbered, and how many it has once the parent was
+        int []transfer = endPoint.multipartMessageIds.get(key);
+        if(transfer == null) {
+            transfer = new int[] {endPoint.nextMessageId++, 0, 0};
+            endPoint.multipartMessageIds.put(key, transfer);
+        }
+        if(isParent) {
+            numbered.messageId = transfer[0];
+            transfer[2] = (packet.partCount & 0xFF) + 1;
+        }
+        else {
+            numbered.messageId = endPoint.nextMessageId++;
+            numbered.parentMessageId = transfer[0];
+        }
+        if(++transfer[1] == transfer[2])
+            endPoint.multipartMessageIds.remove(key);
+        return numbered;
+    }
+
+    /**
+     * Sends an already encoded packet, e.g. a retransmission of a frame kept by the sentPacketHandler.
+     */
+    protected void sendEncoded(EndPoint endPoint, PacketData packet, ByteBuffer data) {
+        //  Let pending acknowledgements go out together with data for the same endpoint
+        if(packet.command != PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH && ackAggregator.hasPending(endPoint))
+            flushAcknowledgements(endPoint);
+
+    //    natPunch.getLogHandler().info(String.format("Sending %s to %s", packet.toString(), endPoint.toString()));
+
+        //  Peers from protocol version 2 on read every frame in a datagram, so the worker bundles what it
+        //  sends them until flush(). Other threads and older peers get a datagram per frame.
+        //  The handshake goes out in plaintext on its own, the keys it carries are what encryption needs
+        if(isHandshake(packet)) {
+            sendDatagram(endPoint, data, false);
+            return;
+        }
+
+        int datagramSize = Math.min(maxDatagramSize, endPoint.pathMtu.getSize()) - getDatagramOverhead(endPoint);
+        if(coalescing && endPoint.protocolVersion >= CompactPacketEncoder.VERSION && natPunch.isWorkerThread()
+                && data.remaining() <= datagramSize) {
+            ByteBuffer datagram = endPoint.pendingDatagram;
+            if(datagram != null && datagram.position() + data.remaining() > datagramSize) {
+                datagram.flip();
+                sendDatagram(endPoint, datagram, true);
+                datagram.clear();
+            }
+            if(datagram == null) {
+                datagram = sendBufferPool.acquire();
+                endPoint.pendingDatagram = datagram;
+                pendingDatagramEndPoints.add(endPoint);
             }
+            datagram.put(data);
+            return;
+        }
+
+        sendDatagram(endPoint, data, true);
+    }
+
+    /**
+     * Sends one datagram to endPoint, encrypted if allowed and we have keys with it. Until the endpoint has ours
+     * too it drops what we encrypt, and only retransmissions of guaranteed packets get through.
+     */
+    protected void sendDatagram(EndPoint endPoint, ByteBuffer datagram, boolean encrypt) {
+        PacketCipher packetCipher = natPunch.getPacketCipher();
+        PacketCipher.Session session = endPoint.session;
+        if(!encrypt || packetCipher == null || session == null || !session.hasKeys()) {
+            transmit(getSendAddress(endPoint), datagram);
+            return;
+        }
+
+        int size = datagram.remaining() + PacketCipher.OVERHEAD;
+        boolean pooled = size <= sendBufferPool.getBufferSize();
+        ByteBuffer sealed = pooled ? sendBufferPool.acquire() : ByteBuffer.allocate(size);
+        try {
+            packetCipher.encrypt(session, datagram, sealed);
+            sealed.flip();
+            transmit(getSendAddress(endPoint), sealed);
+        }
+        finally {
+            if(pooled)
+                sendBufferPool.release(sealed);
+        }
+    }
+
+    /**
+     * Hands datagram to the network layer. If the send buffer is full, the worker thread keeps a copy for flush()
+     * to send once the socket has room, and sends after it wait behind it. Datagrams that failed, that other
+     * threads couldn't send, and ones kept too long or pushed out by newer ones count as DropCounters.SEND.
+     */
+    protected void transmit(InetSocketAddress address, ByteBuffer datagram) {
+        boolean isWorkerThread = natPunch.isWorkerThread();
+        int sent = 0;
+        if(!isWorkerThread || blockedDatagrams.isEmpty()) {
+            sent = natPunch.getNetworkLayer().send(address, datagram);
+            if(sent > 0)
+                return;
+        }
+        if(sent < 0 || !isWorkerThread) {
+            natPunch.getDropCounters().drop(DropCounters.SEND);
+            return;
+        }
+        if(blockedDatagrams.size() >= MAX_BLOCKED_DATAGRAMS) {
+            blockedDatagrams.poll();
+            natPunch.getDropCounters().drop(DropCounters.SEND);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+        copy.put(datagram);
+        copy.flip();
+        blockedDatagrams.add(new BlockedDatagram(address, copy, new Date().getTime()));
+    }
+
+    //  Sends the datagrams the network layer didn't take before, oldest first, until it refuses one again
+    private void sendBlockedDatagrams() {
+        if(blockedDatagrams.isEmpty())
+            return;
+        long timeNow = new Date().getTime();
+        NetworkLayer networkLayer = natPunch.getNetworkLayer();
+        BlockedDatagram blocked;
+        while((blocked = blockedDatagrams.peek()) != null) {
+            int sent = networkLayer.send(blocked.address, blocked.data);
+            if(sent == 0 && timeNow - blocked.time < MAX_BLOCKED_TIME)
+                break;
+            if(sent <= 0)
+                natPunch.getDropCounters().drop(DropCounters.SEND);
+            blockedDatagrams.poll();
         }
+    }
+
+    /**
+     * Returns how many bytes encryption may add to datagrams to endPoint.
+     */
+    protected int getDatagramOverhead(EndPoint endPoint) {
+        PacketCipher.Session session = endPoint.session;
+        return natPunch.getPacketCipher() != null && session != null && session.hasKeys() ? PacketCipher.OVERHEAD : 0;
+    }
 
-    //    natPunch.getLogHandler().info(String.format("Sending %s to %s:%d", packet.toString(), address.getHostAddress(), port));
-        natPunch.getNetworkLayer().send(address, port, data);
+    protected InetSocketAddress getSendAddress(EndPoint endPoint) {
+        if(endPoint.localAddress != null && endPoint.isLocal(natPunch.getNetworkLayer().getLocalAddress()))
+            return endPoint.getLocalSocketAddress();
+        return endPoint.getExternalSocketAddress();
+    }
+
+    @Override
+    public void flush() {
+        sendBlockedDatagrams();
+        for(int i = 0; i < pendingDatagramEndPoints.size(); ++i) {
+            EndPoint endPoint = pendingDatagramEndPoints.get(i);
+            ByteBuffer datagram = endPoint.pendingDatagram;
+            endPoint.pendingDatagram = null;
+            datagram.flip();
+            sendDatagram(endPoint, datagram, true);
+            sendBufferPool.release(datagram);
+        }
+        pendingDatagramEndPoints.clear();
     }
 
+    /**
+     * Queues packet to be sent as congestion control allows, within the send budget. Other threads hand it to the
+     * worker thread through the submission ring, so they never wait for the worker, only for budget.
+     */
     @Override
-    public void sendPacketDelayed(EndPoint endPoint, PacketData packet) {
+    public boolean sendPacketDelayed(EndPoint endPoint, PacketData packet) {
         if(endPoint == null)
             throw new IllegalArgumentException("endPoint cannot be null");
 
+        packet.queuedSize = getQueuedSize(packet);
+        return queuePackets(endPoint, new PacketData[] {packet}, packet.queuedSize);
+    }
+
+    private ArrayDeque<PacketData> getSendQueue(EndPoint endPoint) {
+        ArrayDeque<PacketData> queue = sendQueues.get(endPoint);
+        if(queue == null) {
+            queue = new ArrayDeque<>();
+            sendQueues.put(endPoint, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Queues the fragments of data like sendPacketDelayed. The fragment size is fixed when the message is
+     * sent, so a path MTU found later only applies to the next message. data is copied before this returns.
+     */
+    @Override
+    public boolean sendMessage(EndPoint endPoint, ByteBuffer data) {
+        if(endPoint == null)
+            throw new IllegalArgumentException("endPoint cannot be null");
+
+        probePathMtu(endPoint);
+        int messageKey = getAndIncrementNextMessageId();
+        int messageLength = data.remaining();
+        int fragmentSize = getFragmentSize(endPoint);
+        ByteBuffer source = data.duplicate();
+        PacketData []fragments = new PacketData[Math.max(1, (messageLength + fragmentSize - 1) / fragmentSize)];
+        long size = 0;
+        for(int i = 0; i < fragments.length; ++i) {
+            byte []fragment = new byte[Math.min(fragmentSize, source.remaining())];
+            source.get(fragment);
+            fragments[i] = PacketData.messageFragment(getAndIncrementNextMessageId(), messageKey, messageLength, fragmentSize, i, fragment);
+            fragments[i].queuedSize = getQueuedSize(fragments[i]);
+            size += fragments[i].queuedSize;
+        }
+        return queuePackets(endPoint, fragments, size);
+    }
+
+    /**
+     * Takes size bytes of the send budget as backpressure says, then adds packets to the send queue of endPoint
+     * on the worker thread.
+     */
+    private boolean queuePackets(final EndPoint endPoint, final PacketData []packets, long size) {
+        if(!reserveQueued(endPoint, size)) {
+            refusedCount.incrementAndGet();
+            return false;
+        }
+        if(!natPunch.isWorkerThread()) {
+            natPunch.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    addToSendQueue(endPoint, packets);
+                }
+            });
+            return true;
+        }
+        addToSendQueue(endPoint, packets);
+        return true;
+    }
+
+    private void addToSendQueue(EndPoint endPoint, PacketData []packets) {
+        if(endPoint.removed) {
+            //  Removed while the packets were on their way, nobody would take them out of the queue again
+            for(PacketData packet : packets)
+                releaseQueued(endPoint, packet);
+            return;
+        }
         synchronized (sentPacketHandler) {
-            PacketHandler.HandledPacket handledPacket = new PacketHandler.HandledPacket(endPoint, packet);
-            handledPacket.timeLastSent = 0;
-            handledPacket.retryCount = -1;
-            sentPacketHandler.addPacket(handledPacket);
+            ArrayDeque<PacketData> queue = getSendQueue(endPoint);
+            for(PacketData packet : packets)
+                queue.add(packet);
+            if(backpressure == BACKPRESSURE_DROP_OLDEST && isOverBudget(endPoint))
+                dropOldest(endPoint, queue, packets);
+        }
+    }
+
+    /**
+     * Returns how many bytes of the send budget packet takes while it is queued.
+     */
+    protected static int getQueuedSize(PacketData packet) {
+        int size = QUEUED_PACKET_OVERHEAD;
+        if(packet.arguments != null) {
+            for(byte []argument : packet.arguments) {
+                if(argument != null)
+                    size += argument.length;
+            }
+        }
+        return size;
+    }
+
+    private boolean reserveQueued(EndPoint endPoint, long size) {
+        int backpressure = this.backpressure;
+        if(backpressure == BACKPRESSURE_DROP_OLDEST) {
+            //  Always queued, the worker makes room after
+            queuedBytes.addAndGet(size);
+            endPoint.queuedBytes.addAndGet(size);
+            return true;
+        }
+        if(tryReserveQueued(endPoint, size))
+            return true;
+        if(backpressure != BACKPRESSURE_BLOCK || natPunch.isWorkerThread())
+            return false;
+
+        long timeout = blockTimeout;
+        long deadline = timeout > 0 ? new Date().getTime() + timeout : Long.MAX_VALUE;
+        synchronized (budgetLock) {
+            ++budgetWaiters;
+            try {
+                while(!tryReserveQueued(endPoint, size)) {
+                    //  Its queue is gone with it, there won't be room anymore
+                    if(endPoint.removed)
+                        return false;
+                    //  Only the worker frees room
+                    if(!natPunch.isWorkerThreadRunning())
+                        return false;
+                    long remaining = deadline - new Date().getTime();
+                    if(remaining <= 0)
+                        return false;
+                    budgetLock.wait(Math.min(remaining, BLOCK_CHECK_INTERVAL));
+                }
+                return true;
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally {
+                --budgetWaiters;
+            }
+        }
+    }
+
+    private boolean tryReserveQueued(EndPoint endPoint, long size) {
+        if(!tryAdd(queuedBytes, size, maxQueuedBytes))
+            return false;
+        if(!tryAdd(endPoint.queuedBytes, size, maxQueuedBytesPerEndPoint)) {
+            //  Someone may be waiting for the global budget we just took
+            queuedBytes.addAndGet(-size);
+            notifyBudgetWaiters();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds size to counter unless that takes it over max. Anything fits while counter is 0, so a message larger
+     * than the budget can still be sent on its own.
+     */
+    private static boolean tryAdd(AtomicLong counter, long size, long max) {
+        while(true) {
+            long current = counter.get();
+            if(max > 0 && current > 0 && current + size > max)
+                return false;
+            if(counter.compareAndSet(current, current + size))
+                return true;
+        }
+    }
+
+    //  Gives the budget packet took back, once it left the send queue
+    private void releaseQueued(EndPoint endPoint, PacketData packet) {
+        int size = packet.queuedSize;
+        if(size == 0)
+            return;
+        packet.queuedSize = 0;
+        queuedBytes.addAndGet(-size);
+        endPoint.queuedBytes.addAndGet(-size);
+        notifyBudgetWaiters();
+    }
+
+    private void notifyBudgetWaiters() {
+        if(budgetWaiters == 0)
+            return;
+        synchronized (budgetLock) {
+            budgetLock.notifyAll();
+        }
+    }
+
+    //  Endpoints with queued packets, fullest first, for dropOldest to take from. Kept to reuse, empty between calls
+    private final PriorityQueue<EndPoint> fullestQueues = new PriorityQueue<>(16, new Comparator<EndPoint>() {
+        @Override
+        public int compare(EndPoint a, EndPoint b) {
+            return Long.compare(b.queuedBytes.get(), a.queuedBytes.get());
+        }
+    });
+
+    private boolean isOverBudget(EndPoint endPoint) {
+        long max = maxQueuedBytes, maxPerEndPoint = maxQueuedBytesPerEndPoint;
+        return (max > 0 && queuedBytes.get() > max) || (maxPerEndPoint > 0 && endPoint.queuedBytes.get() > maxPerEndPoint);
+    }
+
+    /**
+     * Makes room once packets were added to the queue of endPoint over budget. Drops the oldest droppable messages
+     * queued for endPoint until it is within its budget, then, while the total is over, its own while it holds at
+     * least its share of the total, and after that those of the endpoint with the most queued. If only messages
+     * that can't be dropped are left, packets are dropped too, unless they are all that is queued.
+     */
+    private void dropOldest(EndPoint endPoint, ArrayDeque<PacketData> queue, PacketData []packets) {
+        PacketData newest = packets[0];
+        long maxPerEndPoint = maxQueuedBytesPerEndPoint;
+        while(maxPerEndPoint > 0 && endPoint.queuedBytes.get() > maxPerEndPoint) {
+            if(!dropOldestMessage(endPoint, queue, newest))
+                break;
+        }
+
+        long max = maxQueuedBytes;
+        if(max <= 0 || queuedBytes.get() <= max)
+            return;
+        //  A sender that keeps the total over mostly pays from its own queue, which needs no search
+        while(queuedBytes.get() > max && endPoint.queuedBytes.get() * sendQueues.size() >= queuedBytes.get()) {
+            if(!dropOldestMessage(endPoint, queue, newest))
+                break;
+        }
+        if(queuedBytes.get() > max) {
+            //  An endpoint leaves the heap once it has nothing left to drop, or the total is within budget
+            fullestQueues.addAll(sendQueues.keySet());
+            EndPoint fullest;
+            while(queuedBytes.get() > max && (fullest = fullestQueues.poll()) != null) {
+                if(dropOldestMessage(fullest, sendQueues.get(fullest), fullest == endPoint ? newest : null))
+                    fullestQueues.add(fullest);
+            }
+            fullestQueues.clear();
+        }
+
+        long size = 0;
+        for(PacketData packet : packets)
+            size += packet.queuedSize;
+        if(queuedBytes.get() > max && queuedBytes.get() > size && isDroppable(newest)) {
+            //  Still the last ones in the queue
+            for(int i = 0; i < packets.length; ++i) {
+                releaseQueued(endPoint, queue.pollLast());
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest droppable message queued for endPoint before newest, or in the whole queue when newest is
+     * null, with all of its fragments or parts. Returns false if there is none. Messages that started going out
+     * are let through, dropping their rest would waste what the peer already got.
+     */
+    private boolean dropOldestMessage(EndPoint endPoint, ArrayDeque<PacketData> queue, PacketData newest) {
+        PacketData oldest = null;
+        for(PacketData packet : queue) {
+            if(packet == newest)
+                break;
+            if(isDroppable(packet) && startsMessage(packet)) {
+                oldest = packet;
+                break;
+            }
+        }
+        if(oldest == null)
+            return false;
+
+        int messageKey = getMessageKey(oldest);
+        Iterator<PacketData> it = queue.iterator();
+        while(it.hasNext()) {
+            PacketData packet = it.next();
+            if(packet == newest)
+                break;
+            if(isDroppable(packet) && getMessageKey(packet) == messageKey) {
+                it.remove();
+                releaseQueued(endPoint, packet);
+                droppedCount.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true for packets BACKPRESSURE_DROP_OLDEST may drop: application commands, message fragments and
+     * multipart transfers. The protocol's own packets are always sent.
+     */
+    protected boolean isDroppable(PacketData packet) {
+        return (packet.command & 0xFF) >= PacketEncoder.COMMAND_CUSTOM || packet.command == PacketEncoder.COMMAND_MESSAGE
+                || packet.hasFlag(PacketEncoder.FLAGS_MULTIPART) || packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART);
+    }
+
+    //  True for a packet on its own, the first fragment of a message or a multipart parent
+    private static boolean startsMessage(PacketData packet) {
+        if(packet.command == PacketEncoder.COMMAND_MESSAGE)
+            return packet.getArgumentCount() > 3 && packet.getArgument(3).length == 4 && ByteBuffer.wrap(packet.getArgument(3)).getInt() == 0;
+        return !packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART);
+    }
+
+    //  Fragments of one message share its key, the parts of a multipart packet the id of their parent
+    private static int getMessageKey(PacketData packet) {
+        if(packet.command == PacketEncoder.COMMAND_MESSAGE && packet.getArgumentCount() > 0 && packet.getArgument(0).length == 4)
+            return ByteBuffer.wrap(packet.getArgument(0)).getInt();
+        if(packet.hasFlag(PacketEncoder.FLAGS_MULTIPART_PART))
+            return packet.parentMessageId;
+        return packet.messageId;
+    }
+
+    /**
+     * Returns how much message data goes in each fragment so a fragment frame fills one datagram of the path MTU.
+     */
+    protected int getFragmentSize(EndPoint endPoint) {
+        PacketEncoder packetEncoder = getPacketEncoder(endPoint);
+        //  The widest ids the header can hold, and 2 more bytes for the length of a full fragment
+        int overhead = packetEncoder.getPacketSize(PacketData.messageFragment(-1, -1, -1, 0, -1, new byte[0])) + 2;
+        if(natPunch.getPacketCipher() != null)
+            overhead += PacketCipher.OVERHEAD;
+        return Math.min(endPoint.pathMtu.getSize(), SEND_BUFFER_SIZE) - overhead;
+    }
+
+    /**
+     * Starts finding the path MTU to endPoint unless it was started before. sendMessage calls this itself.
+     */
+    public void probePathMtu(final EndPoint endPoint) {
+        if(!endPoint.pathMtu.start())
+            return;
+        if(!natPunch.isWorkerThread()) {
+            natPunch.runOnWorkerThread(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (sentPacketHandler) {
+                        probingEndPoints.add(endPoint);
+                    }
+                }
+            });
+            return;
+        }
+        synchronized (sentPacketHandler) {
+            probingEndPoints.add(endPoint);
+        }
+    }
+
+    /**
+     * Sends a probe datagram of exactly probeSize bytes on its own, not coalesced, with the don't fragment bit set.
+     * Ends probing for endPoint when the network layer can't set it.
+     */
+    protected void sendMtuProbe(EndPoint endPoint, int probeSize) {
+        NetworkLayer networkLayer = natPunch.getNetworkLayer();
+        if(!networkLayer.setDontFragment(true)) {
+            endPoint.pathMtu.stop();
+            return;
+        }
+
+        PacketEncoder packetEncoder = getPacketEncoder(endPoint);
+        int messageId = getAndIncrementNextMessageId();
+        //  probeSize is the size of the datagram, so leave room for encryption
+        PacketCipher.Session session = endPoint.session;
+        int frameSize = probeSize;
+        if(natPunch.getPacketCipher() != null && session != null && session.hasKeys())
+            frameSize -= PacketCipher.OVERHEAD;
+        PacketData probe = PacketData.mtuProbe(messageId, probeSize, 0);
+        int padding = frameSize - packetEncoder.getPacketSize(probe);
+        probe = PacketData.mtuProbe(messageId, probeSize, padding);
+        //  The padding's length field may have grown
+        padding -= packetEncoder.getPacketSize(probe) - frameSize;
+        probe = PacketData.mtuProbe(messageId, probeSize, padding);
+        try {
+            sendDatagram(endPoint, ByteBuffer.wrap(packetEncoder.encode(probe)), true);
+        }
+        finally {
+            networkLayer.setDontFragment(false);
         }
     }
 
     @Override
     public void update(long timeNow) {
         synchronized (sentPacketHandler) {
-            for (PacketHandler.HandledPacket packet : sentPacketHandler.getPacketsToResend(timeNow)) {
-//                natPunch.getLogHandler().info(String.format("Retrying (%d) %s", packet.retryCount, packet.packet.toString()));
+            sendQueuedPackets(timeNow);
+
+            Iterator<EndPoint> it = probingEndPoints.iterator();
+            while(it.hasNext()) {
+                EndPoint endPoint = it.next();
+                int probeSize = endPoint.pathMtu.nextProbe(timeNow, endPoint.rtt.getRetransmitTimeout(sentPacketHandler.getRtoLimits(), 1));
+                if(probeSize > 0)
+                    sendMtuProbe(endPoint, probeSize);
+                else if(endPoint.pathMtu.isComplete())
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends packet again when its retry timer expires on the timer wheel.
+     */
+    @Override
+    public void retry(PacketHandler.HandledPacket packet, long timeNow) {
+        synchronized (sentPacketHandler) {
+            //  Acknowledged after the timer expired
+            if(sentPacketHandler.findPacket(packet.endPoint, packet.packet.messageId) != packet)
+                return;
+//            natPunch.getLogHandler().info(String.format("Retrying (%d) %s", packet.retryCount, packet.packet.toString()));
 
-                packet.timeLastSent = timeNow;
-                ++packet.retryCount;
-                ++packet.packet.retryCount;
+            ++packet.retryCount;
+            ++packet.packet.retryCount;
+            packet.sent(timeNow, sentPacketHandler.getRtoLimits());
+            packet.endPoint.congestion.lost(timeNow);
+            ++retransmitCount;
+            if(packet.encoded != null && packet.retryCountOffset >= 0) {
+                packet.encoded.put(packet.retryCountOffset, packet.packet.retryCount);
+                packet.encoded.clear();
+                sendEncoded(packet.endPoint, packet.packet, packet.encoded);
+            }
+            else
                 sendPacket(packet.endPoint, packet.packet);
+            sentPacketHandler.scheduleRetry(packet);
+        }
+    }
+
+    @Override
+    public void acknowledgementsDue(EndPoint endPoint) {
+        flushAcknowledgements(endPoint);
+    }
+
+    private void sendQueuedPackets(long timeNow) {
+        Iterator<Map.Entry<EndPoint, ArrayDeque<PacketData>>> it = sendQueues.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<EndPoint, ArrayDeque<PacketData>> entry = it.next();
+            EndPoint endPoint = entry.getKey();
+            ArrayDeque<PacketData> queue = entry.getValue();
+            while(!queue.isEmpty()) {
+                if(congestionControl) {
+                    if(!endPoint.congestion.canSend(timeNow, sentPacketHandler.getPacketCount(endPoint)))
+                        break;
+                    endPoint.congestion.sent();
+                }
+                PacketData packet = queue.poll();
+                releaseQueued(endPoint, packet);
+                sendPacket(endPoint, packet);
+            }
+            if(queue.isEmpty())
+                it.remove();
+        }
+    }
+
+    @Override
+    public void multipartReceived(EndPoint endPoint, PacketData parent, ByteBuffer data) {
+    }
+
+    @Override
+    public void messageReceived(EndPoint endPoint, ByteBuffer data) {
+    }
+
+    public void setResendLimit(int resendLimit) {
+        sentPacketHandler.setResendLimit(resendLimit);
+    }
+
+    /**
+     * Sets the initial RTO and the range RTOs are clamped to, for the endpoints of this receiver only.
+     */
+    public void setRtoLimits(long initial, long min, long max) {
+        sentPacketHandler.setRtoLimits(initial, min, max);
+    }
+
+    @Override
+    public long getNextUpdateTime(long timeNow) {
+        //  Poll for room in the send buffer
+        if(!blockedDatagrams.isEmpty())
+            return timeNow + 1;
+        long nextUpdateTime = Long.MAX_VALUE;
+        synchronized (sentPacketHandler) {
+            for(EndPoint endPoint : probingEndPoints)
+                nextUpdateTime = Math.min(nextUpdateTime, endPoint.pathMtu.getNextProbeTime());
+            for(EndPoint endPoint : sendQueues.keySet()) {
+                if(!congestionControl)
+                    return timeNow;
+                nextUpdateTime = Math.min(nextUpdateTime,
+                        endPoint.congestion.getNextSendTime(timeNow, sentPacketHandler.getPacketCount(endPoint)));
             }
+        }
+        return nextUpdateTime;
+    }
+
+    //  Bytes queued by sendPacketDelayed and sendMessage and not sent yet, in total and for endPoint
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getQueuedBytes(EndPoint endPoint) {
+        return endPoint.queuedBytes.get();
+    }
 
-            sentPacketHandler.removeOldPackets(timeNow);
-            acknowledgedPacketHandler.removeOldPackets(timeNow);
+    //  Packets and messages that didn't fit the send budget, so sendPacketDelayed or sendMessage returned false
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    //  Queued packets BACKPRESSURE_DROP_OLDEST dropped to make room
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSentCount() {
+        synchronized (sentPacketHandler) {
+            return sentCount;
+        }
+    }
+
+    public long getRetransmitCount() {
+        synchronized (sentPacketHandler) {
+            return retransmitCount;
+        }
+    }
+
+    public long getAcknowledgedCount() {
+        synchronized (sentPacketHandler) {
+            return acknowledgedCount;
         }
     }
 
     public String toString() {
-        return String.format("ACK\t%s\nSENT\t%s", acknowledgedPacketHandler.toString(), sentPacketHandler.toString());
+        return String.format("SENT\t%s", sentPacketHandler.toString());
     }
 }
@@ -1,7 +1,7 @@
 package net.ferretize.libnatpunch;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 /**
  * The MIT License (MIT)
@@ -18,59 +18,57 @@ public class BinaryPacketEncoder implements PacketEncoder {
         return (flags & flag) == flag;
     }
 
+    final public static int VERSION = 1;
+
     @Override
-    public int getPacketSize(PacketData packet) {
-        int packetSize = 4 + 1 * 2;
-        if(hasFlag(packet.flags, FLAGS_MULTIPART)) {
-            packetSize += 1 * 2;
-        }
-        if(hasFlag(packet.flags, FLAGS_GUARANTEED)) {
-            //  Add size of retryCount
-            packetSize += 1;
-        }
-        if(packet.arguments != null && packet.arguments.length > 0) {
-            // Size of argument count
-            packetSize += 1;
-            for(byte []arg : packet.arguments) {
-                //  Size of argument length + argument data
-                packetSize += 2 + arg.length * 1;
-            }
-        }
-        return packetSize;
+    public int getVersion() {
+        return VERSION;
     }
 
     @Override
-    public byte[] encode(PacketData packet) {
+    public int getPacketSize(PacketData packet) {
         //  Size of flags + messageId + command
-        short bufferSize = 4 + 1 * 2;
+        int packetSize = 4 + 1 * 2;
 
         if(hasFlag(packet.flags, FLAGS_MULTIPART)) {
             //  Add size of partCount
-            bufferSize += 1;
+            packetSize += 1;
         }
         if(hasFlag(packet.flags, FLAGS_GUARANTEED)) {
             //  Add size of retryCount
-            bufferSize += 1;
+            packetSize += 1;
         }
 
         if(hasFlag(packet.flags, FLAGS_MULTIPART_PART))
             //  Add size of parentMessageId + partIndex
-            bufferSize += 1 + 4;
+            packetSize += 1 + 4;
 
-        byte argumentCount = 0;
         if(packet.arguments != null && packet.arguments.length > 0) {
-            argumentCount = (byte)packet.arguments.length;
             // Size of argument count
-            bufferSize += 1;
+            packetSize += 1;
             for(byte []arg : packet.arguments) {
                 //  Size of argument length + argument data
-                bufferSize += 2 + arg.length * 1;
+                packetSize += 2 + arg.length * 1;
             }
         }
+        //  Plus the SHORT that stores the packet length
+        return packetSize + 2;
+    }
+
+    @Override
+    public byte[] encode(PacketData packet) {
+        ByteBuffer buffer = ByteBuffer.allocate(getPacketSize(packet));
+        encode(packet, buffer);
+        return buffer.array();
+    }
 
-        //  Allocate a buffer with an extra SHORT, to store the packet length
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize + 2);
-        buffer.putShort(bufferSize);
+    @Override
+    public int encode(PacketData packet, ByteBuffer buffer) {
+        int packetSize = getPacketSize(packet);
+        if(buffer.remaining() < packetSize)
+            throw new BufferOverflowException();
+
+        buffer.putShort((short)(packetSize - 2));
         buffer.put(packet.flags).putInt(packet.messageId);
 
         if(hasFlag(packet.flags, FLAGS_MULTIPART_PART))
@@ -83,57 +81,35 @@ public class BinaryPacketEncoder implements PacketEncoder {
             buffer.put(packet.partIndex);
 
         buffer.put(packet.command);
-        if(argumentCount > 0) {
-            buffer.put(argumentCount);
+        if(packet.arguments != null && packet.arguments.length > 0) {
+            buffer.put((byte)packet.arguments.length);
             for(byte []arg : packet.arguments) {
                 buffer.putShort((short)arg.length);
                 buffer.put(arg);
             }
         }
-        return buffer.array();
+        return packetSize;
+    }
+
+    @Override
+    public int getRetryCountOffset(PacketData packet) {
+        if(!hasFlag(packet.flags, FLAGS_GUARANTEED))
+            return -1;
+        //  Packet length + flags + messageId
+        int offset = 2 + 1 + 4;
+        if(hasFlag(packet.flags, FLAGS_MULTIPART_PART))
+            offset += 4;
+        return offset;
     }
 
     @Override
     public PacketData decode(byte[] data) {
         ByteBuffer buffer = ByteBuffer.wrap(data);
-        short packetSize = buffer.getShort();
-        if(data.length - 2 != packetSize)
-            throw new IllegalArgumentException("Data length differs from expected packet length ".concat(String.valueOf(packetSize)).concat("/").concat(String.valueOf(data.length)));
-
-        byte flags = buffer.get();
-        int messageId = buffer.getInt();
-        int parentMessageId = 0;
-
-        if(hasFlag(flags, FLAGS_MULTIPART_PART))
-            parentMessageId = buffer.getInt();
-
-        byte retryCount = 0, partIndex = 0, partCount = 0;
-
-        if(hasFlag(flags, FLAGS_GUARANTEED)) {
-            retryCount = buffer.get();
-        }
-        if(hasFlag(flags, FLAGS_MULTIPART)) {
-            partCount = buffer.get();
-        }
-        if(hasFlag(flags, FLAGS_MULTIPART_PART))
-            partIndex = buffer.get();
-
-        byte command = buffer.get();
-        ArrayList<byte[]> arguments = null;
-        if(buffer.hasRemaining()) {
-            arguments = new ArrayList<>();
-            byte argumentCount = buffer.get();
-            while(argumentCount-- > 0) {
-                short argumentLength = buffer.getShort();
-                byte []dst = new byte[argumentLength];
-                buffer.get(dst, 0, argumentLength);
-                arguments.add(dst);
-            }
-        }
-
-        PacketData packet = new PacketData(flags, messageId, retryCount, partIndex, partCount, command, arguments != null ? arguments.toArray(new byte[0][]) : null);
-        packet.parentMessageId = parentMessageId;
-        return packet;
+        buffer.position(data.length);
+        PacketView view = new PacketView();
+        if(readPacket(buffer, 0, view) != data.length)
+            return null;
+        return view.toPacketData();
     }
 
     final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
@@ -147,27 +123,89 @@ public class BinaryPacketEncoder implements PacketEncoder {
         return new String(hexChars);
     }
 
+    @Override
+    public int getFrameLength(ByteBuffer data, int offset) {
+        if(data.position() - offset < 2)
+            return 0;
+        return (data.getShort(offset) & 0xFFFF) + 2;
+    }
+
     @Override
     public PacketData hasPacket(ByteBuffer data) {
-        if(data.position() < 2)
+        PacketView view = new PacketView();
+        int packetLength = readPacket(data, 0, view);
+        if(packetLength < 0)
+            data.clear();
+        if(packetLength <= 0)
             return null;
+        PacketData packet = view.toPacketData();
+        data.flip();
+        data.position(packetLength);
+        data.compact();
+        return packet;
+    }
 
-        short packetLength = data.getShort(0);
-        if(data.position() - 2 != packetLength) {
-            return null;
+    @Override
+    public int readPacket(ByteBuffer data, int offset, PacketView view) {
+        int available = data.position() - offset;
+        if(available < 2)
+            return 0;
+        int packetLength = data.getShort(offset) & 0xFFFF;
+        if(available < packetLength + 2)
+            return 0;
+
+        int end = offset + 2 + packetLength;
+        int position = offset + 2;
+        //  Size of flags + messageId + command
+        if(packetLength < 1 + 4 + 1)
+            return REJECT_HEADER;
+        byte flags = data.get(position);
+        if((flags & ~FLAGS_DEFINED) != 0)
+            return REJECT_FLAGS;
+        int messageId = data.getInt(position + 1);
+        position += 1 + 4;
+
+        int headerLength = 1;
+        if(hasFlag(flags, FLAGS_MULTIPART_PART))
+            headerLength += 4 + 1;
+        if(hasFlag(flags, FLAGS_GUARANTEED))
+            headerLength += 1;
+        if(hasFlag(flags, FLAGS_MULTIPART))
+            headerLength += 1;
+        if(position + headerLength > end)
+            return REJECT_HEADER;
+
+        int parentMessageId = 0;
+        byte retryCount = 0, partIndex = 0, partCount = 0;
+        if(hasFlag(flags, FLAGS_MULTIPART_PART)) {
+            parentMessageId = data.getInt(position);
+            position += 4;
         }
+        if(hasFlag(flags, FLAGS_GUARANTEED))
+            retryCount = data.get(position++);
+        if(hasFlag(flags, FLAGS_MULTIPART))
+            partCount = data.get(position++);
+        if(hasFlag(flags, FLAGS_MULTIPART_PART))
+            partIndex = data.get(position++);
+        byte command = data.get(position++);
 
-        byte []buffer = new byte[packetLength + 2];
-        int positionBefore = data.position();
-        data.position(0);
-        data.get(buffer, 0, packetLength + 2);
-        PacketData packet = decode(buffer);
-        if(packet != null) {
-            data.position(packetLength + 2);
-            data.compact();
-            data.position(positionBefore - packetLength - 2);
-            return packet;
+        view.set(data, offset, packetLength + 2, flags, messageId, parentMessageId, retryCount, partIndex, partCount, command);
+        if(position < end) {
+            int argumentCount = data.get(position++) & 0xFF;
+            while(argumentCount-- > 0) {
+                if(position + 2 > end)
+                    return REJECT_ARGUMENTS;
+                int argumentLength = data.getShort(position) & 0xFFFF;
+                position += 2;
+                if(position + argumentLength > end)
+                    return REJECT_ARGUMENTS;
+                view.addArgument(position, argumentLength);
+                position += argumentLength;
+            }
         }
-        return null;
+        //  The length prefix has to cover exactly the frame
+        if(position != end)
+            return REJECT_TRAILING;
+        return packetLength + 2;
     }
 }
@@ -0,0 +1,61 @@
+package net.ferretize.libnatpunch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    //  A plain stack under the pool's lock, so acquire/release allocate nothing once the pool is warm
+    private final ByteBuffer []buffers;
+    private int pooled;
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.buffers = new ByteBuffer[maxPooled];
+        this.pooled = 0;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer, from the pool if one is available.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if(pooled > 0) {
+                buffer = buffers[--pooled];
+                buffers[pooled] = null;
+            }
+        }
+        if(buffer == null)
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool. Buffers beyond maxPooled, or of another size, are left to the GC.
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+            return;
+        synchronized (this) {
+            if(pooled < buffers.length)
+                buffers[pooled++] = buffer;
+        }
+    }
+}
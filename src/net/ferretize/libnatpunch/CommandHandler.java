@@ -0,0 +1,21 @@
+package net.ferretize.libnatpunch;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+/**
+ * Handles one application command, registered with BasePacketReceiver.setCommandHandler for a command byte from
+ * PacketEncoder.COMMAND_CUSTOM on. Handlers registered without an executor run on the worker thread and must
+ * not block. Handlers on an executor may block, but must leave the endpoint's state alone. The send methods of
+ * PacketReceiver hand themselves over to the worker thread, anything else goes through NatPunch.runOnWorkerThread.
+ */
+public interface CommandHandler {
+    void handleCommand(EndPoint endPoint, PacketData packet);
+}
@@ -0,0 +1,247 @@
+package net.ferretize.libnatpunch;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+/**
+ * Protocol version 2. A frame has no length prefix: it runs to the end of its arguments, and the
+ * datagram bounds the last one. The messageId and all lengths are unsigned varints (7 bits per byte),
+ * and a part carries its parentMessageId as the wrap-safe delta messageId - parentMessageId.
+ *
+ * The first byte is 0x80 | flags, with FLAG_ARGUMENTS set when an argument list follows. A version 1
+ * frame starts with the high byte of its length, which never has 0x80 set, so readPacket accepts both
+ * formats and only peers that announced version 2 are sent it (see BasePacketReceiver.getPacketEncoder).
+ */
+public class CompactPacketEncoder implements PacketEncoder {
+    final public static int VERSION = 2;
+    final public static byte FRAME_MARKER = (byte)0x80;
+    final public static byte FLAG_ARGUMENTS = 0x40;
+    final private static byte FLAGS_MASK = 0x3F;
+
+    private final BinaryPacketEncoder versionOneEncoder = new BinaryPacketEncoder();
+
+    static int varintSize(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    /**
+     * Reads the varint at position, before end. Returns the value in the low and the position after it
+     * in the high 32 bits, or -1 if it runs past end or is longer than 5 bytes.
+     */
+    static long getVarint(ByteBuffer buffer, int position, int end) {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            if(position >= end)
+                return -1;
+            byte b = buffer.get(position++);
+            value |= (b & 0x7F) << shift;
+            if(b >= 0)
+                return (value & 0xFFFFFFFFL) | ((long)position << 32);
+        }
+        return -1;
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public int getPacketSize(PacketData packet) {
+        //  Size of flags + messageId + command
+        int packetSize = 1 + varintSize(packet.messageId) + 1;
+
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_MULTIPART_PART))
+            //  Add size of parentMessageId delta + partIndex
+            packetSize += varintSize(packet.messageId - packet.parentMessageId) + 1;
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_GUARANTEED))
+            packetSize += 1;
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_MULTIPART))
+            packetSize += 1;
+
+        if(packet.arguments != null && packet.arguments.length > 0) {
+            packetSize += varintSize(packet.arguments.length);
+            for(byte []arg : packet.arguments)
+                packetSize += varintSize(arg.length) + arg.length;
+        }
+        return packetSize;
+    }
+
+    @Override
+    public byte[] encode(PacketData packet) {
+        ByteBuffer buffer = ByteBuffer.allocate(getPacketSize(packet));
+        encode(packet, buffer);
+        return buffer.array();
+    }
+
+    @Override
+    public int encode(PacketData packet, ByteBuffer buffer) {
+        if((packet.flags & ~FLAGS_MASK) != 0)
+            throw new IllegalArgumentException("Flags don't fit a version 2 frame ".concat(String.valueOf(packet.flags)));
+        int packetSize = getPacketSize(packet);
+        if(buffer.remaining() < packetSize)
+            throw new BufferOverflowException();
+
+        boolean hasArguments = packet.arguments != null && packet.arguments.length > 0;
+        buffer.put((byte)(FRAME_MARKER | packet.flags | (hasArguments ? FLAG_ARGUMENTS : 0)));
+        putVarint(buffer, packet.messageId);
+
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_MULTIPART_PART))
+            putVarint(buffer, packet.messageId - packet.parentMessageId);
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_GUARANTEED))
+            buffer.put(packet.retryCount);
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_MULTIPART))
+            buffer.put(packet.partCount);
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_MULTIPART_PART))
+            buffer.put(packet.partIndex);
+
+        buffer.put(packet.command);
+        if(hasArguments) {
+            putVarint(buffer, packet.arguments.length);
+            for(byte []arg : packet.arguments) {
+                putVarint(buffer, arg.length);
+                buffer.put(arg);
+            }
+        }
+        return packetSize;
+    }
+
+    @Override
+    public int getRetryCountOffset(PacketData packet) {
+        if(!BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_GUARANTEED))
+            return -1;
+        int offset = 1 + varintSize(packet.messageId);
+        if(BinaryPacketEncoder.hasFlag(packet.flags, FLAGS_MULTIPART_PART))
+            offset += varintSize(packet.messageId - packet.parentMessageId);
+        return offset;
+    }
+
+    @Override
+    public PacketData decode(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(data.length);
+        PacketView view = new PacketView();
+        if(readPacket(buffer, 0, view) != data.length)
+            return null;
+        return view.toPacketData();
+    }
+
+    @Override
+    public int getFrameLength(ByteBuffer data, int offset) {
+        if(offset < data.position() && (data.get(offset) & FRAME_MARKER) == 0)
+            return versionOneEncoder.getFrameLength(data, offset);
+        //  A version 2 frame never spans datagrams, all of it is there already
+        return data.position() - offset;
+    }
+
+    @Override
+    public PacketData hasPacket(ByteBuffer data) {
+        PacketView view = new PacketView();
+        int packetLength = readPacket(data, 0, view);
+        if(packetLength < 0)
+            data.clear();
+        if(packetLength <= 0)
+            return null;
+        PacketData packet = view.toPacketData();
+        data.flip();
+        data.position(packetLength);
+        data.compact();
+        return packet;
+    }
+
+    @Override
+    public int readPacket(ByteBuffer data, int offset, PacketView view) {
+        int end = data.position();
+        if(offset >= end)
+            return 0;
+        byte first = data.get(offset);
+        if((first & FRAME_MARKER) == 0)
+            return versionOneEncoder.readPacket(data, offset, view);
+
+        //  A version 2 frame never spans datagrams, so running out of data means it is malformed
+        byte flags = (byte)(first & FLAGS_MASK);
+        if((flags & ~FLAGS_DEFINED) != 0)
+            return REJECT_FLAGS;
+        long varint = getVarint(data, offset + 1, end);
+        if(varint < 0)
+            return REJECT_VARINT;
+        int messageId = (int)varint;
+        int position = (int)(varint >>> 32);
+
+        int parentMessageId = 0;
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_MULTIPART_PART)) {
+            varint = getVarint(data, position, end);
+            if(varint < 0)
+                return REJECT_VARINT;
+            parentMessageId = messageId - (int)varint;
+            position = (int)(varint >>> 32);
+        }
+
+        int headerLength = 1;
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_GUARANTEED))
+            headerLength += 1;
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_MULTIPART))
+            headerLength += 1;
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_MULTIPART_PART))
+            headerLength += 1;
+        if(position + headerLength > end)
+            return REJECT_HEADER;
+
+        byte retryCount = 0, partIndex = 0, partCount = 0;
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_GUARANTEED))
+            retryCount = data.get(position++);
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_MULTIPART))
+            partCount = data.get(position++);
+        if(BinaryPacketEncoder.hasFlag(flags, FLAGS_MULTIPART_PART))
+            partIndex = data.get(position++);
+        byte command = data.get(position++);
+
+        view.set(data, offset, 0, flags, messageId, parentMessageId, retryCount, partIndex, partCount, command);
+        if((first & FLAG_ARGUMENTS) != 0) {
+            varint = getVarint(data, position, end);
+            if(varint < 0)
+                return REJECT_VARINT;
+            long argumentCount = varint & 0xFFFFFFFFL;
+            position = (int)(varint >>> 32);
+            //  Every argument takes at least its length byte
+            if(argumentCount > end - position)
+                return REJECT_ARGUMENTS;
+            while(argumentCount-- > 0) {
+                varint = getVarint(data, position, end);
+                if(varint < 0)
+                    return REJECT_VARINT;
+                long argumentLength = varint & 0xFFFFFFFFL;
+                position = (int)(varint >>> 32);
+                if(argumentLength > end - position)
+                    return REJECT_ARGUMENTS;
+                view.addArgument(position, (int)argumentLength);
+                position += (int)argumentLength;
+            }
+        }
+        view.setLength(position - offset);
+        return position - offset;
+    }
+}
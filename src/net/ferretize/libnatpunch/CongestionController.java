@@ -0,0 +1,111 @@
+package net.ferretize.libnatpunch;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Per-endpoint congestion window (AIMD with slow start, counted in packets) and a token bucket pacer
+ * that spreads the window over one smoothed RTT instead of sending it in a single burst.
+ */
+public class CongestionController {
+    final public static double INITIAL_WINDOW = 10;
+    final public static double MIN_WINDOW = 2;
+    final public static double MAX_WINDOW = 1024;
+    final public static double MAX_BURST = 4;
+    //  Send slightly faster than cwnd/SRTT so the pacer doesn't keep the window from filling
+    final public static double PACING_GAIN = 1.25;
+
+    private final RttEstimator rtt;
+    private double window = INITIAL_WINDOW;
+    private double slowStartThreshold = MAX_WINDOW;
+    private double tokens = MAX_BURST;
+    private long timeLastRefill = -1;
+    private long timeLastReduction = Long.MIN_VALUE / 2;
+
+    public CongestionController(RttEstimator rtt) {
+        this.rtt = rtt;
+    }
+
+    public synchronized double getWindow() {
+        return window;
+    }
+
+    public synchronized double getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    private double getRoundTripTime() {
+        double srtt = rtt.getSmoothedRtt();
+        return srtt > 0 ? Math.max(srtt, 1) : rtt.getRetransmitTimeout();
+    }
+
+    /**
+     * Packets per ms the pacer lets through.
+     */
+    public synchronized double getPacingRate() {
+        return PACING_GAIN * window / getRoundTripTime();
+    }
+
+    private void refill(long timeNow) {
+        if(timeLastRefill >= 0 && timeNow > timeLastRefill)
+            tokens = Math.min(MAX_BURST, tokens + (timeNow - timeLastRefill) * getPacingRate());
+        timeLastRefill = timeNow;
+    }
+
+    /**
+     * Returns true if another packet may be sent now with inFlight packets still unacknowledged.
+     */
+    public synchronized boolean canSend(long timeNow, int inFlight) {
+        if(inFlight >= (int)window)
+            return false;
+        refill(timeNow);
+        return tokens >= 1;
+    }
+
+    /**
+     * Time at which the pacer has a token again, or Long.MAX_VALUE if the window is full and an ACK or timeout has to free it.
+     */
+    public synchronized long getNextSendTime(long timeNow, int inFlight) {
+        if(inFlight >= (int)window)
+            return Long.MAX_VALUE;
+        refill(timeNow);
+        if(tokens >= 1)
+            return timeNow;
+        return timeNow + (long)Math.ceil((1 - tokens) / getPacingRate());
+    }
+
+    public synchronized void sent() {
+        tokens -= 1;
+    }
+
+    public synchronized void acknowledged() {
+        if(window < slowStartThreshold)
+            window += 1;
+        else
+            window += 1 / window;
+        window = Math.min(window, MAX_WINDOW);
+    }
+
+    /**
+     * A packet timed out. The window is halved at most once per round trip, so one burst of losses counts once.
+     */
+    public synchronized void lost(long timeNow) {
+        if((timeNow - timeLastReduction) < getRoundTripTime())
+            return;
+        timeLastReduction = timeNow;
+        slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+        window = slowStartThreshold;
+    }
+
+    public String toString() {
+        return String.format("CWND=%.1f SSTHRESH=%.1f", getWindow(), getSlowStartThreshold());
+    }
+}
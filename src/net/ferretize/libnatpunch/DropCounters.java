@@ -0,0 +1,106 @@
+package net.ferretize.libnatpunch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+/**
+ * Counts received data that was dropped, by reason. The first reasons are the negated REJECT_ codes of
+ * PacketEncoder.readPacket, the others are dropped further up, except SEND, which counts datagrams of ours that
+ * couldn't be sent. Counting is lock-free, so the worker thread can afford it for every datagram of a flood.
+ */
+public class DropCounters {
+    final public static int HEADER = -PacketEncoder.REJECT_HEADER;
+    final public static int FLAGS = -PacketEncoder.REJECT_FLAGS;
+    final public static int VARINT = -PacketEncoder.REJECT_VARINT;
+    final public static int ARGUMENTS = -PacketEncoder.REJECT_ARGUMENTS;
+    final public static int TRAILING = -PacketEncoder.REJECT_TRAILING;
+    //  Failed to authenticate, or encrypted while we have no PacketCipher
+    final public static int DECRYPT = 6;
+    //  Plaintext from an endpoint that has to encrypt
+    final public static int PLAINTEXT = 7;
+    final public static int COMPRESSED = 8;
+    //  A partial frame declared or grew past what a datagram can hold
+    final public static int OVERFLOW = 9;
+    //  The packet receiver threw on a well-formed frame, its arguments didn't make sense
+    final public static int HANDLER = 10;
+    //  The executor of an application command handler had no room for it
+    final public static int BUSY = 11;
+    //  A partial frame from an endpoint that never sent a complete one, so it isn't kept
+    final public static int PARTIAL = 12;
+    //  An encrypted datagram that was received before or is older than the session's replay window
+    final public static int REPLAY = 13;
+    //  A frame of one of the protocol's own commands with arguments too short or malformed for its handler to read
+    final public static int MALFORMED = 14;
+    //  A datagram of ours the network layer didn't take, its send buffer stayed full
+    final public static int SEND = 15;
+    final public static int REASON_COUNT = 16;
+
+    private final AtomicLongArray counts = new AtomicLongArray(REASON_COUNT);
+
+    /**
+     * Counts a drop and returns how many there were for reason so far.
+     */
+    public long drop(int reason) {
+        return counts.incrementAndGet(reason);
+    }
+
+    //  Counts a frame readPacket returned code for
+    public long reject(int code) {
+        return drop(-code);
+    }
+
+    public long get(int reason) {
+        return counts.get(reason);
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for(int i = 1; i < REASON_COUNT; ++i)
+            total += counts.get(i);
+        return total;
+    }
+
+    public static String reasonToString(int reason) {
+        switch(reason) {
+            case HEADER: return "HEADER";
+            case FLAGS: return "FLAGS";
+            case VARINT: return "VARINT";
+            case ARGUMENTS: return "ARGUMENTS";
+            case TRAILING: return "TRAILING";
+            case DECRYPT: return "DECRYPT";
+            case PLAINTEXT: return "PLAINTEXT";
+            case COMPRESSED: return "COMPRESSED";
+            case OVERFLOW: return "OVERFLOW";
+            case HANDLER: return "HANDLER";
+            case BUSY: return "BUSY";
+            case PARTIAL: return "PARTIAL";
+            case REPLAY: return "REPLAY";
+            case MALFORMED: return "MALFORMED";
+            case SEND: return "SEND";
+        }
+        return "UNKNOWN";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 1; i < REASON_COUNT; ++i) {
+            long count = counts.get(i);
+            if(count == 0)
+                continue;
+            if(builder.length() > 0)
+                builder.append(", ");
+            builder.append(reasonToString(i)).append('=').append(count);
+        }
+        return builder.toString();
+    }
+}
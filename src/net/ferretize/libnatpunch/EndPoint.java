@@ -31,6 +31,8 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -42,9 +44,50 @@ public class EndPoint {
     public int localPort, externalPort;
     public long lastReceive;
     public boolean keepAlive;
+    //  Holds a partially received frame, sized to what the frame declares, and null otherwise
     public ByteBuffer data;
+    //  Frames the worker thread collected for one datagram until BasePacketReceiver.flush(), null otherwise
+    ByteBuffer pendingDatagram;
+    //  Set once a complete frame was read from this endpoint, partial frames are only kept after that
+    boolean receivedFrame;
+    //  Round trip time estimate from acknowledged guaranteed packets, drives the resend timeout
+    public final RttEstimator rtt = new RttEstimator();
+    public final CongestionController congestion = new CongestionController(rtt);
+    //  Message ids of guaranteed packets received from this endpoint, for duplicate detection
+    public final ReceiveWindow receiveWindow = new ReceiveWindow();
+    //  Incarnation the endpoint announced in its last handshake, guarded by receiveWindow
+    byte []peerIncarnation;
+    //  Id of the next guaranteed packet we send to this endpoint, owned by the worker thread. Starts at random, so
+    //  the peer's ReceiveWindow takes the ids of an endpoint we evicted and recreated for a new numbering
+    int nextMessageId = ThreadLocalRandom.current().nextInt();
+    //  Ids given to the multipart transfers being sent to this endpoint, keyed by the id they were created with
+    IntMap<int[]> multipartMessageIds;
+    //  Wire format we send to this endpoint, raised once it announces a newer version in REGISTER or HELLO
+    public volatile int protocolVersion = BinaryPacketEncoder.VERSION;
+    //  Largest datagram we send to this endpoint, raised by probing once sendMessage is first used
+    public final PathMtu pathMtu = new PathMtu();
+    //  PacketEncoder.CAPABILITY_ bits this endpoint announced in REGISTER or HELLO
+    public volatile int capabilities;
+    //  Keys agreed with this endpoint when NatPunch has a PacketCipher, null until its public key is known
+    public volatile PacketCipher.Session session;
+    //  Sends the keepalive NOPs while keepAlive is set, see NatPunch.keepAlive
+    TimerWheel.Timer keepAliveTimer;
+    //  Bytes queued for this endpoint and not sent yet, counted against the per-endpoint send budget
+    final AtomicLong queuedBytes = new AtomicLong();
+    //  Set once EndPointHandler removed the endpoint, until it is added again
+    volatile boolean removed;
+
+    //  Socket addresses to send to, rebuilt when the address fields change
+    private InetSocketAddress externalSocketAddress, localSocketAddress;
 
     private Object []attributes;
+    final public static int MAX_ATTRIBUTES = 20;
+
+    //  Position and keys this endpoint is currently stored under in its EndPointHandler
+    long sequence = -1;
+    long timeAdded;
+    volatile EndPointId indexedId;
+    volatile AddressKey indexedExternalAddress, indexedLocalAddress;
     
     public EndPoint() {
         this.id = null;
@@ -54,27 +97,56 @@ public class EndPoint {
         this.externalPort = 0;
         this.lastReceive = 0;
         this.keepAlive = false;
-        this.data = ByteBuffer.allocate(10000);
-        this.attributes = new Object[20];
-        Arrays.fill(attributes, null);
+        this.data = null;
+        this.attributes = null;
+    }
+
+    public InetSocketAddress getExternalSocketAddress() {
+        InetSocketAddress address = externalSocketAddress;
+        if(address == null || address.getAddress() != externalAddress || address.getPort() != externalPort) {
+            address = new InetSocketAddress(externalAddress, externalPort);
+            externalSocketAddress = address;
+        }
+        return address;
+    }
+
+    public InetSocketAddress getLocalSocketAddress() {
+        InetSocketAddress address = localSocketAddress;
+        if(address == null || address.getAddress() != localAddress || address.getPort() != localPort) {
+            address = new InetSocketAddress(localAddress, localPort);
+            localSocketAddress = address;
+        }
+        return address;
     }
 
     public void setAttribute(int index, Object value) {
-        if(index < 0 || index >= attributes.length)
+        if(index < 0 || index >= MAX_ATTRIBUTES)
             throw new IndexOutOfBoundsException();
+        if(attributes == null) {
+            if(value == null)
+                return;
+            attributes = new Object[MAX_ATTRIBUTES];
+        }
         attributes[index] = value;
     }
 
     public Object getAttribute(int index, Object defaultValue) {
-        if(index < 0 || index >= attributes.length)
+        if(index < 0 || index >= MAX_ATTRIBUTES)
             throw new IndexOutOfBoundsException();
-        return attributes[index] != null ? attributes[index] : defaultValue;
+        return attributes != null && attributes[index] != null ? attributes[index] : defaultValue;
     }
 
     public Object getAttribute(int index) {
         return getAttribute(index, null);
     }
     
+    /**
+     * Time of the last received datagram, or of when the endpoint was added if nothing was received yet.
+     */
+    public long getLastActivity() {
+        return Math.max(lastReceive, timeAdded);
+    }
+    
     public boolean isLocal(InetAddress otherExternalAddress) {
         if(this.localAddress == null || this.localAddress.isLoopbackAddress())
             return false;
@@ -25,77 +25,341 @@ package net.ferretize.libnatpunch;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Endpoint registry that can be used from several threads without a global lock. Lookups only touch
+ * concurrent maps, and changes to a single endpoint are serialized on the endpoint itself.
  *
  * @author Erik
  */
 public class EndPointHandler {
-    final private ArrayList<EndPoint> endPoints;
+    //  Keyed by insertion sequence, so iteration keeps the order endpoints were added in
+    final private ConcurrentSkipListMap<Long, EndPoint> endPoints;
+    final private ConcurrentHashMap<EndPointId, EndPoint> endPointsById;
+    //  Every endpoint using an address, oldest first, the first one is what lookups return
+    final private ConcurrentHashMap<AddressKey, EndPoint[]> endPointsByExternalAddress, endPointsByLocalAddress;
+    final private AtomicLong nextSequence;
+    final private CopyOnWriteArrayList<EndPointEvictionListener> evictionListeners;
 
-    private EndPoint introducerEndPoint;
+    final public static long DEFAULT_IDLE_TIMEOUT = 120000;
+
+    //  Endpoints that haven't sent anything for this long (ms) are evicted, 0 disables
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    //  The least recently active endpoints are evicted when there are more than this many, 0 disables
+    private volatile int maxEndPoints = 0;
+    public void setMaxEndPoints(int maxEndPoints) {
+        this.maxEndPoints = maxEndPoints;
+    }
+    public int getMaxEndPoints() {
+        return maxEndPoints;
+    }
+
+    private volatile EndPoint introducerEndPoint;
     public void setIntroducerEndPoint(EndPoint endPoint) {
-        EndPoint ep = findEndPoint(endPoint.externalAddress, endPoint.externalPort);
-        if(ep != null) {
-            introducerEndPoint = ep;
-        }
-        else {
-            introducerEndPoint = endPoint;
-            addEndPoint(endPoint);
-        }
+        introducerEndPoint = findOrAddEndPoint(endPoint.externalAddress, endPoint.externalPort);
     }
     public EndPoint getIntroducerEndPoint() {
         return introducerEndPoint;
     }
     
     public EndPointHandler() {
-        this.endPoints = new ArrayList<>();
+        this.endPoints = new ConcurrentSkipListMap<>();
+        this.endPointsById = new ConcurrentHashMap<>();
+        this.endPointsByExternalAddress = new ConcurrentHashMap<>();
+        this.endPointsByLocalAddress = new ConcurrentHashMap<>();
+        this.nextSequence = new AtomicLong();
+        this.evictionListeners = new CopyOnWriteArrayList<>();
     }
-    
-    public ArrayList<EndPoint> getEndPoints() {
-        return endPoints;
+
+    public void addEvictionListener(EndPointEvictionListener listener) {
+        evictionListeners.add(listener);
+    }
+
+    public void removeEvictionListener(EndPointEvictionListener listener) {
+        evictionListeners.remove(listener);
+    }
+
+    /**
+     * Returns a weakly consistent view of all endpoints. It is safe to iterate while other threads add
+     * or remove endpoints, and never throws ConcurrentModificationException.
+     */
+    public Collection<EndPoint> getEndPoints() {
+        return endPoints.values();
+    }
+
+    public int getEndPointCount() {
+        return endPoints.size();
     }
     
     public EndPoint findEndPoint(byte []id) {
         if(id == null || id.length == 0)
             return null;
-        for(EndPoint ep : endPoints)
-            if(ep.is(id))
-                return ep;
-        return null;
+        return endPointsById.get(EndPointId.wrap(id));
     }
     
     public EndPoint findEndPoint(InetSocketAddress address) {
         if(address == null)
             return null;
-
-        for(EndPoint ep : endPoints) {
-            if(ep.is(address))
-                return ep;
-        }
-        return null;
+        return findEndPoint(address.getAddress(), address.getPort());
     }
     
     public EndPoint findEndPoint(InetAddress address, int port) {
-        for(EndPoint ep : endPoints) {
-            if(ep.is(address, port))
-                return ep;
+        AddressKey key = AddressKey.of(address, port);
+        if(key == null)
+            return null;
+        EndPoint []eps = endPointsByExternalAddress.get(key);
+        if(eps == null)
+            eps = endPointsByLocalAddress.get(key);
+        return eps != null ? eps[0] : null;
+    }
+
+    public EndPoint findOrAddEndPoint(InetSocketAddress address) {
+        return findOrAddEndPoint(address.getAddress(), address.getPort());
+    }
+
+    /**
+     * Finds the endpoint using the given address, or atomically creates one with it as external address.
+     * Concurrent callers for the same unknown address all get the same endpoint.
+     */
+    public EndPoint findOrAddEndPoint(InetAddress address, int port) {
+        EndPoint ep = findEndPoint(address, port);
+        if(ep != null)
+            return ep;
+
+        AddressKey key = AddressKey.of(address, port);
+        EndPoint newEndPoint = new EndPoint();
+        newEndPoint.externalAddress = address;
+        newEndPoint.externalPort = port;
+        synchronized (newEndPoint) {
+            EndPoint []eps = endPointsByExternalAddress.putIfAbsent(key, new EndPoint[] { newEndPoint });
+            if(eps != null)
+                return eps[0];
+            newEndPoint.indexedExternalAddress = key;
+            insert(newEndPoint);
+        }
+        return newEndPoint;
+    }
+
+    /**
+     * Finds the endpoint with the given id, or atomically creates and adds it, and updates its addresses.
+     * An endpoint without id that already uses the external address is given the id instead of creating another.
+     */
+    public EndPoint updateEndPoint(byte []id, InetAddress externalAddress, int externalPort, InetAddress localAddress, int localPort) {
+        EndPoint ep = findEndPoint(id);
+        if(ep == null) {
+            //  Packets from the address may have arrived before we learned its id, adopt that endpoint
+            EndPoint anonymous = findEndPoint(externalAddress, externalPort);
+            if(anonymous != null) {
+                synchronized (anonymous) {
+                    if(anonymous.id == null && anonymous.sequence >= 0) {
+                        anonymous.id = id;
+                        reindexEndPoint(anonymous);
+                    }
+                }
+                ep = findEndPoint(id);
+            }
+        }
+        if(ep == null) {
+            EndPointId key = EndPointId.of(id);
+            EndPoint newEndPoint = new EndPoint();
+            newEndPoint.id = id;
+            synchronized (newEndPoint) {
+                ep = endPointsById.putIfAbsent(key, newEndPoint);
+                if(ep == null) {
+                    ep = newEndPoint;
+                    ep.indexedId = key;
+                    insert(ep);
+                }
+            }
         }
-        return null;
+        synchronized (ep) {
+            ep.externalAddress = externalAddress;
+            ep.externalPort = externalPort;
+            ep.localAddress = localAddress;
+            ep.localPort = localPort;
+            reindexEndPoint(ep);
+        }
+        return ep;
     }
     
     public void addEndPoint(EndPoint ep) {
-        endPoints.add(ep);
+        synchronized (ep) {
+            if(ep.sequence >= 0)
+                return;
+            insert(ep);
+            reindexEndPoint(ep);
+        }
+    }
+
+    private void insert(EndPoint ep) {
+        ep.timeAdded = System.currentTimeMillis();
+        ep.sequence = nextSequence.getAndIncrement();
+        ep.removed = false;
+        endPoints.put(ep.sequence, ep);
+    }
+
+    /**
+     * Must be called after changing id, externalAddress/externalPort or localAddress/localPort of an added endpoint.
+     */
+    public void reindexEndPoint(EndPoint ep) {
+        synchronized (ep) {
+            if(ep.sequence < 0)
+                return;
+
+            EndPointId id = ep.indexedId != null && ep.indexedId.is(ep.id) ? ep.indexedId : EndPointId.of(ep.id);
+            AddressKey externalAddress = AddressKey.of(ep.externalAddress, ep.externalPort);
+            AddressKey localAddress = AddressKey.of(ep.localAddress, ep.localPort);
+
+            if(ep.indexedId != id) {
+                if(ep.indexedId != null)
+                    endPointsById.remove(ep.indexedId, ep);
+                //  The newest endpoint owns an id, REGISTER removes older endpoints with the same id anyway
+                if(id != null)
+                    endPointsById.put(id, ep);
+                ep.indexedId = id;
+            }
+            if(!equalKeys(ep.indexedExternalAddress, externalAddress)) {
+                unindexAddress(endPointsByExternalAddress, ep.indexedExternalAddress, ep);
+                ep.indexedExternalAddress = indexAddress(endPointsByExternalAddress, externalAddress, ep);
+            }
+            if(!equalKeys(ep.indexedLocalAddress, localAddress)) {
+                unindexAddress(endPointsByLocalAddress, ep.indexedLocalAddress, ep);
+                ep.indexedLocalAddress = indexAddress(endPointsByLocalAddress, localAddress, ep);
+            }
+        }
     }
     
-    public void removeEndPoint(EndPoint ep) {
-        endPoints.remove(ep);
+    public boolean removeEndPoint(EndPoint ep) {
+        synchronized (ep) {
+            if(ep.sequence < 0 || !endPoints.remove(ep.sequence, ep))
+                return false;
+            ep.sequence = -1;
+            ep.removed = true;
+            if(ep.indexedId != null)
+                endPointsById.remove(ep.indexedId, ep);
+            unindexAddress(endPointsByExternalAddress, ep.indexedExternalAddress, ep);
+            unindexAddress(endPointsByLocalAddress, ep.indexedLocalAddress, ep);
+            ep.indexedId = null;
+            ep.indexedExternalAddress = null;
+            ep.indexedLocalAddress = null;
+        }
+        return true;
     }
     
     public void removeEndPoints(Collection<EndPoint> c) {
-        endPoints.removeAll(c);
+        for(EndPoint ep : c)
+            removeEndPoint(ep);
+    }
+
+    /**
+     * Removes endpoints that have been idle longer than the idle timeout, then the least recently active
+     * endpoints until there are at most maxEndPoints left, those without an id first, so datagrams from
+     * spoofed sources can't push out registered endpoints. The introducer endpoint is never evicted.
+     * Returns the number of evicted endpoints.
+     */
+    public int evictEndPoints(long timeNow) {
+        long timeout = idleTimeout;
+        int max = maxEndPoints;
+        int evicted = 0;
+
+        if(timeout > 0) {
+            for(EndPoint ep : endPoints.values()) {
+                if(ep != introducerEndPoint && (timeNow - ep.getLastActivity()) > timeout && evictEndPoint(ep))
+                    ++evicted;
+            }
+        }
+
+        int excess = max > 0 ? endPoints.size() - max : 0;
+        if(excess > 0) {
+            //  Keep the excess endpoints most worth evicting, endpoints with an id and the most recent on top
+            PriorityQueue<EndPoint> victims = new PriorityQueue<>(excess + 1,
+                    (a, b) -> (a.id == null) != (b.id == null) ? (a.id == null ? 1 : -1)
+                            : Long.compare(b.getLastActivity(), a.getLastActivity()));
+            for(EndPoint ep : endPoints.values()) {
+                if(ep == introducerEndPoint)
+                    continue;
+                victims.add(ep);
+                if(victims.size() > excess)
+                    victims.poll();
+            }
+            for(EndPoint ep : victims) {
+                if(evictEndPoint(ep))
+                    ++evicted;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the endpoint and notifies the eviction listeners, so everything held for it is released.
+     * Returns false if it was already removed.
+     */
+    public boolean evictEndPoint(EndPoint ep) {
+        if(!removeEndPoint(ep))
+            return false;
+        for(EndPointEvictionListener listener : evictionListeners)
+            listener.endPointEvicted(ep);
+        return true;
+    }
+
+    private static boolean equalKeys(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * When several endpoints share an address the oldest one wins, matching the order the endpoint list used to be scanned in.
+     * Only the endpoints sharing the key are touched, so indexing and removal don't depend on the number of endpoints.
+     */
+    private static AddressKey indexAddress(ConcurrentHashMap<AddressKey, EndPoint[]> map, AddressKey key, EndPoint ep) {
+        if(key == null)
+            return null;
+        map.compute(key, (k, eps) -> {
+            if(eps == null)
+                return new EndPoint[] { ep };
+            //  Keep the array ordered by sequence, endpoints that are still being added go last
+            int i = eps.length;
+            while(i > 0 && ep.sequence >= 0 && (eps[i - 1].sequence < 0 || eps[i - 1].sequence > ep.sequence))
+                --i;
+            EndPoint []result = new EndPoint[eps.length + 1];
+            System.arraycopy(eps, 0, result, 0, i);
+            result[i] = ep;
+            System.arraycopy(eps, i, result, i + 1, eps.length - i);
+            return result;
+        });
+        return key;
+    }
+
+    /**
+     * Removes the endpoint from the key, the next endpoint sharing the address takes over lookups.
+     */
+    private static void unindexAddress(ConcurrentHashMap<AddressKey, EndPoint[]> map, AddressKey key, EndPoint ep) {
+        if(key == null)
+            return;
+        map.computeIfPresent(key, (k, eps) -> {
+            for(int i = 0; i < eps.length; ++i) {
+                if(eps[i] != ep)
+                    continue;
+                if(eps.length == 1)
+                    return null;
+                EndPoint []result = new EndPoint[eps.length - 1];
+                System.arraycopy(eps, 0, result, 0, i);
+                System.arraycopy(eps, i + 1, result, i, eps.length - i - 1);
+                return result;
+            }
+            return eps;
+        });
     }
 }
@@ -0,0 +1,69 @@
+package net.ferretize.libnatpunch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class EndPointId {
+    private final byte []id;
+    private final int hash;
+
+    private EndPointId(byte []id) {
+        this.id = id;
+        this.hash = Arrays.hashCode(id);
+    }
+
+    /**
+     * Creates an id that owns a private copy of the given bytes, safe to store as a map key.
+     */
+    public static EndPointId of(byte []id) {
+        if(id == null || id.length == 0)
+            return null;
+        return new EndPointId(id.clone());
+    }
+
+    /**
+     * Creates an id that shares the given bytes. Only use for short lived lookup keys.
+     */
+    static EndPointId wrap(byte []id) {
+        if(id == null || id.length == 0)
+            return null;
+        return new EndPointId(id);
+    }
+
+    public byte[] getBytes() {
+        return id.clone();
+    }
+
+    public boolean is(byte []other) {
+        return Arrays.equals(id, other);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof EndPointId))
+            return false;
+        EndPointId other = (EndPointId)o;
+        return hash == other.hash && Arrays.equals(id, other.id);
+    }
+
+    public String toString() {
+        return new String(id, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,173 @@
+package net.ferretize.libnatpunch;
+
+import java.util.Arrays;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Open addressing hash map from primitive int keys to non-null values, without boxing or tombstones.
+ * Not thread-safe.
+ */
+public final class IntMap<V> {
+    private int []keys;
+    private Object []values;
+    private int size;
+    private int mask;
+
+    public IntMap() {
+        this(16);
+    }
+
+    public IntMap(int expectedSize) {
+        int capacity = 16;
+        while(capacity * 3 < expectedSize * 4)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key)
+                return (V)values[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("value cannot be null");
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++size * 4 > values.length * 3)
+            resize(values.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = hash(key) & mask;
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                removeAt(i);
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Calls the visitor for every entry. Entries for which it returns true are removed.
+     */
+    @SuppressWarnings("unchecked")
+    public void removeIf(Visitor<V> visitor) {
+        //  Start right after an empty slot, so backward shifts never move an unvisited entry behind us
+        int start = 0;
+        while(values[start] != null)
+            start = (start + 1) & mask;
+        int i = (start + 1) & mask;
+        int visited = 1;
+        while(visited < values.length) {
+            if(values[i] != null && visitor.visit(keys[i], (V)values[i])) {
+                removeAt(i);
+                //  Slot i may now hold a shifted entry that still has to be visited
+                continue;
+            }
+            i = (i + 1) & mask;
+            ++visited;
+        }
+    }
+
+    /**
+     * Calls the visitor for every entry, its return value is ignored. The map must not be modified meanwhile.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<V> visitor) {
+        for(int i = 0; i < values.length; ++i) {
+            if(values[i] != null)
+                visitor.visit(keys[i], (V)values[i]);
+        }
+    }
+
+    public interface Visitor<V> {
+        boolean visit(int key, V value);
+    }
+
+    private void removeAt(int i) {
+        values[i] = null;
+        --size;
+        //  Shift following entries of the probe sequence back into the hole
+        int hole = i;
+        int j = (i + 1) & mask;
+        while(values[j] != null) {
+            int home = hash(keys[j]) & mask;
+            if(((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                values[j] = null;
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        int []oldKeys = keys;
+        Object []oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for(int i = 0; i < oldValues.length; ++i) {
+            if(oldValues[i] == null)
+                continue;
+            int j = hash(oldKeys[i]) & mask;
+            while(values[j] != null)
+                j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
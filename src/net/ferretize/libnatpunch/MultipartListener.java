@@ -0,0 +1,28 @@
+package net.ferretize.libnatpunch;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public interface MultipartListener {
+    /**
+     * Called once all parts of a multipart packet have arrived. data holds the first argument of every
+     * part in order, from position 0 to limit. If the reassembler uses a buffer pool the buffer is
+     * recycled when this returns, so copy out anything that has to be kept.
+     */
+    void multipartReceived(EndPoint endPoint, PacketData parent, ByteBuffer data);
+
+    /**
+     * Called once every fragment of a message sent with sendMessage has arrived, with the message from
+     * position 0 to limit. The same buffer rules as for multipartReceived apply.
+     */
+    void messageReceived(EndPoint endPoint, ByteBuffer data);
+}
@@ -0,0 +1,447 @@
+package net.ferretize.libnatpunch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Reassembles multipart packets, keyed by endpoint and parent messageId. All parts except the last are
+ * expected to be the same size, so each part is written straight to its offset in one preallocated buffer.
+ * Parts that arrive before that size is known (before the parent, or only the last part) are held until it is.
+ * Fragments of messages from sendMessage carry the message length and fragment size, so are never held.
+ */
+public class MultipartReassembler {
+    //  Also the timer that drops the transfer, rearmed lazily when it expires while parts still arrive
+    private class Transfer extends TimerWheel.Timer {
+        final EndPoint endPoint;
+        final int parentMessageId;
+        PacketData parent;
+        int partCount = -1;
+        int partSize = -1;
+        int lastPartLength = -1;
+        int receivedCount;
+        long []receivedParts = new long[(MAX_PARTS + 63) >>> 6];
+        //  Set for fragments of a message from sendMessage, which have no parent
+        boolean message;
+        int messageLength;
+        ByteBuffer buffer;
+        boolean pooledBuffer;
+        ArrayList<PacketData> heldParts;
+        //  Bytes of the held parts, counted in bufferedBytes
+        int heldBytes;
+        long timeLastPart;
+
+        Transfer(EndPoint endPoint, int parentMessageId) {
+            this.endPoint = endPoint;
+            this.parentMessageId = parentMessageId;
+        }
+
+        boolean hasPart(int partIndex) {
+            return (receivedParts[partIndex >>> 6] & (1L << partIndex)) != 0;
+        }
+
+        void setPart(int partIndex) {
+            receivedParts[partIndex >>> 6] |= 1L << partIndex;
+            ++receivedCount;
+        }
+
+        @Override
+        protected void expired(long timeNow) {
+            transferTimedOut(this, timeNow);
+        }
+    }
+
+    final public static int MAX_PARTS = 256;
+    final private static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    final public static long DEFAULT_TIMEOUT = PacketHandler.MAX_PACKET_AGE;
+    final public static int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    final public static long DEFAULT_MAX_TOTAL_SIZE = 64 * 1024 * 1024;
+    //  Smallest fragment size a message may declare. sendMessage fills datagrams of at least PathMtu.BASE_SIZE,
+    //  so this only bounds how many fragments, and how large a bitmap of them, a message can claim
+    final public static int MIN_FRAGMENT_SIZE = 256;
+    final public static int DEFAULT_MAX_TRANSFERS_PER_END_POINT = 64;
+
+    private final MultipartListener listener;
+    private final TimerWheel timerWheel;
+    private final HashMap<EndPoint, IntMap<Transfer>> transfers;
+    //  Bytes of assembly buffers and held parts
+    private long bufferedBytes;
+
+    private long timeout = DEFAULT_TIMEOUT;
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    private long maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+    public void setMaxTotalSize(long maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    //  Parts of further transfers from an endpoint with this many open are dropped until one completes or times out
+    private int maxTransfersPerEndPoint = DEFAULT_MAX_TRANSFERS_PER_END_POINT;
+    public void setMaxTransfersPerEndPoint(int maxTransfersPerEndPoint) {
+        this.maxTransfersPerEndPoint = maxTransfersPerEndPoint;
+    }
+
+    //  Messages that fit are assembled in buffers from this pool, larger ones get their own buffer
+    private BufferPool bufferPool;
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    private boolean direct;
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    public MultipartReassembler(MultipartListener listener, TimerWheel timerWheel) {
+        this.listener = listener;
+        this.timerWheel = timerWheel;
+        this.transfers = new HashMap<>();
+    }
+
+    public synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    public void handleParent(EndPoint endPoint, PacketData parent, long timeNow) {
+        Transfer completed;
+        synchronized (this) {
+            int partCount = parent.partCount & 0xFF;
+            Transfer transfer = getTransfer(endPoint, parent.messageId, timeNow);
+            if(transfer == null || transfer.parent != null || transfer.message)
+                return;
+            transfer.parent = parent;
+            transfer.partCount = partCount;
+            if(partCount == 0) {
+                remove(transfer);
+                return;
+            }
+            if(transfer.heldParts != null) {
+                ArrayList<PacketData> heldParts = takeHeldParts(transfer);
+                for(PacketData part : heldParts) {
+                    if(!addPart(transfer, part.partIndex & 0xFF, ByteBuffer.wrap(part.getArgument(0))))
+                        return;
+                }
+            }
+            completed = takeIfComplete(transfer);
+        }
+        deliver(completed);
+    }
+
+    public void handlePart(EndPoint endPoint, PacketData part, long timeNow) {
+        byte []data = part.getArgument(0);
+        handlePart(endPoint, part.parentMessageId, part.partIndex & 0xFF, data != null ? ByteBuffer.wrap(data) : EMPTY, timeNow);
+    }
+
+    /**
+     * Writes the part straight from the receive buffer, the view is only copied if the part has to be held.
+     */
+    public void handlePart(EndPoint endPoint, PacketView part, long timeNow) {
+        ByteBuffer data = part.getArgumentBuffer(0);
+        handlePart(endPoint, part.getParentMessageId(), part.getPartIndex() & 0xFF, data != null ? data : EMPTY, timeNow);
+    }
+
+    private void handlePart(EndPoint endPoint, int parentMessageId, int partIndex, ByteBuffer data, long timeNow) {
+        Transfer completed;
+        synchronized (this) {
+            Transfer transfer = getTransfer(endPoint, parentMessageId, timeNow);
+            if(transfer == null)
+                return;
+            transfer.timeLastPart = timeNow;
+            if(!addPart(transfer, partIndex, data))
+                return;
+            completed = takeIfComplete(transfer);
+        }
+        deliver(completed);
+    }
+
+    /**
+     * Handles a fragment of a message from sendMessage, written straight from the receive buffer.
+     */
+    public void handleFragment(EndPoint endPoint, PacketView fragment, long timeNow) {
+        if(fragment.getArgumentCount() < 5)
+            return;
+        handleFragment(endPoint, fragment.getArgumentInt(0), fragment.getArgumentInt(1),
+                fragment.getArgumentShort(2) & 0xFFFF, fragment.getArgumentInt(3), fragment.getArgumentBuffer(4), timeNow);
+    }
+
+    public void handleFragment(EndPoint endPoint, PacketData fragment, long timeNow) {
+        if(fragment.getArgumentCount() < 5)
+            return;
+        handleFragment(endPoint, ByteBuffer.wrap(fragment.getArgument(0)).getInt(), ByteBuffer.wrap(fragment.getArgument(1)).getInt(),
+                ByteBuffer.wrap(fragment.getArgument(2)).getShort() & 0xFFFF, ByteBuffer.wrap(fragment.getArgument(3)).getInt(),
+                ByteBuffer.wrap(fragment.getArgument(4)), timeNow);
+    }
+
+    private void handleFragment(EndPoint endPoint, int messageKey, int messageLength, int fragmentSize, int fragmentIndex,
+                                ByteBuffer data, long timeNow) {
+        Transfer completed;
+        synchronized (this) {
+            if(messageLength < 0 || fragmentSize < MIN_FRAGMENT_SIZE)
+                return;
+            Transfer transfer = findTransfer(endPoint, messageKey);
+            //  Checked before anything is allocated from what the peer claims
+            if((transfer == null || transfer.buffer == null)
+                    && (messageLength > maxMessageSize || bufferedBytes + messageLength > maxTotalSize)) {
+                if(transfer != null)
+                    remove(transfer);
+                return;
+            }
+            if(transfer == null)
+                transfer = getTransfer(endPoint, messageKey, timeNow);
+            if(transfer == null)
+                return;
+            transfer.timeLastPart = timeNow;
+            if(transfer.buffer == null) {
+                if(transfer.parent != null || transfer.heldParts != null) {
+                    remove(transfer);
+                    return;
+                }
+                transfer.message = true;
+                transfer.messageLength = messageLength;
+                transfer.partSize = fragmentSize;
+                transfer.partCount = Math.max(1, (int)(((long)messageLength + fragmentSize - 1) / fragmentSize));
+                if(transfer.partCount > MAX_PARTS)
+                    transfer.receivedParts = new long[(transfer.partCount + 63) >>> 6];
+                if(!allocateBuffer(transfer)) {
+                    remove(transfer);
+                    return;
+                }
+            }
+            else if(!transfer.message || transfer.messageLength != messageLength || transfer.partSize != fragmentSize) {
+                remove(transfer);
+                return;
+            }
+            if(fragmentIndex < 0 || fragmentIndex >= transfer.partCount) {
+                remove(transfer);
+                return;
+            }
+            if(transfer.hasPart(fragmentIndex))
+                return;
+            int expectedLength = (int)Math.min(fragmentSize, messageLength - (long)fragmentIndex * fragmentSize);
+            if(data == null || data.remaining() != expectedLength) {
+                remove(transfer);
+                return;
+            }
+            transfer.setPart(fragmentIndex);
+            write(transfer, fragmentIndex, data);
+            completed = takeIfComplete(transfer);
+        }
+        deliver(completed);
+    }
+
+    /**
+     * Drops transfer if it hasn't received a part within the timeout.
+     */
+    private synchronized void transferTimedOut(Transfer transfer, long timeNow) {
+        IntMap<Transfer> endPointTransfers = transfers.get(transfer.endPoint);
+        if(endPointTransfers == null || endPointTransfers.get(transfer.parentMessageId) != transfer)
+            return;
+        if((timeNow - transfer.timeLastPart) <= timeout) {
+            timerWheel.schedule(transfer, transfer.timeLastPart + timeout + 1);
+            return;
+        }
+        remove(transfer);
+    }
+
+    public synchronized void removeTransfers(EndPoint endPoint) {
+        IntMap<Transfer> endPointTransfers = transfers.remove(endPoint);
+        if(endPointTransfers == null)
+            return;
+        endPointTransfers.forEach(new IntMap.Visitor<Transfer>() {
+            @Override
+            public boolean visit(int parentMessageId, Transfer transfer) {
+                timerWheel.cancel(transfer);
+                releaseBuffer(transfer);
+                takeHeldParts(transfer);
+                return false;
+            }
+        });
+    }
+
+    private Transfer findTransfer(EndPoint endPoint, int parentMessageId) {
+        IntMap<Transfer> endPointTransfers = transfers.get(endPoint);
+        return endPointTransfers != null ? endPointTransfers.get(parentMessageId) : null;
+    }
+
+    /**
+     * Returns the transfer, starting it if there is none. Returns null if the endpoint already has
+     * maxTransfersPerEndPoint open.
+     */
+    private Transfer getTransfer(EndPoint endPoint, int parentMessageId, long timeNow) {
+        IntMap<Transfer> endPointTransfers = transfers.get(endPoint);
+        if(endPointTransfers == null) {
+            endPointTransfers = new IntMap<>();
+            transfers.put(endPoint, endPointTransfers);
+        }
+        Transfer transfer = endPointTransfers.get(parentMessageId);
+        if(transfer == null) {
+            if(endPointTransfers.size() >= maxTransfersPerEndPoint) {
+                if(endPointTransfers.isEmpty())
+                    transfers.remove(endPoint);
+                return null;
+            }
+            transfer = new Transfer(endPoint, parentMessageId);
+            transfer.timeLastPart = timeNow;
+            endPointTransfers.put(parentMessageId, transfer);
+            timerWheel.schedule(transfer, timeNow + timeout + 1);
+        }
+        return transfer;
+    }
+
+    /**
+     * Returns false if the transfer had to be dropped.
+     */
+    private boolean addPart(Transfer transfer, int partIndex, ByteBuffer data) {
+        if(transfer.message || (transfer.partCount >= 0 && partIndex >= transfer.partCount)) {
+            remove(transfer);
+            return false;
+        }
+        if(transfer.hasPart(partIndex))
+            return true;
+
+        if(transfer.buffer == null) {
+            boolean isLast = partIndex == transfer.partCount - 1;
+            if(transfer.partCount < 0 || (isLast && transfer.partCount > 1)) {
+                //  Can't tell the part size from this part yet
+                if(transfer.heldParts == null)
+                    transfer.heldParts = new ArrayList<>();
+                if(transfer.heldParts.size() >= MAX_PARTS || bufferedBytes + data.remaining() > maxTotalSize) {
+                    remove(transfer);
+                    return false;
+                }
+                //  data may be a view of the receive buffer, keep a copy
+                byte []copy = new byte[data.remaining()];
+                data.duplicate().get(copy);
+                bufferedBytes += copy.length;
+                transfer.heldBytes += copy.length;
+                transfer.heldParts.add(new PacketData(PacketEncoder.FLAGS_MULTIPART_PART, 0, 0, partIndex, 0, 0, new byte[][] {copy}));
+                return true;
+            }
+            transfer.partSize = data.remaining();
+            if(!allocateBuffer(transfer)) {
+                remove(transfer);
+                return false;
+            }
+            transfer.setPart(partIndex);
+            write(transfer, partIndex, data);
+            if(transfer.heldParts != null) {
+                ArrayList<PacketData> heldParts = takeHeldParts(transfer);
+                for(PacketData heldPart : heldParts) {
+                    if(!addPart(transfer, heldPart.partIndex & 0xFF, ByteBuffer.wrap(heldPart.getArgument(0))))
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isLast = partIndex == transfer.partCount - 1;
+        if(isLast ? data.remaining() > transfer.partSize : data.remaining() != transfer.partSize) {
+            remove(transfer);
+            return false;
+        }
+        transfer.setPart(partIndex);
+        write(transfer, partIndex, data);
+        return true;
+    }
+
+    private void write(Transfer transfer, int partIndex, ByteBuffer data) {
+        if(partIndex == transfer.partCount - 1)
+            transfer.lastPartLength = data.remaining();
+        ByteBuffer buffer = transfer.buffer.duplicate();
+        buffer.position(partIndex * transfer.partSize);
+        buffer.put(data.duplicate());
+    }
+
+    private boolean allocateBuffer(Transfer transfer) {
+        long size = transfer.message ? transfer.messageLength : (long)transfer.partCount * transfer.partSize;
+        if(size > maxMessageSize || bufferedBytes + size > maxTotalSize)
+            return false;
+        if(bufferPool != null && size <= bufferPool.getBufferSize()) {
+            transfer.buffer = bufferPool.acquire();
+            transfer.pooledBuffer = true;
+        }
+        else {
+            transfer.buffer = direct ? ByteBuffer.allocateDirect((int)size) : ByteBuffer.allocate((int)size);
+        }
+        bufferedBytes += transfer.buffer.capacity();
+        return true;
+    }
+
+    private void releaseBuffer(Transfer transfer) {
+        if(transfer.buffer == null)
+            return;
+        bufferedBytes -= transfer.buffer.capacity();
+        if(transfer.pooledBuffer)
+            bufferPool.release(transfer.buffer);
+        transfer.buffer = null;
+    }
+
+    //  Takes the held parts off transfer, they no longer count once written to its buffer or dropped
+    private ArrayList<PacketData> takeHeldParts(Transfer transfer) {
+        ArrayList<PacketData> heldParts = transfer.heldParts;
+        transfer.heldParts = null;
+        bufferedBytes -= transfer.heldBytes;
+        transfer.heldBytes = 0;
+        return heldParts;
+    }
+
+    private void remove(Transfer transfer) {
+        IntMap<Transfer> endPointTransfers = transfers.get(transfer.endPoint);
+        if(endPointTransfers != null && endPointTransfers.get(transfer.parentMessageId) == transfer) {
+            endPointTransfers.remove(transfer.parentMessageId);
+            if(endPointTransfers.isEmpty())
+                transfers.remove(transfer.endPoint);
+        }
+        timerWheel.cancel(transfer);
+        releaseBuffer(transfer);
+        takeHeldParts(transfer);
+    }
+
+    private Transfer takeIfComplete(Transfer transfer) {
+        if((transfer.parent == null && !transfer.message) || transfer.buffer == null || transfer.receivedCount != transfer.partCount)
+            return null;
+        IntMap<Transfer> endPointTransfers = transfers.get(transfer.endPoint);
+        endPointTransfers.remove(transfer.parentMessageId);
+        if(endPointTransfers.isEmpty())
+            transfers.remove(transfer.endPoint);
+        timerWheel.cancel(transfer);
+        return transfer;
+    }
+
+    private void deliver(Transfer transfer) {
+        if(transfer == null)
+            return;
+        ByteBuffer data = transfer.buffer.duplicate();
+        data.position(0);
+        data.limit((transfer.partCount - 1) * transfer.partSize + transfer.lastPartLength);
+        try {
+            if(transfer.message)
+                listener.messageReceived(transfer.endPoint, data);
+            else
+                listener.multipartReceived(transfer.endPoint, transfer.parent, data);
+        }
+        finally {
+            synchronized (this) {
+                releaseBuffer(transfer);
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.ferretize.libnatpunch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class NIONetworkLayer implements NetworkLayer {
+    private InetAddress localAddress;
+    private int localPort;
+    private DatagramChannel channel;
+    private Selector selector;
+    //  Sets the don't fragment bit, null when the JDK or OS can't
+    private SocketOption<Boolean> dontFragmentOption;
+
+    private byte []receiveArray;
+    private ByteBuffer receiveBuffer;
+
+    public NIONetworkLayer(InetAddress localAddress, int localPort) throws IOException {
+        this(localAddress, localPort, false);
+    }
+
+    /**
+     * With reusePort the socket is bound with SO_REUSEPORT, so several layers can share localPort and the kernel
+     * spreads incoming datagrams over them by source address. Throws IOException when the JVM or OS can't do that.
+     */
+    public NIONetworkLayer(InetAddress localAddress, int localPort, boolean reusePort) throws IOException {
+        this.localAddress = localAddress;
+        this.localPort = localPort;
+
+        createChannel(reusePort);
+    }
+
+    public NIONetworkLayer(String localAddress, int localPort) throws IOException {
+        this.localAddress = InetAddress.getByName(localAddress);
+        this.localPort = localPort;
+
+        createChannel(false);
+    }
+
+    public NIONetworkLayer(int localPort) throws IOException {
+        this(InetAddress.getLocalHost(), localPort, false);
+    }
+
+    private void createChannel(boolean reusePort) throws IOException {
+        channel = DatagramChannel.open();
+        if(reusePort) {
+            SocketOption<Boolean> option = getReusePortOption();
+            if(option == null || !channel.supportedOptions().contains(option)) {
+                channel.close();
+                throw new IOException("SO_REUSEPORT is not supported");
+            }
+            channel.setOption(option, true);
+        }
+        channel.bind(new InetSocketAddress(localPort));
+        channel.configureBlocking(false);
+
+        dontFragmentOption = getDontFragmentOption();
+        if(dontFragmentOption != null && !channel.supportedOptions().contains(dontFragmentOption))
+            dontFragmentOption = null;
+
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Returns StandardSocketOptions.SO_REUSEPORT, which only exists from Java 9 on, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns jdk.net.ExtendedSocketOptions.IP_DONTFRAGMENT, which only exists from Java 19 on, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getDontFragmentOption() {
+        try {
+            return (SocketOption<Boolean>)Class.forName("jdk.net.ExtendedSocketOptions").getField("IP_DONTFRAGMENT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean setDontFragment(boolean dontFragment) {
+        if(dontFragmentOption == null)
+            return false;
+        try {
+            channel.setOption(dontFragmentOption, dontFragment);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public int send(InetAddress address, int port, byte[] data) {
+        try {
+            return channel.send(ByteBuffer.wrap(data), new InetSocketAddress(address, port));
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int send(InetSocketAddress address, ByteBuffer data) {
+        try {
+            return channel.send(data, address);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int receive(AtomicReference<InetSocketAddress> address, byte[] buffer, int bufferLength) {
+        if(receiveArray != buffer) {
+            receiveArray = buffer;
+            receiveBuffer = ByteBuffer.wrap(buffer);
+        }
+        receiveBuffer.clear();
+        receiveBuffer.limit(bufferLength);
+
+        InetSocketAddress from;
+        try {
+            from = (InetSocketAddress)channel.receive(receiveBuffer);
+        } catch (IOException ex) {
+            return 0;
+        }
+        if(from == null)
+            return 0;
+        address.set(from);
+        return receiveBuffer.position();
+    }
+
+    @Override
+    public void waitForReceive(long timeout) {
+        try {
+            if(timeout <= 0)
+                selector.selectNow();
+            else
+                selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (IOException ex) {
+            //  Nothing to wait on, the next receive() will report the failure
+        }
+    }
+
+    @Override
+    public void wakeup() {
+        selector.wakeup();
+    }
+}
@@ -2,6 +2,8 @@ package net.ferretize.libnatpunch;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -40,6 +42,39 @@ public class NatPunch implements Runnable {
         return packetEncoder;
     }
 
+    //  Encrypts traffic with endpoints that have keys too, null to send everything in plaintext
+    private PacketCipher packetCipher;
+    public void setPacketCipher(PacketCipher packetCipher) {
+        this.packetCipher = packetCipher;
+    }
+    public PacketCipher getPacketCipher() {
+        return packetCipher;
+    }
+
+    /**
+     * Returns our public key for REGISTER and HELLO, null without a PacketCipher.
+     */
+    public byte[] getPublicKey() {
+        return packetCipher != null ? packetCipher.getPublicKey() : null;
+    }
+
+    //  Random per instance and sent in handshakes, so peers notice when our message ids start over
+    private final byte []incarnation = new byte[8];
+    public byte[] getIncarnation() {
+        return incarnation;
+    }
+
+    //  Runs retransmissions, delayed acknowledgements, keepalives, eviction and application timers on the worker thread
+    private final TimerWheel timerWheel;
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    private final DropCounters dropCounters = new DropCounters();
+    public DropCounters getDropCounters() {
+        return dropCounters;
+    }
+
     private PacketReceiver packetReceiver;
     public void setPacketReceiver(PacketReceiver packetReceiver) {
         this.packetReceiver = packetReceiver;
@@ -62,6 +97,15 @@ public class NatPunch implements Runnable {
         return endPointHandler;
     }
 
+    //  The group this NatPunch is a shard of, null when it runs alone
+    private ShardedNatPunch shards;
+    void setShards(ShardedNatPunch shards) {
+        this.shards = shards;
+    }
+    public ShardedNatPunch getShards() {
+        return shards;
+    }
+
     private byte []id;
     public byte[] getId() {
         return id;
@@ -69,8 +113,28 @@ public class NatPunch implements Runnable {
 
     public NatPunch() {
         setLogHandler(new StdoutLogHandler());
+        new SecureRandom().nextBytes(incarnation);
+
+        timerWheel = new TimerWheel(new Date().getTime(), new Runnable() {
+            @Override
+            public void run() {
+                //  A timer scheduled by another thread may be due before the worker planned to wake up
+                NetworkLayer networkLayer = NatPunch.this.networkLayer;
+                if(networkLayer != null && !isWorkerThread())
+                    networkLayer.wakeup();
+            }
+        });
 
         endPointHandler = new EndPointHandler();
+        endPointHandler.addEvictionListener(new EndPointEvictionListener() {
+            @Override
+            public void endPointEvicted(EndPoint endPoint) {
+                TimerWheel.Timer keepAliveTimer = endPoint.keepAliveTimer;
+                if(keepAliveTimer != null)
+                    timerWheel.cancel(keepAliveTimer);
+                endPoint.data = null;
+            }
+        });
 
     }
 
@@ -83,6 +147,54 @@ public class NatPunch implements Runnable {
         endPoint.externalAddress = introducerAddress;
         endPoint.externalPort = introducerPort;
         endPointHandler.setIntroducerEndPoint(endPoint);
+        //  Keep the NAT mapping to the introducer open, and keep us from being evicted there
+        keepAlive(endPointHandler.getIntroducerEndPoint());
+    }
+
+    /**
+     * Sets keepAlive of endPoint and sends it a NOP every KEEPALIVE_INTERVAL from now on, until keepAlive is
+     * cleared or the endpoint removed. Each endpoint has its own timer, so keepalives are spread out.
+     */
+    public void keepAlive(final EndPoint endPoint) {
+        endPoint.keepAlive = true;
+        TimerWheel.Timer keepAliveTimer;
+        synchronized (endPoint) {
+            if(endPoint.keepAliveTimer == null) {
+                endPoint.keepAliveTimer = new TimerWheel.Timer() {
+                    @Override
+                    protected void expired(long timeNow) {
+                        if(!endPoint.keepAlive || endPoint.sequence < 0)
+                            return;
+                        packetReceiver.sendPacket(endPoint, new PacketData(0, packetReceiver.getAndIncrementNextMessageId(),
+                                PacketEncoder.COMMAND_NOP, null));
+                        timerWheel.schedule(this, timeNow + KEEPALIVE_INTERVAL);
+                    }
+                };
+            }
+            keepAliveTimer = endPoint.keepAliveTimer;
+        }
+        if(!timerWheel.isScheduled(keepAliveTimer))
+            timerWheel.schedule(keepAliveTimer, new Date().getTime() + KEEPALIVE_INTERVAL);
+    }
+
+    /**
+     * Runs task on the worker thread in the order submitted, at the start of its next loop. This is how other
+     * threads hand over work on state the worker owns, like sends or the endpoints of another shard. Never takes
+     * a lock the worker holds; only waits while the submission ring is full.
+     */
+    public void runOnWorkerThread(Runnable task) {
+        while(!submissions.offer(task)) {
+            //  Let the worker catch up
+            NetworkLayer networkLayer = this.networkLayer;
+            if(networkLayer != null)
+                networkLayer.wakeup();
+            Thread.yield();
+        }
+        if(waiting) {
+            NetworkLayer networkLayer = this.networkLayer;
+            if(networkLayer != null)
+                networkLayer.wakeup();
+        }
     }
 
     public EndPoint getIntroducerEndPoint() {
@@ -111,25 +223,65 @@ public class NatPunch implements Runnable {
             if(!workerThreadRunning) {
                 workerThreadRunning = true;
                 Thread thread = new Thread(this);
+                workerThread = thread;
                 thread.start();
             }
         }
     }
 
+    private volatile Thread workerThread;
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == workerThread;
+    }
+
+    public boolean isWorkerThreadRunning() {
+        synchronized (workerThreadLock) {
+            return workerThreadRunning;
+        }
+    }
+
     public void stopWorkerThread() {
         synchronized (workerThreadLock) {
             workerThreadRunning = false;
         }
+        if(networkLayer != null)
+            networkLayer.wakeup();
     }
 
+    //  Largest datagram received, a frame never spans more than one of them
+    final public static int RECEIVE_DATAGRAM_SIZE = 2048;
+
+    final public static int SUBMISSION_RING_SIZE = 4096;
+
+    //  Work handed to the worker thread by other threads, see runOnWorkerThread
+    private final SubmissionRing<Runnable> submissions = new SubmissionRing<>(SUBMISSION_RING_SIZE);
+    //  Set while the worker is about to wait or waiting for the network, so submitters know to wake it
+    private volatile boolean waiting = false;
+
+    final public static long KEEPALIVE_INTERVAL = 30000;
+    final public static long EVICTION_INTERVAL = 5000;
+
+    private final TimerWheel.Timer evictionTimer = new TimerWheel.Timer() {
+        @Override
+        protected void expired(long timeNow) {
+            endPointHandler.evictEndPoints(timeNow);
+            timerWheel.schedule(this, timeNow + EVICTION_INTERVAL);
+        }
+    };
+
     @Override
     public void run() {
-        long timeNow = new Date().getTime(), timeLastPing = timeNow, lastCheckWorkerThreadRunning = timeNow;
+        //  Also when run() is called on a thread of the caller's own
+        workerThread = Thread.currentThread();
+        long timeNow = new Date().getTime();
         int receiveLength;
         AtomicReference<InetSocketAddress> receiveAddress = new AtomicReference<>();
-        byte []receiveBuffer = new byte[2048];
+        byte []receiveBuffer = new byte[RECEIVE_DATAGRAM_SIZE];
+        ByteBuffer frameBuffer = ByteBuffer.wrap(receiveBuffer);
+        PacketView packetView = new PacketView();
         EndPoint receiveEndPoint;
-        boolean shouldSleep;
+
+        timerWheel.schedule(evictionTimer, timeNow + EVICTION_INTERVAL);
 
         if(introducerAddress != null) {
             packetReceiver.sendPacket(
@@ -137,65 +289,161 @@ public class NatPunch implements Runnable {
                     PacketData.register(packetReceiver.getAndIncrementNextMessageId(),
                             id,
                             networkLayer.getLocalAddress().getAddress(),
-                            networkLayer.getLocalPort())
+                            networkLayer.getLocalPort(),
+                            packetEncoder.getVersion(),
+                            PacketEncoder.CAPABILITIES).appendHandshake(getPublicKey(), incarnation)
             );
         }
 
         while(true) {
-            timeNow = new Date().getTime();
-            if((timeNow - lastCheckWorkerThreadRunning) > 5000) {
-                lastCheckWorkerThreadRunning = timeNow;
-                synchronized (workerThreadLock) {
-                    if(!workerThreadRunning)
-                        break;
-                }
+            synchronized (workerThreadLock) {
+                if(!workerThreadRunning)
+                    break;
             }
 
-            shouldSleep = true;
-
-            while((receiveLength = networkLayer.receive(receiveAddress, receiveBuffer, 2048)) > 0) {
+            while((receiveLength = networkLayer.receive(receiveAddress, receiveBuffer, RECEIVE_DATAGRAM_SIZE)) > 0) {
                 receiveEndPoint = endPointHandler.findEndPoint(receiveAddress.get());
+
+                //  Encrypted datagrams are opened in place, their frames marked as such for the packet receiver
+                boolean encrypted = receiveBuffer[0] == PacketCipher.MARKER;
                 if(receiveEndPoint == null) {
-                    receiveEndPoint = new EndPoint();
-                    receiveEndPoint.externalAddress = receiveAddress.get().getAddress();
-                    receiveEndPoint.externalPort = receiveAddress.get().getPort();
-                    endPointHandler.addEndPoint(receiveEndPoint);
+                    //  Only a source whose datagram starts with a valid frame gets an endpoint, so spoofed sources
+                    //  can't fill the endpoint handler. Without an endpoint there are no keys to decrypt with.
+                    int firstLength = -1;
+                    if(!encrypted) {
+                        frameBuffer.clear();
+                        frameBuffer.position(receiveLength);
+                        firstLength = packetEncoder.readPacket(frameBuffer, 0, packetView);
+                    }
+                    if(firstLength <= 0) {
+                        if(encrypted)
+                            dropCounters.drop(DropCounters.DECRYPT);
+                        else if(firstLength < 0)
+                            dropCounters.reject(firstLength);
+                        else
+                            dropCounters.drop(DropCounters.PARTIAL);
+                        continue;
+                    }
+                    receiveEndPoint = endPointHandler.findOrAddEndPoint(receiveAddress.get());
+                }
+                if(encrypted) {
+                    receiveLength = packetCipher != null ? packetCipher.decrypt(receiveEndPoint, receiveBuffer, 0, receiveLength) : -1;
+                    if(receiveLength < 0) {
+                        dropCounters.drop(receiveLength == PacketCipher.REPLAYED ? DropCounters.REPLAY : DropCounters.DECRYPT);
+                        continue;
+                    }
+                }
+                packetView.setEncrypted(encrypted);
+
+                //  Frame straight out of the shared receive buffer unless a partial frame is pending
+                ByteBuffer data = receiveEndPoint.data;
+                if(data == null) {
+                    data = frameBuffer;
+                    data.clear();
+                    data.position(receiveLength);
+                }
+                else if(data.remaining() >= receiveLength) {
+                    data.put(receiveBuffer, 0, receiveLength);
+                }
+                else {
+                    //  Pending data can never form a frame, start over with this datagram
+                    dropCounters.drop(DropCounters.OVERFLOW);
+                    receiveEndPoint.data = null;
+                    data = frameBuffer;
+                    data.clear();
+                    data.position(receiveLength);
+                }
+
+                //  Handle every complete frame in place, then move what is left to the front
+                int offset = 0, packetLength;
+                boolean accepted = false;
+                while((packetLength = packetEncoder.readPacket(data, offset, packetView)) > 0) {
+                    offset += packetLength;
+                    receiveEndPoint.receivedFrame = true;
+                    accepted = true;
+                    try {
+                        packetReceiver.handlePacket(endPointHandler, receiveEndPoint, packetView);
+                    }
+                    catch(RuntimeException e) {
+                        //  A well-formed frame with arguments the handler couldn't use must not take the worker down
+                        long count = dropCounters.drop(DropCounters.HANDLER);
+                        if(Long.bitCount(count) == 1)
+                            logHandler.warning(String.format("Dropped packet %s from %s: %s (%d so far)", packetView, receiveEndPoint, e, count));
+                    }
+                }
+                //  Only frames keep an endpoint from being evicted as idle
+                if(accepted)
+                    receiveEndPoint.lastReceive = new Date().getTime();
+                if(packetLength < 0) {
+                    //  Malformed frame, nothing after it can be trusted
+                    dropCounters.reject(packetLength);
+                    data.clear();
+                }
+                else if(offset > 0) {
+                    data.flip();
+                    data.position(offset);
+                    data.compact();
                 }
-                receiveEndPoint.lastReceive = new Date().getTime();
-                receiveEndPoint.data.put(receiveBuffer, 0, receiveLength);
 
-                PacketData packet;
-                while((packet = packetEncoder.hasPacket(receiveEndPoint.data)) != null) {
-                    packetReceiver.handlePacket(endPointHandler, receiveEndPoint, packet);
+                if(data == frameBuffer && data.position() > 0) {
+                    //  Only kept for endpoints that sent a valid frame before, so spoofed fragments can't pin memory
+                    int frameLength = packetEncoder.getFrameLength(data, 0);
+                    if(!receiveEndPoint.receivedFrame)
+                        dropCounters.drop(DropCounters.PARTIAL);
+                    else if(frameLength > RECEIVE_DATAGRAM_SIZE)
+                        dropCounters.drop(DropCounters.OVERFLOW);
+                    else {
+                        ByteBuffer pending = ByteBuffer.allocate(frameLength > 0 ? frameLength : RECEIVE_DATAGRAM_SIZE);
+                        data.flip();
+                        pending.put(data);
+                        receiveEndPoint.data = pending;
+                    }
+                }
+                else if(data != frameBuffer && data.position() == 0) {
+                    receiveEndPoint.data = null;
                 }
 
                 //receiveEndPoint.data.append(new String(, 0, recvLen, StandardCharsets.UTF_8));
                 //checkEndPointData(recvEndPoint);
-
-                shouldSleep = false;
             }
 
+            runSubmissions();
+
+            timeNow = new Date().getTime();
+            try {
+                timerWheel.advance(timeNow);
+            }
+            catch(RuntimeException e) {
+                //  The timers left are run by the next advance
+                logHandler.warning(String.format("Timer failed: %s", e));
+            }
             packetReceiver.update(timeNow);
 
-            if((timeNow - timeLastPing) > 30000) {
-                timeLastPing = timeNow;
+            packetReceiver.flush();
 
-                for(EndPoint ep : endPointHandler.getEndPoints()) {
-                    if(ep.keepAlive) {
-                        packetReceiver.sendPacket(ep, new PacketData(0, packetReceiver.getAndIncrementNextMessageId(),
-                                PacketEncoder.COMMAND_NOP, null));
-                    }
-                }
-            }
+            //  Sleep until a datagram arrives or the next timer or paced send is due
+            long nextUpdateTime = Math.min(packetReceiver.getNextUpdateTime(timeNow), timerWheel.getNextDeadline());
+            waiting = true;
+            //  Anything submitted before waiting was set is picked up here, anything after wakes us up
+            if(submissions.isEmpty())
+                networkLayer.waitForReceive(Math.max(1, nextUpdateTime - new Date().getTime()));
+            waiting = false;
+        }
+    }
 
-            if(shouldSleep) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Runs the tasks submitted so far. Tasks submitted meanwhile wait for the next loop, so receiving can't starve.
+     */
+    private void runSubmissions() {
+        int count = submissions.size();
+        Runnable task;
+        while(count-- > 0 && (task = submissions.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch(RuntimeException e) {
+                logHandler.warning(String.format("Submitted task failed: %s", e));
             }
-
         }
     }
 }
@@ -2,6 +2,7 @@ package net.ferretize.libnatpunch;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -18,6 +19,24 @@ public interface NetworkLayer {
     InetAddress getLocalAddress();
     int getLocalPort();
 
+    /**
+     * Returns the bytes sent, 0 if the send buffer is full for now, which leaves data as it was, or -1 if sending
+     * failed, e.g. because the datagram is larger than the path allows with the don't fragment bit set.
+     */
     int send(InetAddress addr, int port, byte []data);
+    //  Sends the bytes between position and limit of data, which is left consumed once sent
+    int send(InetSocketAddress addr, ByteBuffer data);
     int receive(AtomicReference<InetSocketAddress> addr, byte []buffer, int bufferLength);
+
+    /**
+     * Blocks until data is available for receive(), the timeout (in ms) expires or wakeup() is called.
+     */
+    void waitForReceive(long timeout);
+    void wakeup();
+
+    /**
+     * Sets or clears the don't fragment bit on datagrams sent from now on, so a datagram too large for the path
+     * is dropped instead of fragmented. Returns false, changing nothing, if the layer can't set it.
+     */
+    boolean setDontFragment(boolean dontFragment);
 }
@@ -0,0 +1,296 @@
+package net.ferretize.libnatpunch;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Encrypts and authenticates whole datagrams with AES-GCM under keys agreed per endpoint. Each side has an
+ * EC (P-256) key pair and sends its public key and incarnation in REGISTER, the REGISTER response and HELLO;
+ * HKDF over the ECDH secret of ours and the endpoint's key, salted with both incarnations, gives a key per
+ * direction. The key pairs may be kept between runs but incarnations are random per run, so no two runs
+ * share keys. An encrypted datagram is MARKER, a 12 byte nonce (a counter) and the ciphertext with its tag.
+ * MARKER can't start a frame of either wire format, so encrypted and plaintext datagrams can be told apart.
+ *
+ * Each session counts its datagrams in blocks of counters taken from one counter for all our sessions, so no
+ * two datagrams under the same keys share a nonce, even when an evicted endpoint's session is created again,
+ * and the counters one endpoint sees keep increasing. The receiving session keeps the highest counter that
+ * decrypted and a bitmap of the REPLAY_WINDOW counters up to it, like the anti-replay windows of IPsec and
+ * DTLS, and drops datagrams it received before or that are older than that.
+ */
+public class PacketCipher {
+    final public static byte MARKER = 0x7F;
+    final public static int NONCE_SIZE = 12;
+    final public static int HEADER_SIZE = 1 + NONCE_SIZE;
+    final public static int TAG_SIZE = 16;
+    final public static int OVERHEAD = HEADER_SIZE + TAG_SIZE;
+    //  Datagrams from an endpoint may arrive this many counters behind the highest one received
+    final public static int REPLAY_WINDOW = 1024;
+    //  Counters a session takes at a time
+    final public static long COUNTER_BLOCK = 1 << 20;
+    //  What decrypt returns for an authentic datagram that was received before or is too old to tell
+    final public static int REPLAYED = -2;
+
+    /**
+     * Keys shared with one endpoint. Without the endpoint's incarnation, as for a key the introducer passes on,
+     * only its public key is known until its own handshake arrives.
+     */
+    public static class Session {
+        private final byte []peerPublicKey;
+        private final byte []peerIncarnation;
+        final SecretKeySpec sendKey, receiveKey;
+        //  A datagram from the endpoint decrypted under the keys, so it holds them too and must encrypt all but handshakes
+        volatile boolean established;
+        //  The key came from the introducer over an established session, HELLO can't replace it
+        volatile boolean vouched;
+        //  Next counter for a datagram under sendKey and the end of the block it is from
+        private long sendCounter, sendCounterEnd;
+        //  Highest counter of a datagram that decrypted under receiveKey, and which of the REPLAY_WINDOW up to it did
+        private long highestReceived = -1;
+        private final long []received = new long[REPLAY_WINDOW / 64];
+
+        Session(byte []peerPublicKey, byte []peerIncarnation, SecretKeySpec sendKey, SecretKeySpec receiveKey) {
+            this.peerPublicKey = peerPublicKey;
+            this.peerIncarnation = peerIncarnation;
+            this.sendKey = sendKey;
+            this.receiveKey = receiveKey;
+        }
+
+        public byte[] getPeerPublicKey() {
+            return peerPublicKey;
+        }
+
+        public byte[] getPeerIncarnation() {
+            return peerIncarnation;
+        }
+
+        public boolean hasKeys() {
+            return sendKey != null;
+        }
+
+        public boolean isEstablished() {
+            return established && hasKeys();
+        }
+
+        public boolean isVouched() {
+            return vouched;
+        }
+
+        synchronized long nextSendCounter(AtomicLong counters) {
+            if(sendCounter == sendCounterEnd) {
+                sendCounter = counters.getAndAdd(COUNTER_BLOCK);
+                sendCounterEnd = sendCounter + COUNTER_BLOCK;
+            }
+            return sendCounter++;
+        }
+
+        /**
+         * Returns false if a datagram with counter was received before or is older than the window.
+         */
+        synchronized boolean isFresh(long counter) {
+            if(counter > highestReceived)
+                return true;
+            return highestReceived - counter < REPLAY_WINDOW
+                    && (received[(int)(counter >>> 6) & (received.length - 1)] & (1L << counter)) == 0;
+        }
+
+        /**
+         * Records the counter of a datagram that decrypted, moving the window up to it. Returns false if it is
+         * no longer fresh, as when the same datagram was decrypted twice at once.
+         */
+        synchronized boolean receive(long counter) {
+            if(!isFresh(counter))
+                return false;
+            if(counter > highestReceived) {
+                if(counter - highestReceived >= REPLAY_WINDOW)
+                    Arrays.fill(received, 0);
+                else {
+                    for(long skipped = highestReceived + 1; skipped < counter; ++skipped)
+                        received[(int)(skipped >>> 6) & (received.length - 1)] &= ~(1L << skipped);
+                }
+                highestReceived = counter;
+            }
+            received[(int)(counter >>> 6) & (received.length - 1)] |= 1L << counter;
+            return true;
+        }
+    }
+
+    private static class State {
+        final Cipher cipher;
+        final byte []nonce = new byte[NONCE_SIZE];
+
+        State() {
+            try {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private final KeyPair keyPair;
+    private final byte []publicKey;
+    //  Our keys differ for every incarnation of either side, and within one incarnation no two datagrams share a nonce
+    private final AtomicLong sendCounters = new AtomicLong();
+
+    /**
+     * Uses a new key pair, so endpoints see a new identity every run.
+     */
+    public PacketCipher() {
+        this(generateKeyPair());
+    }
+
+    /**
+     * Uses an EC key pair kept between runs, which the introducer binds our id to while we are registered.
+     */
+    public PacketCipher(KeyPair keyPair) {
+        this.keyPair = keyPair;
+        this.publicKey = keyPair.getPublic().getEncoded();
+    }
+
+    public static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Agrees on keys with the owner of peerPublicKey, incarnation being ours and peerIncarnation the one it
+     * announced. Without peerIncarnation the session only holds the key. Returns null if it isn't a valid key.
+     */
+    public Session createSession(byte []peerPublicKey, byte []incarnation, byte []peerIncarnation) {
+        try {
+            PublicKey peerKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+            peerPublicKey = Arrays.copyOf(peerPublicKey, peerPublicKey.length);
+            if(peerIncarnation == null)
+                return new Session(peerPublicKey, null, null, null);
+            peerIncarnation = Arrays.copyOf(peerIncarnation, peerIncarnation.length);
+
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(peerKey, true);
+
+            //  Both sides put their values in the same order and take the first half for the lower one's sending
+            int order = compare(publicKey, peerPublicKey);
+            boolean lower = order < 0 || order == 0 && compare(incarnation, peerIncarnation) < 0;
+            Mac mac = Mac.getInstance("HmacSHA256");
+            //  HKDF (RFC 5869) extract, salted with both incarnations
+            mac.init(new SecretKeySpec(concat(lower ? incarnation : peerIncarnation, lower ? peerIncarnation : incarnation), "HmacSHA256"));
+            byte []pseudoRandomKey = mac.doFinal(agreement.generateSecret());
+            //  and expand to one block, enough for both keys
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            mac.update(lower ? publicKey : peerPublicKey);
+            mac.update(lower ? peerPublicKey : publicKey);
+            mac.update((byte)1);
+            byte []keys = mac.doFinal();
+            SecretKeySpec lowerKey = new SecretKeySpec(keys, 0, 16, "AES");
+            SecretKeySpec higherKey = new SecretKeySpec(keys, 16, 16, "AES");
+            return new Session(peerPublicKey, peerIncarnation, lower ? lowerKey : higherKey, lower ? higherKey : lowerKey);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes datagram, from its position to its limit, encrypted to out. out needs OVERHEAD bytes more room.
+     * session has to have keys.
+     */
+    public void encrypt(Session session, ByteBuffer datagram, ByteBuffer out) {
+        State s = state.get();
+        byte []nonce = s.nonce;
+        long counter = session.nextSendCounter(sendCounters);
+        //  The first 4 bytes stay 0
+        for(int i = 0; i < 8; ++i)
+            nonce[4 + i] = (byte)(counter >>> (56 - 8 * i));
+        out.put(MARKER);
+        out.put(nonce);
+        try {
+            s.cipher.init(Cipher.ENCRYPT_MODE, session.sendKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            s.cipher.doFinal(datagram, out);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts the length byte datagram at offset of buffer in place, the plaintext starting at offset.
+     * Returns its length, -1 if there is no session with endPoint or the datagram isn't authentic, or REPLAYED.
+     */
+    public int decrypt(EndPoint endPoint, byte []buffer, int offset, int length) {
+        Session session = endPoint.session;
+        if(session == null || !session.hasKeys() || length < OVERHEAD || buffer[offset] != MARKER)
+            return -1;
+        long counter = 0;
+        for(int i = 0; i < 8; ++i)
+            counter = counter << 8 | (buffer[offset + 5 + i] & 0xFF);
+        //  Checked before decrypting to save the work, recorded after so forged counters can't move the window
+        if(!session.isFresh(counter))
+            return REPLAYED;
+        Cipher cipher = state.get().cipher;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, session.receiveKey, new GCMParameterSpec(TAG_SIZE * 8, buffer, offset + 1, NONCE_SIZE));
+            length = cipher.doFinal(buffer, offset + HEADER_SIZE, length - HEADER_SIZE, buffer, offset);
+        } catch (GeneralSecurityException e) {
+            return -1;
+        }
+        if(!session.receive(counter))
+            return REPLAYED;
+        //  Only the endpoint can have encrypted it, so it holds our key
+        session.established = true;
+        return length;
+    }
+
+    private static byte[] concat(byte []a, byte []b) {
+        byte []result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int compare(byte []a, byte []b) {
+        for(int i = 0; i < Math.min(a.length, b.length); ++i) {
+            int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(difference != 0)
+                return difference;
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,266 @@
+package net.ferretize.libnatpunch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Packs the arguments of a packet into one compressed argument, marked with FLAGS_COMPRESSED, and back.
+ * The argument holds the varint size of the packed arguments, then them compressed as an LZ77 block laid out
+ * like LZ4's: sequences of a token, literals and a 2 byte match offset. The packed arguments are a varint
+ * argument count and each argument as a varint length and its bytes. Every thread keeps its own hash table
+ * and scratch buffers, so only the resulting argument arrays are allocated.
+ */
+public class PacketCompressor {
+    final public static int DEFAULT_THRESHOLD = 256;
+    //  Packed arguments larger than this are sent as they are, and refused when decompressing
+    final public static int MAX_SIZE = 65536;
+
+    final private static int MIN_MATCH = 4;
+    final private static int HASH_BITS = 12;
+    //  Every 64 positions without a match the compressor steps one byte further, so incompressible data is skipped quickly
+    final private static int SKIP_SHIFT = 6;
+
+    private static class State {
+        //  Positions of the last occurrence of each hashed 4 bytes, offset by base. Entries below base are from earlier packets
+        final int []table = new int[1 << HASH_BITS];
+        int base = 1;
+        final byte []plain = new byte[MAX_SIZE];
+        final ByteBuffer plainBuffer = ByteBuffer.wrap(plain);
+        final byte []compressed = new byte[MAX_SIZE];
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Returns a compressed copy of packet if its arguments take at least threshold bytes and compress
+     * to less, else packet itself.
+     */
+    public static PacketData compress(PacketData packet, int threshold) {
+        if(packet.arguments == null || packet.hasFlag(PacketEncoder.FLAGS_COMPRESSED))
+            return packet;
+        int size = CompactPacketEncoder.varintSize(packet.arguments.length);
+        for(byte []arg : packet.arguments) {
+            int length = arg != null ? arg.length : 0;
+            size += CompactPacketEncoder.varintSize(length) + length;
+        }
+        if(size < threshold || size > MAX_SIZE)
+            return packet;
+
+        State s = state.get();
+        ByteBuffer plain = s.plainBuffer;
+        plain.clear();
+        CompactPacketEncoder.putVarint(plain, packet.arguments.length);
+        for(byte []arg : packet.arguments) {
+            CompactPacketEncoder.putVarint(plain, arg != null ? arg.length : 0);
+            if(arg != null)
+                plain.put(arg);
+        }
+
+        int sizeLength = CompactPacketEncoder.varintSize(size);
+        int compressedLength = compressBlock(s, size, size - sizeLength - 1);
+        if(compressedLength < 0)
+            return packet;
+
+        byte []argument = new byte[sizeLength + compressedLength];
+        ByteBuffer argumentBuffer = ByteBuffer.wrap(argument);
+        CompactPacketEncoder.putVarint(argumentBuffer, size);
+        argumentBuffer.put(s.compressed, 0, compressedLength);
+
+        PacketData compressed = new PacketData(packet.flags | PacketEncoder.FLAGS_COMPRESSED, packet.messageId, packet.retryCount,
+                packet.partIndex, packet.partCount, packet.command, new byte[][] {argument});
+        compressed.parentMessageId = packet.parentMessageId;
+        return compressed;
+    }
+
+    /**
+     * Restores the arguments of a received compressed packet in place. Returns false if they are malformed.
+     */
+    public static boolean decompress(PacketData packet) {
+        if(packet.getArgumentCount() != 1 || packet.arguments[0] == null)
+            return false;
+        byte []argument = packet.arguments[0];
+        long sizeAndPosition = CompactPacketEncoder.getVarint(ByteBuffer.wrap(argument), 0, argument.length);
+        if(sizeAndPosition < 0)
+            return false;
+        int size = (int)sizeAndPosition;
+        int position = (int)(sizeAndPosition >>> 32);
+        if(size < 0 || size > MAX_SIZE)
+            return false;
+
+        State s = state.get();
+        if(decompressBlock(argument, position, argument.length, s.plain, size) != size)
+            return false;
+
+        ByteBuffer plain = s.plainBuffer;
+        long value = CompactPacketEncoder.getVarint(plain, 0, size);
+        if(value < 0 || (int)value < 0 || (int)value > size)
+            return false;
+        byte [][]arguments = new byte[(int)value][];
+        position = (int)(value >>> 32);
+        for(int i = 0; i < arguments.length; ++i) {
+            value = CompactPacketEncoder.getVarint(plain, position, size);
+            if(value < 0)
+                return false;
+            int length = (int)value;
+            position = (int)(value >>> 32);
+            if(length < 0 || length > size - position)
+                return false;
+            arguments[i] = new byte[length];
+            System.arraycopy(s.plain, position, arguments[i], 0, length);
+            position += length;
+        }
+        if(position != size)
+            return false;
+
+        packet.arguments = arguments;
+        packet.flags &= ~PacketEncoder.FLAGS_COMPRESSED;
+        return true;
+    }
+
+    /**
+     * Compresses the first length bytes of s.plain into s.compressed. Returns the compressed length, or -1
+     * if it would take more than limit bytes.
+     */
+    private static int compressBlock(State s, int length, int limit) {
+        byte []src = s.plain;
+        byte []dst = s.compressed;
+        int []table = s.table;
+        int base = s.base;
+        if(base > Integer.MAX_VALUE - 2 * MAX_SIZE) {
+            Arrays.fill(table, 0);
+            base = 1;
+        }
+        s.base = base + length;
+
+        int anchor = 0, position = 0, out = 0;
+        while(position <= length - MIN_MATCH) {
+            int sequence = getInt(src, position);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = table[hash] - base;
+            table[hash] = base + position;
+            if(candidate < 0 || position - candidate > 0xFFFF || getInt(src, candidate) != sequence) {
+                position += 1 + ((position - anchor) >>> SKIP_SHIFT);
+                continue;
+            }
+            while(candidate > 0 && position > anchor && src[candidate - 1] == src[position - 1]) {
+                --candidate;
+                --position;
+            }
+            int matchLength = MIN_MATCH;
+            while(position + matchLength < length && src[candidate + matchLength] == src[position + matchLength])
+                ++matchLength;
+
+            out = putSequence(src, anchor, position - anchor, position - candidate, matchLength, dst, out, limit);
+            if(out < 0)
+                return -1;
+            position += matchLength;
+            anchor = position;
+        }
+        return putSequence(src, anchor, length - anchor, 0, 0, dst, out, limit);
+    }
+
+    /**
+     * Writes literalLength literals from src at literalOffset followed by a match, or none if matchLength is 0.
+     */
+    private static int putSequence(byte []src, int literalOffset, int literalLength, int matchOffset, int matchLength,
+                                   byte []dst, int out, int limit) {
+        int extraMatchLength = matchLength - MIN_MATCH;
+        if(out + 1 + literalLength / 255 + 1 + literalLength + 2 + extraMatchLength / 255 + 1 > limit)
+            return -1;
+        int token = out++;
+        dst[token] = (byte)((Math.min(literalLength, 15) << 4) | (matchLength > 0 ? Math.min(extraMatchLength, 15) : 0));
+        if(literalLength >= 15)
+            out = putLength(dst, out, literalLength - 15);
+        System.arraycopy(src, literalOffset, dst, out, literalLength);
+        out += literalLength;
+        if(matchLength == 0)
+            return out;
+        dst[out++] = (byte)matchOffset;
+        dst[out++] = (byte)(matchOffset >>> 8);
+        if(extraMatchLength >= 15)
+            out = putLength(dst, out, extraMatchLength - 15);
+        return out;
+    }
+
+    private static int putLength(byte []dst, int out, int length) {
+        while(length >= 255) {
+            dst[out++] = (byte)255;
+            length -= 255;
+        }
+        dst[out++] = (byte)length;
+        return out;
+    }
+
+    /**
+     * Decompresses src from offset to end into dst. Returns the decompressed length, or -1 if the block is
+     * malformed or would exceed capacity bytes.
+     */
+    private static int decompressBlock(byte []src, int offset, int end, byte []dst, int capacity) {
+        int in = offset, out = 0;
+        while(true) {
+            if(in >= end)
+                return -1;
+            int token = src[in++] & 0xFF;
+            int literalLength = token >>> 4;
+            if(literalLength == 15) {
+                int b;
+                do {
+                    if(in >= end)
+                        return -1;
+                    b = src[in++] & 0xFF;
+                    literalLength += b;
+                } while(b == 255 && literalLength <= capacity);
+            }
+            if(literalLength > end - in || literalLength > capacity - out)
+                return -1;
+            System.arraycopy(src, in, dst, out, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if(in == end)
+                return out;
+
+            if(end - in < 2)
+                return -1;
+            int matchOffset = (src[in] & 0xFF) | ((src[in + 1] & 0xFF) << 8);
+            in += 2;
+            if(matchOffset == 0 || matchOffset > out)
+                return -1;
+            int matchLength = (token & 15) + MIN_MATCH;
+            if((token & 15) == 15) {
+                int b;
+                do {
+                    if(in >= end)
+                        return -1;
+                    b = src[in++] & 0xFF;
+                    matchLength += b;
+                } while(b == 255 && matchLength <= capacity);
+            }
+            if(matchLength > capacity - out)
+                return -1;
+            //  The match may overlap what it copies, so byte by byte
+            for(int i = 0; i < matchLength; ++i, ++out)
+                dst[out] = dst[out - matchOffset];
+        }
+    }
+
+    private static int getInt(byte []data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16) | (data[offset + 3] << 24);
+    }
+}
@@ -1,5 +1,6 @@
 package net.ferretize.libnatpunch;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -19,6 +20,8 @@ public class PacketData {
     public byte flags, retryCount, partIndex, partCount, command;
     public int messageId, parentMessageId;
     public byte [][]arguments;
+    //  Bytes this packet holds of the outbound budget while it waits in a send queue, see BasePacketReceiver.setSendBudget
+    int queuedSize;
 
     public PacketData(byte flags, int messageId, byte retryCount, byte partIndex, byte partCount, byte command, byte [][]arguments) {
         this.flags = flags;
@@ -50,6 +53,20 @@ public class PacketData {
         this.arguments = arguments;
     }
 
+    //  Big-endian, as ByteBuffer.getInt/getShort read them back
+    public static byte[] intArgument(int value) {
+        return new byte[] {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+    }
+
+    public static byte[] shortArgument(int value) {
+        return new byte[] {(byte)(value >>> 8), (byte)value};
+    }
+
+    //  Empty for an endpoint whose address we don't know
+    public static byte[] addressArgument(InetAddress address) {
+        return address != null ? address.getAddress() : new byte[0];
+    }
+
     public static PacketData reRegister(int messageId) {
         return new PacketData(PacketEncoder.FLAGS_GUARANTEED,
                 messageId, PacketEncoder.COMMAND_REREGISTER, null);
@@ -63,10 +80,10 @@ public class PacketData {
                 PacketEncoder.COMMAND_GREET,
                 new byte[][] {
                         otherEndPoint.id,
-                        otherEndPoint.externalAddress != null ? otherEndPoint.externalAddress.getAddress() : null,
-                        ByteBuffer.allocate(4).putInt(otherEndPoint.externalPort).array(),
-                        otherEndPoint.localAddress != null ? otherEndPoint.localAddress.getAddress() : null,
-                        ByteBuffer.allocate(4).putInt(otherEndPoint.localPort).array()
+                        addressArgument(otherEndPoint.externalAddress),
+                        intArgument(otherEndPoint.externalPort),
+                        addressArgument(otherEndPoint.localAddress),
+                        intArgument(otherEndPoint.localPort)
                 }
                 );
     }
@@ -77,6 +94,17 @@ public class PacketData {
         return packet;
     }
 
+    /**
+     * HELLO that also announces the highest protocol version we speak and our capabilities. Older peers ignore the extra arguments.
+     */
+    public static PacketData hello(int messageId, EndPoint endPoint, int protocolVersion, int capabilities) {
+        PacketData packet = hello(messageId, endPoint);
+        packet.arguments = Arrays.copyOf(packet.arguments, packet.arguments.length + 2);
+        packet.arguments[packet.arguments.length - 2] = new byte[] {(byte)protocolVersion};
+        packet.arguments[packet.arguments.length - 1] = new byte[] {(byte)capabilities};
+        return packet;
+    }
+
     public static PacketData response(int flags, int messageId, byte responseCommand, byte [][]arguments) {
         byte[][] args = Arrays.copyOf(new byte[][]{new byte[]{responseCommand}}, 1 + (arguments != null ? arguments.length : 0));
         if(arguments != null && arguments.length > 0)
@@ -94,8 +122,59 @@ public class PacketData {
     public static PacketData acknowledge(int messageId, int acknowledgedMessageId, int retryCount) {
         return new PacketData(0, messageId, PacketEncoder.COMMAND_ACKNOWLEDGE,
                 new byte[][] {
-                        ByteBuffer.allocate(4).putInt(acknowledgedMessageId).array(),
-                        ByteBuffer.allocate(4).putInt(retryCount).array()
+                        intArgument(acknowledgedMessageId),
+                        intArgument(retryCount)
+                }
+                );
+    }
+
+    /**
+     * Acknowledges baseId and every baseId + n whose bit n is set in bitmap. latestMessageId/latestRetryCount
+     * is the last packet acknowledged and delay how long (ms) the ACK was held back after it, for RTT samples.
+     */
+    public static PacketData acknowledgeBatch(int messageId, int baseId, byte []bitmap, int latestMessageId, int latestRetryCount, int delay) {
+        return new PacketData(0, messageId, PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH,
+                new byte[][] {
+                        intArgument(baseId),
+                        bitmap,
+                        intArgument(latestMessageId),
+                        new byte[] {(byte)latestRetryCount},
+                        shortArgument(delay)
+                }
+                );
+    }
+
+    /**
+     * Fragment fragmentIndex of the messageLength byte message messageKey, whose fragments but the last are fragmentSize bytes.
+     */
+    public static PacketData messageFragment(int messageId, int messageKey, int messageLength, int fragmentSize, int fragmentIndex, byte []data) {
+        return new PacketData(PacketEncoder.FLAGS_GUARANTEED, messageId, PacketEncoder.COMMAND_MESSAGE,
+                new byte[][] {
+                        intArgument(messageKey),
+                        intArgument(messageLength),
+                        shortArgument(fragmentSize),
+                        intArgument(fragmentIndex),
+                        data
+                }
+                );
+    }
+
+    /**
+     * Padded with padding bytes to make a datagram of probeSize, which the peer echoes in MTU_PROBE_ACK.
+     */
+    public static PacketData mtuProbe(int messageId, int probeSize, int padding) {
+        return new PacketData(0, messageId, PacketEncoder.COMMAND_MTU_PROBE,
+                new byte[][] {
+                        shortArgument(probeSize),
+                        new byte[Math.max(0, padding)]
+                }
+                );
+    }
+
+    public static PacketData mtuProbeAcknowledge(int messageId, int probeSize) {
+        return new PacketData(0, messageId, PacketEncoder.COMMAND_MTU_PROBE_ACK,
+                new byte[][] {
+                        shortArgument(probeSize)
                 }
                 );
     }
@@ -105,7 +184,19 @@ public class PacketData {
                 new byte[][] {
                         id,
                         localAddress,
-                        ByteBuffer.allocate(4).putInt(localPort).array()
+                        intArgument(localPort)
+                }
+                );
+    }
+
+    public static PacketData register(int messageId, byte []id, byte []localAddress, int localPort, int protocolVersion, int capabilities) {
+        return new PacketData(PacketEncoder.FLAGS_GUARANTEED, messageId, PacketEncoder.COMMAND_REGISTER,
+                new byte[][] {
+                        id,
+                        localAddress,
+                        intArgument(localPort),
+                        new byte[] {(byte)protocolVersion},
+                        new byte[] {(byte)capabilities}
                 }
                 );
     }
@@ -149,6 +240,25 @@ public class PacketData {
         return arguments[index];
     }
 
+    /**
+     * Appends argument unless it is null, for optional trailing arguments. Returns this packet.
+     */
+    public PacketData appendArgument(byte []argument) {
+        if(argument == null)
+            return this;
+        arguments = arguments != null ? Arrays.copyOf(arguments, arguments.length + 1) : new byte[1][];
+        arguments[arguments.length - 1] = argument;
+        return this;
+    }
+
+    /**
+     * Appends our public key and incarnation to a handshake. The key is sent empty when there is none, so the
+     * incarnation is always at the same position. Returns this packet.
+     */
+    public PacketData appendHandshake(byte []publicKey, byte []incarnation) {
+        return appendArgument(publicKey != null ? publicKey : new byte[0]).appendArgument(incarnation);
+    }
+
     public boolean hasFlag(byte flag) {
         return (flags & flag) == flag;
     }
@@ -157,6 +267,8 @@ public class PacketData {
         switch(command) {
             case PacketEncoder.COMMAND_ACKNOWLEDGE:
                 return "ACKNOWLEDGE";
+            case PacketEncoder.COMMAND_ACKNOWLEDGE_BATCH:
+                return "ACKNOWLEDGE_BATCH";
             case PacketEncoder.COMMAND_GREET:
                 return "GREET";
             case PacketEncoder.COMMAND_HELLO:
@@ -171,6 +283,12 @@ public class PacketData {
                 return "SHOW";
             case PacketEncoder.COMMAND_NOP:
                 return "NOP";
+            case PacketEncoder.COMMAND_MESSAGE:
+                return "MESSAGE";
+            case PacketEncoder.COMMAND_MTU_PROBE:
+                return "MTU_PROBE";
+            case PacketEncoder.COMMAND_MTU_PROBE_ACK:
+                return "MTU_PROBE_ACK";
         }
         return String.valueOf((int)command);
     }
@@ -197,6 +315,9 @@ public class PacketData {
         if(BinaryPacketEncoder.hasFlag(flags, PacketEncoder.FLAGS_MULTIPART)) {
             ret.append(String.format(" PARTINDEX=%d PARTCOUNT=%d", partIndex, partCount));
         }
+        if(BinaryPacketEncoder.hasFlag(flags, PacketEncoder.FLAGS_COMPRESSED)) {
+            ret.append(" COMPRESSED");
+        }
         ret.append(String.format(" COMMAND=%s ARGUMENTS=%d", commandToString(command), arguments != null ? arguments.length : 0));
         return ret.toString();
     }
@@ -16,6 +16,21 @@ public interface PacketEncoder {
     byte FLAGS_GUARANTEED = 0x1;
     byte FLAGS_MULTIPART = 0x2;
     byte FLAGS_MULTIPART_PART = 0x4;
+    //  The arguments are packed by PacketCompressor
+    byte FLAGS_COMPRESSED = 0x8;
+    //  Frames with any other flag set are rejected
+    byte FLAGS_DEFINED = FLAGS_GUARANTEED | FLAGS_MULTIPART | FLAGS_MULTIPART_PART | FLAGS_COMPRESSED;
+
+    //  Why readPacket rejected a frame, see DropCounters
+    int REJECT_HEADER = -1;
+    int REJECT_FLAGS = -2;
+    int REJECT_VARINT = -3;
+    int REJECT_ARGUMENTS = -4;
+    int REJECT_TRAILING = -5;
+
+    //  Announced in REGISTER, its response and HELLO
+    byte CAPABILITY_COMPRESSION = 0x1;
+    byte CAPABILITIES = CAPABILITY_COMPRESSION;
 
     byte COMMAND_NOP = 0;
     byte COMMAND_ACKNOWLEDGE = 1;
@@ -26,14 +41,41 @@ public interface PacketEncoder {
     byte COMMAND_HELLO = 6;
     byte COMMAND_SHOW = 7;
     byte COMMAND_REREGISTER = 8;
+    byte COMMAND_ACKNOWLEDGE_BATCH = 9;
+    byte COMMAND_MESSAGE = 10;
+    byte COMMAND_MTU_PROBE = 11;
+    byte COMMAND_MTU_PROBE_ACK = 12;
     byte COMMAND_CUSTOM = 50;
 
     byte COMMAND_SHOW_ENDPOINTS = 0;
 
+    //  Protocol version of the frames this encoder writes, announced in REGISTER and HELLO
+    int getVersion();
+
+    //  Size of the frame encode() produces, including its length prefix
     int getPacketSize(PacketData packet);
 
     byte[] encode(PacketData packet);
+    /**
+     * Writes the frame at the position of buffer and returns its length. Throws BufferOverflowException,
+     * leaving buffer untouched, if the frame doesn't fit.
+     */
+    int encode(PacketData packet, ByteBuffer buffer);
+    //  Offset of the retryCount byte in the output of encode, or -1 if the packet has none
+    int getRetryCountOffset(PacketData packet);
+    //  Decodes a buffer holding exactly one frame, null if it doesn't
     PacketData decode(byte []data);
 
+    //  Takes the first frame off data, null if it isn't complete. A malformed frame discards data
     PacketData hasPacket(ByteBuffer data);
+
+    /**
+     * Reads the frame starting at offset of data (filled up to its position) into view, without copying.
+     * Returns the length of the frame, 0 if it is not complete yet, or one of the negative REJECT_ codes if it is
+     * malformed. Never throws on untrusted data: every length is checked against the frame before it is read.
+     */
+    int readPacket(ByteBuffer data, int offset, PacketView view);
+
+    //  Length the frame starting at offset of data declares, including its length prefix, 0 if the prefix isn't complete
+    int getFrameLength(ByteBuffer data, int offset);
 }
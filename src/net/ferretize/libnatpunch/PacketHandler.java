@@ -23,149 +23,233 @@
  */
 package net.ferretize.libnatpunch;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashMap;
 
 /**
+ * Packets are stored per endpoint, in a map keyed by messageId, so lookups and removals for
+ * acknowledgements don't depend on how many packets are in flight. Each packet is its own retry timer,
+ * so only packets whose retry timeout expired are looked at.
  *
  * @author Erik
  */
 public class PacketHandler {
-    public static class HandledPacket {
+    public interface RetryListener {
+        /**
+         * Called on the worker thread when packet's retry timeout expired and it is still below the resend limit.
+         */
+        void retry(HandledPacket packet, long timeNow);
+    }
+
+    /**
+     * A packet kept for retransmission, scheduled on the timer wheel at its retry deadline while in a handler.
+     */
+    public static class HandledPacket extends TimerWheel.Timer {
         public EndPoint endPoint;
         public PacketData packet;
+        //  When the packet was first sent, it is given up MAX_PACKET_AGE ms later
+        public long timeFirstSent;
         public long timeLastSent;
+        //  System.nanoTime() of the last transmission, for RTT samples
+        public long timeLastSentNanos;
+        //  How long to wait for an ACK after the last transmission
+        public long retryTimeout = RESEND_INTERVAL;
         public short retryCount = 0;
-        private boolean markedForRemoval = false;
+        //  The frame as first encoded, resent with only the retryCount byte patched
+        public ByteBuffer encoded;
+        public int retryCountOffset = -1;
+        //  The handler the packet is in, null once it was removed
+        PacketHandler handler;
 
         public HandledPacket(EndPoint endPoint, PacketData packet) {
             this.endPoint = endPoint;
             this.packet = packet;
+            this.timeLastSent = new Date().getTime();
+            this.timeLastSentNanos = System.nanoTime();
+            this.timeFirstSent = timeLastSent;
         }
 
-        public boolean is(EndPoint endPoint, int messageId) {
-            return !markedForRemoval && this.packet.messageId == messageId && this.endPoint.is(endPoint);
+        /**
+         * Records a transmission at timeNow and arms the retry timeout from the endpoint's RTO, backed off per retry.
+         */
+        public void sent(long timeNow, RttEstimator.RtoLimits rtoLimits) {
+            timeLastSent = timeNow;
+            timeLastSentNanos = System.nanoTime();
+            retryTimeout = endPoint.rtt.getRetransmitTimeout(rtoLimits, Math.max(0, (int)retryCount));
         }
 
-        public boolean isPart(EndPoint endPoint, int parentMessageId) {
-            return !markedForRemoval && this.packet.parentMessageId == parentMessageId && this.endPoint.is(endPoint);
+        public long getNextRetryTime() {
+            return timeLastSent + retryTimeout + 1;
         }
 
-        public boolean shouldRetry(long timeNow) {
-            return !markedForRemoval && (timeNow - timeLastSent) > 50;
+        @Override
+        protected void expired(long timeNow) {
+            PacketHandler handler = this.handler;
+            if(handler != null)
+                handler.retryTimedOut(this, timeNow);
         }
     }
 
-    final private ArrayList<HandledPacket> packets;
+    //  EndPoint doesn't override equals/hashCode, so endpoints are keyed by identity
+    final private HashMap<EndPoint, IntMap<HandledPacket>> packets;
+    private int packetCount;
+    final private TimerWheel timerWheel;
+    final private RetryListener retryListener;
     
-    final public static short RESEND_LIMIT = 3;
+    final public static short RESEND_LIMIT = 5;
+    final public static long RESEND_INTERVAL = 50;
     final public static long MAX_PACKET_AGE = 10000;
+
+    private volatile int resendLimit = RESEND_LIMIT;
+    public void setResendLimit(int resendLimit) {
+        this.resendLimit = resendLimit;
+    }
+    public int getResendLimit() {
+        return resendLimit;
+    }
+
+    private volatile RttEstimator.RtoLimits rtoLimits = RttEstimator.DEFAULT_RTO_LIMITS;
+    public void setRtoLimits(long initial, long min, long max) {
+        this.rtoLimits = new RttEstimator.RtoLimits(initial, min, max);
+    }
+    public RttEstimator.RtoLimits getRtoLimits() {
+        return rtoLimits;
+    }
     
-    public PacketHandler() {
-        this.packets = new ArrayList<>();
+    public PacketHandler(TimerWheel timerWheel, RetryListener retryListener) {
+        this.packets = new HashMap<>();
+        this.timerWheel = timerWheel;
+        this.retryListener = retryListener;
+    }
+
+    public int getPacketCount() {
+        synchronized(packets) {
+            return packetCount;
+        }
     }
     
-    public HandledPacket findPacket(EndPoint ep, int messageId) {
+    public int getPacketCount(EndPoint ep) {
         synchronized(packets) {
-            for(HandledPacket packet : packets)
-                if(packet.is(ep, messageId))
-                    return packet;
+            IntMap<HandledPacket> endPointPackets = packets.get(ep);
+            return endPointPackets != null ? endPointPackets.size() : 0;
         }
-        return null;
     }
 
-    public PacketData[] findPacketParts(EndPoint ep, int parentMessageId) {
-        HandledPacket parentPacket = findPacket(ep, parentMessageId);
-        final PacketData []parts = new PacketData[parentPacket.packet.partCount];
-        synchronized (packets) {
-            int foundCount = 0;
-            for(HandledPacket packet : packets) {
-                if(packet.isPart(ep, parentMessageId)) {
-                    parts[packet.packet.partIndex] = packet.packet;
-                    ++foundCount;
-                }
-            }
-            //System.out.println(String.format("%d/%d parts", foundCount, parts.length));
-            if(foundCount == parts.length)
-                return parts;
+    public HandledPacket findPacket(EndPoint ep, int messageId) {
+        synchronized(packets) {
+            IntMap<HandledPacket> endPointPackets = packets.get(ep);
+            return endPointPackets != null ? endPointPackets.get(messageId) : null;
         }
-        return null;
     }
-    
+
     public void removePacket(EndPoint ep, int messageId) {
         synchronized(packets) {
-            for(HandledPacket packet : packets) {
-                if(packet.is(ep, messageId)) {
-        //            System.out.println(String.format("Packet %d removed from handler", packet.packet.messageId));
-                    packets.remove(packet);
-                    return;
-                }
+            IntMap<HandledPacket> endPointPackets = packets.get(ep);
+            HandledPacket packet = endPointPackets != null ? endPointPackets.remove(messageId) : null;
+            if(packet != null) {
+                release(packet);
+                removed(ep, endPointPackets, 1);
             }
         }
     }
 
-    public void removePacketParts(EndPoint endPoint, int parentMessageId) {
+    public void removePackets(EndPoint endPoint) {
         synchronized(packets) {
-            for(HandledPacket packet : packets) {
-                if(packet.isPart(endPoint, parentMessageId)) {
-                    packet.markedForRemoval = true;
+            IntMap<HandledPacket> endPointPackets = packets.remove(endPoint);
+            if(endPointPackets == null)
+                return;
+            packetCount -= endPointPackets.size();
+            endPointPackets.forEach(new IntMap.Visitor<HandledPacket>() {
+                @Override
+                public boolean visit(int messageId, HandledPacket packet) {
+                    release(packet);
+                    return false;
                 }
-            }
+            });
         }
     }
-    
+
     public void addPacket(HandledPacket packet) {
      //   System.out.println(String.format("Packet %d added to handler", packet.packet.messageId));
         synchronized(packets) {
-            packets.add(packet);
+            IntMap<HandledPacket> endPointPackets = packets.get(packet.endPoint);
+            if(endPointPackets == null) {
+                endPointPackets = new IntMap<>();
+                packets.put(packet.endPoint, endPointPackets);
+            }
+            HandledPacket replaced = endPointPackets.put(packet.packet.messageId, packet);
+            if(replaced == null)
+                ++packetCount;
+            else if(replaced != packet)
+                release(replaced);
+            packet.handler = this;
+            scheduleRetry(packet);
         }
     }
 
-    public void removePacket(HandledPacket packet) {
-        packet.markedForRemoval = true;
+    /**
+     * (Re)arms the retry timer of packet at its retry deadline, after it was sent again.
+     */
+    public void scheduleRetry(HandledPacket packet) {
+        timerWheel.schedule(packet, packet.getNextRetryTime());
     }
-    
-    public void removeOldPackets(long now) {
+
+    public void removePacket(HandledPacket packet) {
         synchronized(packets) {
-            ArrayList<HandledPacket> toRemove = new ArrayList<>();
-            for(HandledPacket packet : packets) {
-                if(packet.markedForRemoval)
-                    toRemove.add(packet);
-                else if(packet.shouldRetry(now)) {
-                    if(!packet.packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED) || (now - packet.timeLastSent) > MAX_PACKET_AGE)
-                        toRemove.add(packet);
-                }
+            IntMap<HandledPacket> endPointPackets = packets.get(packet.endPoint);
+            if(endPointPackets != null && endPointPackets.get(packet.packet.messageId) == packet) {
+                endPointPackets.remove(packet.packet.messageId);
+                release(packet);
+                removed(packet.endPoint, endPointPackets, 1);
             }
-            packets.removeAll(toRemove);
         }
     }
-    
-    public HandledPacket[] getPacketsToResend(long now) {
-        final ArrayList<HandledPacket> ret = new ArrayList<>();
+
+    private void removed(EndPoint endPoint, IntMap<HandledPacket> endPointPackets, int count) {
+        packetCount -= count;
+        if(endPointPackets.isEmpty())
+            packets.remove(endPoint);
+    }
+
+    private void release(HandledPacket packet) {
+        packet.handler = null;
+        timerWheel.cancel(packet);
+    }
+
+    /**
+     * Drops packet once it reached the resend limit or MAX_PACKET_AGE since it was first sent, or hands it to
+     * the retry listener. A packet the endpoint's numbering moved ReceiveWindow.SIZE / 2 past is dropped too,
+     * its retransmission could look like a new numbering to the peer.
+     */
+    private void retryTimedOut(HandledPacket packet, long timeNow) {
         synchronized(packets) {
-            ArrayList<HandledPacket> toRemove = new ArrayList<>();
-            for(HandledPacket packet : packets) {
-                if(packet.shouldRetry(now)) {
-                    if(packet.retryCount >= RESEND_LIMIT || (!packet.packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED) && packet.retryCount >= 0))
-                        toRemove.add(packet);
-                    else {
-                        ret.add(packet);
-                    }
-                }
+            if(packet.handler != this)
+                return;
+            if(packet.retryCount >= resendLimit || !packet.packet.hasFlag(PacketEncoder.FLAGS_GUARANTEED)
+                    || (timeNow - packet.timeFirstSent) > MAX_PACKET_AGE
+                    || packet.endPoint.nextMessageId - packet.packet.messageId > ReceiveWindow.SIZE / 2) {
+                removePacket(packet);
+                return;
             }
-            packets.removeAll(toRemove);
         }
-        return ret.toArray(new HandledPacket[0]);
+        retryListener.retry(packet, timeNow);
     }
 
     public String toString() {
-        StringBuilder ret = new StringBuilder();
+        final StringBuilder ret = new StringBuilder();
         synchronized (packets) {
-            int totalPackets = packets.size();
-            ret.append(String.format("%d packets in handler\n", totalPackets));
-            for(HandledPacket packet : packets) {
-                ret.append("\t");
-                ret.append(packet.packet.toString());
-                ret.append("\n");
+            ret.append(String.format("%d packets in handler\n", packetCount));
+            for(IntMap<HandledPacket> endPointPackets : packets.values()) {
+                endPointPackets.forEach(new IntMap.Visitor<HandledPacket>() {
+                    @Override
+                    public boolean visit(int messageId, HandledPacket packet) {
+                        ret.append("\t");
+                        ret.append(packet.packet.toString());
+                        ret.append("\n");
+                        return false;
+                    }
+                });
             }
         }
         return ret.toString();
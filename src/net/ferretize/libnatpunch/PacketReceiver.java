@@ -1,5 +1,7 @@
 package net.ferretize.libnatpunch;
 
+import java.nio.ByteBuffer;
+
 /**
  * The MIT License (MIT)
  * Copyright (c) 2016 Ferretize
@@ -14,8 +16,28 @@ public interface PacketReceiver {
     int getAndIncrementNextMessageId();
 
     boolean handlePacket(EndPointHandler endPointHandler, EndPoint endPoint, PacketData packet);
+    //  Called by NatPunch for every received packet, the view is only valid during the call
+    boolean handlePacket(EndPointHandler endPointHandler, EndPoint endPoint, PacketView packet);
+    //  May be called from any thread, other threads' sends are handed to the worker thread
     void sendPacket(EndPoint endPoint, PacketData packet);
-    void sendPacketDelayed(EndPoint endPoint, PacketData packet);
+    //  Returns false if the packet didn't fit the outbound memory budget and was not queued
+    boolean sendPacketDelayed(EndPoint endPoint, PacketData packet);
+    /**
+     * Sends data from its position to its limit as one message of any size, split into fragments that fit the
+     * path MTU to the endpoint. The receiving side gets it in one piece via MultipartListener.messageReceived.
+     * Returns false like sendPacketDelayed.
+     */
+    boolean sendMessage(EndPoint endPoint, ByteBuffer data);
 
     void update(long timeNow);
+
+    /**
+     * Sends whatever the worker thread queued up for coalescing in this iteration of its loop.
+     */
+    void flush();
+
+    /**
+     * Returns the time at which update() next has work to do, Long.MAX_VALUE if nothing is pending.
+     */
+    long getNextUpdateTime(long timeNow);
 }
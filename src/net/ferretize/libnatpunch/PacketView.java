@@ -0,0 +1,232 @@
+package net.ferretize.libnatpunch;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * A decoded packet that reads straight from the frame in the receive buffer instead of copying it.
+ * Arguments are offset/length slices of that buffer. A view is reused for every packet, so it is only
+ * valid until the next packet is read into it: use {@link #toPacketData()} to keep a packet.
+ */
+public class PacketView {
+    private ByteBuffer buffer;
+    private int offset, length;
+    private byte flags, retryCount, partIndex, partCount, command;
+    private int messageId, parentMessageId;
+
+    private int argumentCount;
+    private int []argumentOffsets = new int[8];
+    private int []argumentLengths = new int[8];
+
+    //  Set by NatPunch for the frames of a datagram that arrived encrypted, kept across set()
+    private boolean encrypted;
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * Called by the PacketEncoder for every packet read into this view.
+     */
+    public void set(ByteBuffer buffer, int offset, int length, byte flags, int messageId, int parentMessageId,
+                    byte retryCount, byte partIndex, byte partCount, byte command) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.flags = flags;
+        this.messageId = messageId;
+        this.parentMessageId = parentMessageId;
+        this.retryCount = retryCount;
+        this.partIndex = partIndex;
+        this.partCount = partCount;
+        this.command = command;
+        this.argumentCount = 0;
+    }
+
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    public void addArgument(int offset, int length) {
+        if(argumentCount == argumentOffsets.length) {
+            int []offsets = new int[argumentCount * 2];
+            int []lengths = new int[argumentCount * 2];
+            System.arraycopy(argumentOffsets, 0, offsets, 0, argumentCount);
+            System.arraycopy(argumentLengths, 0, lengths, 0, argumentCount);
+            argumentOffsets = offsets;
+            argumentLengths = lengths;
+        }
+        argumentOffsets[argumentCount] = offset;
+        argumentLengths[argumentCount] = length;
+        ++argumentCount;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return BinaryPacketEncoder.hasFlag(flags, flag);
+    }
+
+    public int getMessageId() {
+        return messageId;
+    }
+
+    public int getParentMessageId() {
+        return parentMessageId;
+    }
+
+    public byte getRetryCount() {
+        return retryCount;
+    }
+
+    public byte getPartIndex() {
+        return partIndex;
+    }
+
+    public byte getPartCount() {
+        return partCount;
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public int getArgumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * Absolute position of the argument in getBuffer(), or -1 if there is no such argument.
+     */
+    public int getArgumentOffset(int index) {
+        if(index < 0 || index >= argumentCount)
+            return -1;
+        return argumentOffsets[index];
+    }
+
+    //  Returns 0 if there is no such argument
+    public int getArgumentLength(int index) {
+        if(index < 0 || index >= argumentCount)
+            return 0;
+        return argumentLengths[index];
+    }
+
+    /**
+     * Reads the argument as a byte, short or int. Returns 0 if there is no such argument or it is too short,
+     * so a frame a peer got wrong doesn't throw; BasePacketReceiver drops those before reading them.
+     */
+    public byte getArgumentByte(int index) {
+        if(getArgumentLength(index) < 1)
+            return 0;
+        return buffer.get(argumentOffsets[index]);
+    }
+
+    public short getArgumentShort(int index) {
+        if(getArgumentLength(index) < 2)
+            return 0;
+        return buffer.getShort(argumentOffsets[index]);
+    }
+
+    public int getArgumentInt(int index) {
+        if(getArgumentLength(index) < 4)
+            return 0;
+        return buffer.getInt(argumentOffsets[index]);
+    }
+
+    public boolean argumentEquals(int index, byte []value) {
+        if(index < 0 || index >= argumentCount)
+            return value == null;
+        if(value == null || value.length != argumentLengths[index])
+            return false;
+        int argumentOffset = argumentOffsets[index];
+        for(int i = 0; i < value.length; ++i) {
+            if(buffer.get(argumentOffset + i) != value[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a read-only view of the argument, or null if there is no such argument.
+     */
+    public ByteBuffer getArgumentBuffer(int index) {
+        if(index < 0 || index >= argumentCount)
+            return null;
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(argumentOffsets[index] + argumentLengths[index]);
+        slice.position(argumentOffsets[index]);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a copy of the argument, or null if there is no such argument, like PacketData.getArgument.
+     */
+    public byte[] getArgument(int index) {
+        if(index < 0 || index >= argumentCount)
+            return null;
+        byte []dst = new byte[argumentLengths[index]];
+        ByteBuffer src = buffer.duplicate();
+        src.position(argumentOffsets[index]);
+        src.get(dst);
+        return dst;
+    }
+
+    public InetAddress getArgumentAddress(int index) throws UnknownHostException {
+        return InetAddress.getByAddress(getArgument(index));
+    }
+
+    /**
+     * Copies the packet out of the receive buffer, for handlers that keep it beyond the call.
+     */
+    public PacketData toPacketData() {
+        byte [][]arguments = null;
+        if(argumentCount > 0) {
+            arguments = new byte[argumentCount][];
+            for(int i = 0; i < argumentCount; ++i)
+                arguments[i] = getArgument(i);
+        }
+        PacketData packet = new PacketData(flags, messageId, retryCount, partIndex, partCount, command, arguments);
+        packet.parentMessageId = parentMessageId;
+        return packet;
+    }
+
+    public String toString() {
+        StringBuilder ret = new StringBuilder(String.format("FLAGS=%d MESSAGEID=%d", flags, messageId));
+        if(hasFlag(PacketEncoder.FLAGS_GUARANTEED)) {
+            ret.append(String.format(" RETRYCOUNT=%d", retryCount));
+        }
+        if(hasFlag(PacketEncoder.FLAGS_MULTIPART)) {
+            ret.append(String.format(" PARTINDEX=%d PARTCOUNT=%d", partIndex, partCount));
+        }
+        ret.append(String.format(" COMMAND=%s ARGUMENTS=%d", PacketData.commandToString(command), argumentCount));
+        return ret.toString();
+    }
+}
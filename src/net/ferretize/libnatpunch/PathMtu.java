@@ -0,0 +1,100 @@
+package net.ferretize.libnatpunch;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+/**
+ * Largest datagram known to get through to an endpoint. Starts at BASE_SIZE, which nearly every path
+ * carries, and is raised by probing PROBE_SIZES from the largest down: the first size the peer echoes
+ * back wins. Peers that don't know MTU_PROBE never answer, so they stay at BASE_SIZE. Probes have to be
+ * sent with the don't fragment bit, a fragmented probe gets through and proves nothing, so endpoints
+ * behind a NetworkLayer that can't set it stay at BASE_SIZE as well.
+ */
+public class PathMtu {
+    final public static int BASE_SIZE = 1200;
+    //  1472 is a full 1500 byte Ethernet frame less the IPv4 and UDP headers, 1280 the IPv6 minimum less headroom
+    final public static int []PROBE_SIZES = {1472, 1400, 1280};
+    final public static int PROBES_PER_SIZE = 2;
+
+    private int size = BASE_SIZE;
+    private boolean started, complete;
+    private int probeIndex, probeCount;
+    private long timeProbeSent, probeTimeout;
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns true if probing wasn't started before.
+     */
+    public synchronized boolean start() {
+        if(started)
+            return false;
+        started = true;
+        return true;
+    }
+
+    /**
+     * Returns the size of the probe to send at timeNow, 0 if none is due. timeout is how long to wait for its echo.
+     */
+    public synchronized int nextProbe(long timeNow, long timeout) {
+        if(!started || complete)
+            return 0;
+        if(probeCount > 0 && timeNow - timeProbeSent < probeTimeout)
+            return 0;
+        if(probeCount >= PROBES_PER_SIZE) {
+            ++probeIndex;
+            probeCount = 0;
+        }
+        if(probeIndex >= PROBE_SIZES.length) {
+            complete = true;
+            return 0;
+        }
+        ++probeCount;
+        timeProbeSent = timeNow;
+        probeTimeout = timeout;
+        return PROBE_SIZES[probeIndex];
+    }
+
+    /**
+     * Ends probing without raising the size, for when probes can't be sent unfragmented.
+     */
+    public synchronized void stop() {
+        complete = true;
+    }
+
+    public synchronized void probeAcknowledged(int probeSize) {
+        if(probeSize > size)
+            size = probeSize;
+        complete = true;
+    }
+
+    /**
+     * Returns when nextProbe() next has a probe to send, Long.MAX_VALUE once probing is done.
+     */
+    public synchronized long getNextProbeTime() {
+        if(!started || complete)
+            return Long.MAX_VALUE;
+        if(probeCount == 0)
+            return 0;
+        return timeProbeSent + probeTimeout;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d%s", size, complete ? "" : started ? " (probing)" : "");
+    }
+}
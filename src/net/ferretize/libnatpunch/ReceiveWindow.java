@@ -0,0 +1,77 @@
+package net.ferretize.libnatpunch;
+
+import java.util.Arrays;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Duplicate detection for the guaranteed packets of one endpoint, like the anti-replay windows of IPsec and DTLS.
+ * A sender numbers the guaranteed packets to each endpoint in sequence (see EndPoint.nextMessageId), so this keeps
+ * the highest id received and a bitmap of the SIZE ids up to it. An id further behind is a new numbering: a
+ * restarted peer, or one that evicted and recreated our endpoint and starts over at a random id. Senders stop
+ * retransmitting a packet once they are SIZE / 2 ids past it, so a retransmission never looks that old.
+ *
+ * A restarted peer also announces a new incarnation in its handshake, which resets the window (see {@link #reset}).
+ */
+public class ReceiveWindow {
+    //  Ids tracked up to the highest, twice CongestionController.MAX_WINDOW
+    final public static int SIZE = 2048;
+
+    private final long []bits = new long[SIZE / 64];
+    private int highest;
+    private boolean empty = true;
+
+    /**
+     * Marks messageId as received. Returns false if it was received before.
+     */
+    public boolean receive(int messageId) {
+        //  Wrap-safe, ids are compared by their distance from the highest
+        int behind = highest - messageId;
+        if(!empty && behind >= 0 && behind < SIZE) {
+            int index = (messageId >>> 6) & (bits.length - 1);
+            if((bits[index] & (1L << messageId)) != 0)
+                return false;
+            bits[index] |= 1L << messageId;
+            return true;
+        }
+        if(empty || behind < -SIZE || behind >= SIZE) {
+            //  Far ahead, or a new numbering
+            Arrays.fill(bits, 0);
+            empty = false;
+        }
+        else {
+            //  Slides up, clearing the ids that enter the window
+            for(int id = highest + 1; id != messageId; ++id)
+                bits[(id >>> 6) & (bits.length - 1)] &= ~(1L << id);
+        }
+        highest = messageId;
+        bits[(messageId >>> 6) & (bits.length - 1)] |= 1L << messageId;
+        return true;
+    }
+
+    public boolean contains(int messageId) {
+        int behind = highest - messageId;
+        return !empty && behind >= 0 && behind < SIZE && (bits[(messageId >>> 6) & (bits.length - 1)] & (1L << messageId)) != 0;
+    }
+
+    /**
+     * Forgets every id seen, the next one received starts the window.
+     */
+    public void reset() {
+        Arrays.fill(bits, 0);
+        empty = true;
+    }
+
+    public int getHighest() {
+        return highest;
+    }
+}
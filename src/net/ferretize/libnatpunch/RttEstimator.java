@@ -0,0 +1,108 @@
+package net.ferretize.libnatpunch;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Smoothed round trip time and retransmission timeout of one endpoint, as in RFC 6298 (Jacobson/Karels).
+ * All times are in milliseconds.
+ */
+public class RttEstimator {
+    final public static long DEFAULT_INITIAL_RTO = 100;
+    final public static long DEFAULT_MIN_RTO = 10;
+    final public static long DEFAULT_MAX_RTO = 3000;
+
+    /**
+     * Initial RTO and the range the RTO is clamped to. Held by whoever retransmits and passed in, so
+     * endpoints of different receivers or shards can use different limits.
+     */
+    public static class RtoLimits {
+        final public long initial, min, max;
+
+        public RtoLimits(long initial, long min, long max) {
+            this.initial = initial;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long clamp(long timeout) {
+            return Math.min(Math.max(timeout, min), max);
+        }
+    }
+
+    final public static RtoLimits DEFAULT_RTO_LIMITS = new RtoLimits(DEFAULT_INITIAL_RTO, DEFAULT_MIN_RTO, DEFAULT_MAX_RTO);
+
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    //  Not clamped, the limits are applied when it is read
+    private long rto = -1;
+    private int sampleCount;
+
+    /**
+     * Only pass samples that can be matched to a single transmission (Karn's algorithm). The ACK
+     * echoes the retryCount it acknowledges, so retransmitted packets still give valid samples as
+     * long as the echoed retryCount is the one of the last transmission.
+     */
+    public synchronized void addSample(double rtt) {
+        if(rtt < 0)
+            return;
+        if(smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        }
+        else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+        }
+        rto = (long)Math.ceil(smoothedRtt + Math.max(1, 4 * rttVariance));
+        ++sampleCount;
+    }
+
+    /**
+     * Returns the smoothed RTT, or -1 before the first sample.
+     */
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public synchronized double getRttVariance() {
+        return rttVariance;
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    public synchronized long getRetransmitTimeout(RtoLimits limits) {
+        return limits.clamp(rto < 0 ? limits.initial : rto);
+    }
+
+    /**
+     * Returns the RTO with the default limits.
+     */
+    public long getRetransmitTimeout() {
+        return getRetransmitTimeout(DEFAULT_RTO_LIMITS);
+    }
+
+    /**
+     * Returns the timeout to wait for an ACK after the given number of retransmissions, doubling per retry.
+     */
+    public long getRetransmitTimeout(RtoLimits limits, int retryCount) {
+        long timeout = getRetransmitTimeout(limits);
+        for(int i = 0; i < retryCount && timeout < limits.max; ++i)
+            timeout <<= 1;
+        return limits.clamp(timeout);
+    }
+
+    public String toString() {
+        return String.format("SRTT=%.1f RTTVAR=%.1f RTO=%d", getSmoothedRtt(), getRttVariance(), getRetransmitTimeout());
+    }
+}
@@ -0,0 +1,101 @@
+package net.ferretize.libnatpunch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+/**
+ * Runs an introducer on several worker threads. Every shard is a NatPunch with its own socket, bound to the same
+ * port with SO_REUSEPORT, so the kernel spreads clients over the shards by source address. An endpoint with its
+ * retransmits, acknowledgements and timers belongs to the one shard its datagrams arrive at, and is only touched
+ * by that shard's worker thread.
+ *
+ * Shards only meet when a PUNCH arrives at one shard for an endpoint registered on another. The receiving shard
+ * answers the requester, the owning shard sends the GREET, see BasePacketReceiver.greet.
+ *
+ * Give every shard its own PacketEncoder and PacketReceiver before starting the worker threads:
+ * <pre>
+ *     ShardedNatPunch introducer = new ShardedNatPunch(port, 4);
+ *     for(NatPunch shard : introducer.getShards()) {
+ *         shard.setPacketEncoder(new CompactPacketEncoder());
+ *         shard.setPacketReceiver(new BasePacketReceiver(shard));
+ *     }
+ *     introducer.startWorkerThreads();
+ * </pre>
+ */
+public class ShardedNatPunch {
+    private final NatPunch []shards;
+    public NatPunch[] getShards() {
+        return shards.clone();
+    }
+
+    /**
+     * Binds shardCount sockets to localPort. Needs SO_REUSEPORT, which Java 8 doesn't have, for more than one shard.
+     */
+    public ShardedNatPunch(InetAddress localAddress, int localPort, int shardCount) throws IOException {
+        if(shardCount < 1)
+            throw new IllegalArgumentException("shardCount must be at least 1");
+
+        shards = new NatPunch[shardCount];
+        for(int i = 0; i < shardCount; ++i) {
+            NatPunch shard = new NatPunch();
+            shard.setNetworkLayer(new NIONetworkLayer(localAddress, localPort, shardCount > 1));
+            shard.setShards(this);
+            shards[i] = shard;
+        }
+    }
+
+    public ShardedNatPunch(int localPort, int shardCount) throws IOException {
+        this(InetAddress.getLocalHost(), localPort, shardCount);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public NatPunch getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * Returns the shard the endpoint with id is registered on, or null.
+     */
+    public NatPunch findShard(byte []id) {
+        for(NatPunch shard : shards) {
+            if(shard.getEndPointHandler().findEndPoint(id) != null)
+                return shard;
+        }
+        return null;
+    }
+
+    public int getEndPointCount() {
+        int count = 0;
+        for(NatPunch shard : shards)
+            count += shard.getEndPointHandler().getEndPointCount();
+        return count;
+    }
+
+    public void setLogHandler(LogHandler logHandler) {
+        for(NatPunch shard : shards)
+            shard.setLogHandler(logHandler);
+    }
+
+    public void startWorkerThreads() {
+        for(NatPunch shard : shards)
+            shard.startWorkerThread();
+    }
+
+    public void stopWorkerThreads() {
+        for(NatPunch shard : shards)
+            shard.stopWorkerThread();
+    }
+}
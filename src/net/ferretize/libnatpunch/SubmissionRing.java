@@ -0,0 +1,96 @@
+package net.ferretize.libnatpunch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+/**
+ * Bounded lock-free queue for any number of producer threads and a single consumer. Every slot carries a
+ * sequence number: producers claim a position by advancing the tail and publish their item by bumping the slot's
+ * sequence, the consumer takes items in order and frees the slot for the next lap. Producers only contend with
+ * each other on the tail, never with the consumer.
+ */
+public class SubmissionRing<E> {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Object []items;
+    private final AtomicLong tail = new AtomicLong();
+    //  Only touched by the consumer, published to producers through the slot sequences
+    private long head;
+
+    /**
+     * capacity has to be a power of two.
+     */
+    public SubmissionRing(int capacity) {
+        if(capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        items = new Object[capacity];
+        for(int i = 0; i < capacity; ++i)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Adds item, from any thread. Returns false if the ring is full.
+     */
+    public boolean offer(E item) {
+        if(item == null)
+            throw new IllegalArgumentException("item cannot be null");
+        while(true) {
+            long position = tail.get();
+            int index = (int)position & mask;
+            long difference = sequences.get(index) - position;
+            if(difference == 0) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    items[index] = item;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            }
+            else if(difference < 0) {
+                //  The slot still holds the item from the last lap
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest item, or returns null if there is none. Only the consumer thread may call this.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        int index = (int)head & mask;
+        if(sequences.get(index) != head + 1)
+            return null;
+        E item = (E)items[index];
+        items[index] = null;
+        sequences.lazySet(index, head + mask + 1);
+        ++head;
+        return item;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns how many items are claimed and not taken yet. Only an estimate while producers are adding.
+     */
+    public int size() {
+        return (int)Math.max(0, tail.get() - head);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,275 @@
+package net.ferretize.libnatpunch;
+
+/**
+ * The MIT License (MIT)
+ * Copyright (c) <year> <copyright holders>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+/**
+ * Hashed hierarchical timer wheel, the worker thread's scheduler for retransmissions, delayed acknowledgements,
+ * keepalives and application timers. Deadlines are in ms. Each of the LEVELS wheels has 64 slots, each slot
+ * a ms on the first wheel and 64 times as long as on the wheel below on the others, so deadlines up to 2^24 ms
+ * (4.6 hours) ahead get a slot right away and later ones wait in an overflow list. Timers are linked into their
+ * slot, so scheduling and cancelling are O(1), and a bitmap per wheel lets advance() jump straight to the next
+ * occupied slot: only timers that are due, or whose slot on an upper wheel comes up, are touched.
+ */
+public class TimerWheel {
+    /**
+     * Something to run at a deadline. A timer is scheduled on at most one wheel, at one deadline, at a time.
+     */
+    public static abstract class Timer {
+        private long deadline;
+        //  Slot the timer is linked into, -1 while it isn't scheduled
+        private int bucket = -1;
+        private Timer previous, next;
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Called on the thread advancing the wheel, without its lock held, once the deadline has passed.
+         * The timer is no longer scheduled, so it may schedule itself again.
+         */
+        protected abstract void expired(long timeNow);
+    }
+
+    final public static int SLOT_BITS = 6;
+    final public static int SLOTS = 1 << SLOT_BITS;
+    final public static int LEVELS = 4;
+
+    //  Slots past the wheels: timers that are due, those advance() is running, and those too far ahead
+    final private static int DUE = LEVELS * SLOTS;
+    final private static int RUNNING = DUE + 1;
+    final private static int OVERFLOW = DUE + 2;
+
+    private final Timer []heads = new Timer[OVERFLOW + 1];
+    private final long []occupied = new long[LEVELS];
+    //  Every ms before this one has been collected
+    private long now;
+    private int size;
+
+    //  Called when a timer is scheduled before the deadline getNextDeadline() last returned
+    private final Runnable wakeup;
+    private long wakeupDeadline = Long.MAX_VALUE;
+
+    public TimerWheel(long timeNow) {
+        this(timeNow, null);
+    }
+
+    public TimerWheel(long timeNow, Runnable wakeup) {
+        this.now = timeNow;
+        this.wakeup = wakeup;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isScheduled(Timer timer) {
+        return timer.bucket >= 0;
+    }
+
+    /**
+     * Schedules timer to expire at deadline, moving it if it is already scheduled. A deadline that has passed
+     * expires with the next advance().
+     */
+    public void schedule(Timer timer, long deadline) {
+        boolean earlier;
+        synchronized (this) {
+            if(timer.bucket >= 0)
+                unlink(timer);
+            else
+                ++size;
+            timer.deadline = deadline;
+            place(timer);
+            earlier = deadline < wakeupDeadline;
+            if(earlier)
+                wakeupDeadline = deadline;
+        }
+        if(earlier && wakeup != null)
+            wakeup.run();
+    }
+
+    /**
+     * Returns false if timer wasn't scheduled.
+     */
+    public synchronized boolean cancel(Timer timer) {
+        if(timer.bucket < 0)
+            return false;
+        unlink(timer);
+        --size;
+        return true;
+    }
+
+    /**
+     * Runs every timer whose deadline is before or at timeNow and returns how many ran. Timers scheduled
+     * by them for timeNow or earlier run with the next call.
+     */
+    public int advance(long timeNow) {
+        int count = 0;
+        while(true) {
+            Timer timer;
+            synchronized (this) {
+                if(heads[RUNNING] == null) {
+                    if(count > 0)
+                        break;
+                    collect(timeNow);
+                    //  Hand the due list over, so timers added to it while these run wait for the next call
+                    Timer due = heads[DUE];
+                    heads[DUE] = null;
+                    heads[RUNNING] = due;
+                    for(; due != null; due = due.next)
+                        due.bucket = RUNNING;
+                    if(heads[RUNNING] == null)
+                        break;
+                }
+                timer = heads[RUNNING];
+                unlink(timer);
+                --size;
+            }
+            timer.expired(timeNow);
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time advance() has to be called next, Long.MAX_VALUE if no timer is scheduled. For a timer
+     * on an upper wheel this is when its slot comes up, which may be before its deadline.
+     */
+    public synchronized long getNextDeadline() {
+        long deadline;
+        if(heads[DUE] != null || heads[RUNNING] != null)
+            deadline = now - 1;
+        else {
+            long pending = occupied[0] & (-1L << (int)(now & (SLOTS - 1)));
+            deadline = pending != 0 ? (now & ~(long)(SLOTS - 1)) | Long.numberOfTrailingZeros(pending) : getNextSlotTime();
+        }
+        wakeupDeadline = deadline;
+        return deadline;
+    }
+
+    /**
+     * Moves the timers due by timeNow to the due list, cascading upper wheel slots down as their time comes.
+     */
+    private void collect(long timeNow) {
+        while(true) {
+            long pending = occupied[0] & (-1L << (int)(now & (SLOTS - 1)));
+            if(pending != 0) {
+                int slot = Long.numberOfTrailingZeros(pending);
+                long tick = (now & ~(long)(SLOTS - 1)) | slot;
+                if(tick > timeNow)
+                    break;
+                now = tick + 1;
+                cascade(slot);
+                if((now & (SLOTS - 1)) == 0)
+                    cascadeLevels();
+                continue;
+            }
+            long slotTime = getNextSlotTime();
+            if(slotTime > timeNow)
+                break;
+            now = slotTime;
+            cascadeLevels();
+        }
+        //  Nothing is due before timeNow + 1, so no occupied slot lies in between
+        if(timeNow + 1 > now) {
+            now = timeNow + 1;
+            if((now & (SLOTS - 1)) == 0)
+                cascadeLevels();
+        }
+    }
+
+    /**
+     * Returns when the first occupied slot of the upper wheels, or the overflow list, comes up.
+     */
+    private long getNextSlotTime() {
+        for(int level = 1; level < LEVELS; ++level) {
+            int shift = SLOT_BITS * level;
+            long pending = occupied[level] & (-1L << (int)((now >>> shift) & (SLOTS - 1)));
+            if(pending != 0)
+                return ((now >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS)) | ((long)Long.numberOfTrailingZeros(pending) << shift);
+        }
+        if(heads[OVERFLOW] != null)
+            return ((now >>> (SLOT_BITS * LEVELS)) + 1) << (SLOT_BITS * LEVELS);
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Called when now reaches a multiple of 64: the slot that comes up on each wheel above is spread over
+     * the ones below, up to the first wheel that didn't wrap around.
+     */
+    private void cascadeLevels() {
+        for(int level = 1; level < LEVELS; ++level) {
+            int index = (int)((now >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            cascade(level * SLOTS + index);
+            if(index != 0)
+                return;
+        }
+        cascade(OVERFLOW);
+    }
+
+    private void cascade(int bucket) {
+        Timer timer = heads[bucket];
+        if(timer == null)
+            return;
+        heads[bucket] = null;
+        if(bucket < DUE)
+            occupied[bucket >>> SLOT_BITS] &= ~(1L << (bucket & (SLOTS - 1)));
+        while(timer != null) {
+            Timer next = timer.next;
+            place(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * Links timer into the slot of the lowest wheel its deadline shares every upper bit of now with.
+     */
+    private void place(Timer timer) {
+        long deadline = timer.deadline;
+        int bucket = OVERFLOW;
+        if(deadline < now)
+            bucket = DUE;
+        else {
+            for(int level = 0; level < LEVELS; ++level) {
+                int shift = SLOT_BITS * level;
+                if((deadline >>> (shift + SLOT_BITS)) == (now >>> (shift + SLOT_BITS))) {
+                    bucket = level * SLOTS + (int)((deadline >>> shift) & (SLOTS - 1));
+                    break;
+                }
+            }
+        }
+        Timer head = heads[bucket];
+        timer.previous = null;
+        timer.next = head;
+        if(head != null)
+            head.previous = timer;
+        heads[bucket] = timer;
+        timer.bucket = bucket;
+        if(bucket < DUE)
+            occupied[bucket >>> SLOT_BITS] |= 1L << (bucket & (SLOTS - 1));
+    }
+
+    private void unlink(Timer timer) {
+        int bucket = timer.bucket;
+        if(timer.previous != null)
+            timer.previous.next = timer.next;
+        else
+            heads[bucket] = timer.next;
+        if(timer.next != null)
+            timer.next.previous = timer.previous;
+        timer.previous = null;
+        timer.next = null;
+        timer.bucket = -1;
+        if(bucket < DUE && heads[bucket] == null)
+            occupied[bucket >>> SLOT_BITS] &= ~(1L << (bucket & (SLOTS - 1)));
+    }
+}
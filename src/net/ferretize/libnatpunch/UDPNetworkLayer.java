@@ -2,6 +2,7 @@ package net.ferretize.libnatpunch;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -18,6 +19,9 @@ public class UDPNetworkLayer implements NetworkLayer {
     private InetAddress localAddress;
     private int localPort;
     private DatagramSocket socket;
+    //  Reused by send(InetSocketAddress, ByteBuffer), direct buffers are copied to sendArray
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    private byte []sendArray = new byte[2048];
 
     public UDPNetworkLayer(InetAddress localAddress, int localPort) throws SocketException {
         this.localAddress = localAddress;
@@ -55,17 +59,47 @@ public class UDPNetworkLayer implements NetworkLayer {
         return localPort;
     }
 
+    @Override
+    public boolean setDontFragment(boolean dontFragment) {
+        //  DatagramSocket has no way to set it
+        return false;
+    }
+
     @Override
     public int send(InetAddress address, int port, byte[] data) {
         DatagramPacket packet = new DatagramPacket(data, 0, data.length, address, port);
         try {
             socket.send(packet);
         } catch (IOException ex) {
-            return 0;
+            return -1;
         }
         return data.length;
     }
 
+    @Override
+    public int send(InetSocketAddress address, ByteBuffer data) {
+        int length = data.remaining();
+        synchronized (sendPacket) {
+            if(data.hasArray()) {
+                sendPacket.setData(data.array(), data.arrayOffset() + data.position(), length);
+            }
+            else {
+                if(sendArray.length < length)
+                    sendArray = new byte[length];
+                data.duplicate().get(sendArray, 0, length);
+                sendPacket.setData(sendArray, 0, length);
+            }
+            sendPacket.setSocketAddress(address);
+            try {
+                socket.send(sendPacket);
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+        data.position(data.limit());
+        return length;
+    }
+
     @Override
     public int receive(AtomicReference<InetSocketAddress> address, byte[] buffer, int bufferLength) {
         DatagramPacket packet = new DatagramPacket(buffer, bufferLength);
@@ -77,4 +111,13 @@ public class UDPNetworkLayer implements NetworkLayer {
         address.set((InetSocketAddress)packet.getSocketAddress());
         return packet.getLength();
     }
+
+    @Override
+    public void waitForReceive(long timeout) {
+        //  receive() already blocks for the socket timeout
+    }
+
+    @Override
+    public void wakeup() {
+    }
 }